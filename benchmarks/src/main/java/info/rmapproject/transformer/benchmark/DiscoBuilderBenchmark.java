@@ -0,0 +1,129 @@
+/*******************************************************************************
+ * Copyright 2017 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This software was produced as part of the RMap Project (http://rmap-project.info),
+ * The RMap Project was funded by the Alfred P. Sloan Foundation and is a
+ * collaboration between Data Conservancy, Portico, and IEEE.
+ *******************************************************************************/
+package info.rmapproject.transformer.benchmark;
+
+import info.rmapproject.transformer.DiscoBuilder;
+import info.rmapproject.transformer.DiscoBuilderFactory;
+import info.rmapproject.transformer.model.RecordType;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openrdf.model.Model;
+import org.openrdf.model.Statement;
+import org.openrdf.rio.helpers.AbstractRDFHandler;
+
+/**
+ * Base class for the DiSCO builder benchmarks. Each subclass provides a record of each fan-out size
+ * (see Fixtures), and the record is then built into a DiSCO both as a Model, the way Transformer does
+ * by default, and by streaming the statements to a handler that only consumes them.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public abstract class DiscoBuilderBenchmark {
+
+	/** DiSCO description used for all benchmarks. */
+	private static final String DISCO_DESCRIPTION = "Benchmark DiSCO";
+
+	/** Size of the record - small, median or large fan-out. */
+	@Param({Fixtures.SMALL, Fixtures.MEDIAN, Fixtures.LARGE})
+	public String fanOut;
+
+	/** The record to build a DiSCO from. */
+	private Object record;
+
+	/**
+	 * Loads the record for the fan-out size.
+	 *
+	 * @throws Exception the exception
+	 */
+	@Setup
+	public void loadRecord() throws Exception {
+		record = createRecord(fanOut);
+	}
+
+	/**
+	 * Builds the DiSCO model.
+	 *
+	 * @return the model
+	 */
+	@Benchmark
+	public Model getModel() {
+		return newBuilder().getModel();
+	}
+
+	/**
+	 * Builds the DiSCO, passing each statement to a handler instead of collecting them into a model.
+	 *
+	 * @param blackhole consumes the statements
+	 */
+	@Benchmark
+	public void writeTo(Blackhole blackhole) {
+		newBuilder().writeTo(new AbstractRDFHandler() {
+			@Override
+			public void handleStatement(Statement stmt) {
+				blackhole.consume(stmt);
+			}
+		});
+	}
+
+	/**
+	 * Creates a DiSCO builder for the record.
+	 *
+	 * @return the DiSCO builder
+	 */
+	private DiscoBuilder newBuilder() {
+		DiscoBuilder builder = DiscoBuilderFactory.createDiscoBuilder(getRecordType(), DISCO_DESCRIPTION);
+		builder.setRecord(record);
+		return builder;
+	}
+
+	/**
+	 * Gets the type of record the benchmark builds.
+	 *
+	 * @return the record type
+	 */
+	protected abstract RecordType getRecordType();
+
+	/**
+	 * Creates the record for a fan-out size.
+	 *
+	 * @param fanOut small, median or large
+	 * @return the record
+	 * @throws Exception the exception
+	 */
+	protected abstract Object createRecord(String fanOut) throws Exception;
+
+}
@@ -0,0 +1,295 @@
+/*******************************************************************************
+ * Copyright 2017 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This software was produced as part of the RMap Project (http://rmap-project.info),
+ * The RMap Project was funded by the Alfred P. Sloan Foundation and is a
+ * collaboration between Data Conservancy, Portico, and IEEE.
+ *******************************************************************************/
+package info.rmapproject.transformer.benchmark;
+
+import info.rmapproject.cos.osf.client.model.Node;
+import info.rmapproject.cos.osf.client.model.Registration;
+import info.rmapproject.cos.osf.client.model.User;
+import info.rmapproject.cos.share.client.model.Record;
+import info.rmapproject.transformer.share.ShareRecordReader;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.MapperFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Builds the benchmark records. Each record type comes in three sizes:
+ * <ul>
+ * <li>small - the least a typical record has, e.g. one contributor and no children</li>
+ * <li>median - a record close to the middle of a harvest</li>
+ * <li>large - a record with a large fan-out of contributors, children or institutions, 
+ * of the kind that dominates the cost of a harvest</li>
+ * </ul>
+ * SHARE records are picked from sampledata.json by number of contributors, with the largest record's
+ * contributors repeated to make the large record. OSF records are generated from the templates in 
+ * /fixtures, which use the property names of the OSF client model classes.
+ */
+public final class Fixtures {
+
+	/** Small fan-out. */
+	public static final String SMALL = "small";
+
+	/** Median fan-out. */
+	public static final String MEDIAN = "median";
+
+	/** Large fan-out. */
+	public static final String LARGE = "large";
+
+	/** Number of contributors on the large SHARE record. */
+	private static final int SHARE_LARGE_CONTRIBUTORS = 500;
+
+	/** Mapper for the OSF templates. Lenient so that the templates bind across client model versions. */
+	private static final ObjectMapper mapper = new ObjectMapper()
+			.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false)
+			.configure(DeserializationFeature.READ_UNKNOWN_ENUM_VALUES_AS_NULL, true)
+			.configure(MapperFeature.ACCEPT_CASE_INSENSITIVE_PROPERTIES, true);
+
+	/**
+	 * Not instantiated.
+	 */
+	private Fixtures() {
+	}
+
+	/**
+	 * Gets a SHARE record.
+	 *
+	 * @param fanOut small, median or large
+	 * @return the record
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public static Record shareRecord(String fanOut) throws IOException {
+		return ShareRecordReader.getReader().readValue(shareJson(fanOut));
+	}
+
+	/**
+	 * Gets a SHARE record as JSON, as it is read from a local SHARE file.
+	 *
+	 * @param fanOut small, median or large
+	 * @return the record JSON
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public static String shareJson(String fanOut) throws IOException {
+		List<JsonNode> records = new ArrayList<JsonNode>();
+		load("/sampledata.json").get("results").forEach(records::add);
+		records.sort(Comparator.comparingInt(record -> record.path("contributors").size()));
+
+		JsonNode record = null;
+		switch (checkFanOut(fanOut)) {
+		case SMALL:
+			record = records.get(0);
+			break;
+		case MEDIAN:
+			record = records.get(records.size() / 2);
+			break;
+		default:
+			ObjectNode large = records.get(records.size() - 1).deepCopy();
+			ArrayNode contributors = (ArrayNode) large.get("contributors");
+			int original = contributors.size();
+			for (int i = original; i < SHARE_LARGE_CONTRIBUTORS; i++) {
+				ObjectNode contributor = contributors.get(i % original).deepCopy();
+				contributor.put("name", contributor.path("name").asText() + " " + i);
+				contributor.put("familyName", contributor.path("familyName").asText() + " " + i);
+				contributor.remove("sameAs");
+				contributors.add(contributor);
+			}
+			record = large;
+			break;
+		}
+		return record.toString();
+	}
+
+	/**
+	 * Gets an OSF node. The median node has 5 contributors and 3 child nodes; the large node has
+	 * 50 contributors and 10 child nodes, each with 5 child nodes of their own.
+	 *
+	 * @param fanOut small, median or large
+	 * @return the node
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public static Node osfNode(String fanOut) throws IOException {
+		return mapper.treeToValue(osfTree("/fixtures/osf-node.json", fanOut), Node.class);
+	}
+
+	/**
+	 * Gets an OSF registration, with the same fan-out as the OSF nodes.
+	 *
+	 * @param fanOut small, median or large
+	 * @return the registration
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public static Registration osfRegistration(String fanOut) throws IOException {
+		return mapper.treeToValue(osfTree("/fixtures/osf-registration.json", fanOut), Registration.class);
+	}
+
+	/**
+	 * Gets an OSF user. The small user has names only, the median user has all of the profile links and
+	 * 2 institutions, and the large user has 50 institutions.
+	 *
+	 * @param fanOut small, median or large
+	 * @return the user
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public static User osfUser(String fanOut) throws IOException {
+		ObjectNode user = (ObjectNode) load("/fixtures/osf-user.json");
+		ArrayNode institutions = (ArrayNode) user.get("institutions");
+		JsonNode template = institutions.get(0);
+		institutions.removeAll();
+		switch (checkFanOut(fanOut)) {
+		case SMALL:
+			ObjectNode names = mapper.createObjectNode();
+			for (String field : new String[] {"id", "full_name", "given_name", "middle_names", "family_name", "suffix"}) {
+				names.set(field, user.get(field));
+			}
+			user = names;
+			break;
+		case MEDIAN:
+			addCopies(institutions, template, 2, "i");
+			break;
+		default:
+			addCopies(institutions, template, 50, "i");
+			break;
+		}
+		return mapper.treeToValue(user, User.class);
+	}
+
+	/**
+	 * Generates a tree of OSF nodes or registrations from a template.
+	 *
+	 * @param resource the template resource
+	 * @param fanOut small, median or large
+	 * @return the root of the tree
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	private static ObjectNode osfTree(String resource, String fanOut) throws IOException {
+		ObjectNode template = (ObjectNode) load(resource);
+		switch (checkFanOut(fanOut)) {
+		case SMALL:
+			return osfTree(template, "0", 1, new int[] {});
+		case MEDIAN:
+			return osfTree(template, "0", 5, new int[] {3});
+		default:
+			return osfTree(template, "0", 50, new int[] {10, 5});
+		}
+	}
+
+	/**
+	 * Generates a node in a tree of OSF nodes or registrations from a template. Children have 5 contributors.
+	 *
+	 * @param template the template
+	 * @param id suffix for the node id, unique within the tree
+	 * @param contributors number of contributors
+	 * @param children number of children at each level below this node
+	 * @return the node
+	 */
+	private static ObjectNode osfTree(ObjectNode template, String id, int contributors, int[] children) {
+		ObjectNode node = template.deepCopy();
+		String templateId = template.get("id").asText();
+		node.put("id", templateId.substring(0, 1) + id);
+
+		ArrayNode contributorList = (ArrayNode) node.get("contributors");
+		JsonNode contributor = contributorList.get(0);
+		contributorList.removeAll();
+		addCopies(contributorList, contributor, contributors, "u" + id + "x");
+
+		ArrayNode childList = (ArrayNode) node.get("children");
+		if (children.length > 0) {
+			int[] grandchildren = new int[children.length - 1];
+			System.arraycopy(children, 1, grandchildren, 0, grandchildren.length);
+			for (int i = 0; i < children[0]; i++) {
+				childList.add(osfTree(template, id + "c" + i, 5, grandchildren));
+			}
+		}
+		return node;
+	}
+
+	/**
+	 * Adds copies of a template to an array, replacing the template's id in each copy with a new one.
+	 *
+	 * @param array the array
+	 * @param template the template
+	 * @param copies the number of copies
+	 * @param idPrefix prefix for the new ids
+	 */
+	private static void addCopies(ArrayNode array, JsonNode template, int copies, String idPrefix) {
+		String json = template.toString();
+		String templateId = findId(template);
+		for (int i = 0; i < copies; i++) {
+			try {
+				array.add(mapper.readTree(json.replace(templateId, idPrefix + i)));
+			} catch (IOException e) {
+				throw new RuntimeException("Could not copy fixture " + json, e);
+			}
+		}
+	}
+
+	/**
+	 * Finds the id in a template - the id field or, for contributors, the last folder of the self link.
+	 *
+	 * @param template the template
+	 * @return the id
+	 */
+	private static String findId(JsonNode template) {
+		if (template.has("id")) {
+			return template.get("id").asText();
+		}
+		String self = template.path("links").path("self").asText();
+		String[] folders = self.split("/");
+		return folders[folders.length - 1];
+	}
+
+	/**
+	 * Loads a JSON resource.
+	 *
+	 * @param resource the resource path
+	 * @return the JSON
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	private static JsonNode load(String resource) throws IOException {
+		try (InputStream in = Fixtures.class.getResourceAsStream(resource)) {
+			if (in == null) {
+				throw new IOException("Fixture " + resource + " not found on the classpath");
+			}
+			return mapper.readTree(in);
+		}
+	}
+
+	/**
+	 * Checks the fan-out is small, median or large.
+	 *
+	 * @param fanOut the fan-out
+	 * @return the fan-out
+	 */
+	private static String checkFanOut(String fanOut) {
+		if (!SMALL.equals(fanOut) && !MEDIAN.equals(fanOut) && !LARGE.equals(fanOut)) {
+			throw new IllegalArgumentException("fanOut must be small, median or large");
+		}
+		return fanOut;
+	}
+
+}
@@ -0,0 +1,45 @@
+/*******************************************************************************
+ * Copyright 2017 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This software was produced as part of the RMap Project (http://rmap-project.info),
+ * The RMap Project was funded by the Alfred P. Sloan Foundation and is a
+ * collaboration between Data Conservancy, Portico, and IEEE.
+ *******************************************************************************/
+package info.rmapproject.transformer.benchmark;
+
+import info.rmapproject.transformer.model.RecordType;
+
+/**
+ * Benchmarks OsfRegistrationDiscoBuilder on OSF registrations of each fan-out size.
+ */
+public class OsfRegistrationDiscoBuilderBenchmark extends DiscoBuilderBenchmark {
+
+	/* (non-Javadoc)
+	 * @see info.rmapproject.transformer.benchmark.DiscoBuilderBenchmark#getRecordType()
+	 */
+	@Override
+	protected RecordType getRecordType() {
+		return RecordType.OSF_REGISTRATION;
+	}
+
+	/* (non-Javadoc)
+	 * @see info.rmapproject.transformer.benchmark.DiscoBuilderBenchmark#createRecord(java.lang.String)
+	 */
+	@Override
+	protected Object createRecord(String fanOut) throws Exception {
+		return Fixtures.osfRegistration(fanOut);
+	}
+
+}
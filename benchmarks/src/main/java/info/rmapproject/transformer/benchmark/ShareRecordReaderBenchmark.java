@@ -0,0 +1,92 @@
+/*******************************************************************************
+ * Copyright 2017 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This software was produced as part of the RMap Project (http://rmap-project.info),
+ * The RMap Project was funded by the Alfred P. Sloan Foundation and is a
+ * collaboration between Data Conservancy, Portico, and IEEE.
+ *******************************************************************************/
+package info.rmapproject.transformer.benchmark;
+
+import info.rmapproject.cos.share.client.model.Record;
+import info.rmapproject.transformer.share.ShareRecordReader;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Compares binding a SHARE record with a new ObjectMapper, as the local SHARE iterator used to for each
+ * record, against binding it with the shared ShareRecordReader.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ShareRecordReaderBenchmark {
+
+	/** Size of the record - small, median or large fan-out. */
+	@Param({Fixtures.SMALL, Fixtures.MEDIAN, Fixtures.LARGE})
+	public String fanOut;
+
+	/** The record JSON. */
+	private String json;
+
+	/**
+	 * Loads the record JSON for the fan-out size.
+	 *
+	 * @throws Exception the exception
+	 */
+	@Setup
+	public void loadRecord() throws Exception {
+		json = Fixtures.shareJson(fanOut);
+	}
+
+	/**
+	 * Binds the record with a new ObjectMapper.
+	 *
+	 * @return the record
+	 * @throws Exception the exception
+	 */
+	@Benchmark
+	public Record newMapper() throws Exception {
+		return new ObjectMapper().readValue(json, Record.class);
+	}
+
+	/**
+	 * Binds the record with the shared reader.
+	 *
+	 * @return the record
+	 * @throws Exception the exception
+	 */
+	@Benchmark
+	public Record sharedReader() throws Exception {
+		return ShareRecordReader.getReader().readValue(json);
+	}
+
+}
@@ -0,0 +1,404 @@
+/*******************************************************************************
+ * Copyright 2017 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This software was produced as part of the RMap Project (http://rmap-project.info),
+ * The RMap Project was funded by the Alfred P. Sloan Foundation and is a
+ * collaboration between Data Conservancy, Portico, and IEEE.
+ *******************************************************************************/
+package info.rmapproject.transformer;
+
+import java.io.File;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Records the progress of a harvest so that a run that stops part way can be continued without transforming 
+ * the same records again. Each record taken from the iterator is given a ticket along with the iterator's 
+ * position after it. When records are transformed in parallel they finish out of order, so the saved position 
+ * is the one after the last record for which every earlier record has finished, and the IDs of records written 
+ * beyond that position are saved with it so that they can be skipped when the run is continued. Records that 
+ * failed count as finished. The checkpoint is saved periodically as records finish, and at the end of the run, 
+ * to a properties file that is replaced once the new checkpoint is completely written. Anything else that records
+ * the DiSCOs written, such as a manifest, can be added to be flushed before each save, so that it is never behind 
+ * the checkpoint.
+ */
+public class Checkpoint {
+
+    /** The log. */
+    private static final Logger log = LoggerFactory.getLogger(Checkpoint.class);
+
+	/** The default number of seconds between saves. */
+	public static final int DEFAULT_INTERVAL_SECONDS = 30;
+
+	/** Property for the harvest the checkpoint belongs to. */
+	private static final String HARVEST = "harvest";
+
+	/** Property for the time the harvest started. */
+	private static final String STARTED = "started";
+
+	/** Property for the iterator position. */
+	private static final String POSITION = "position";
+
+	/** Property for the number of records finished. */
+	private static final String RECORDS = "records";
+
+	/** Property for the number of records that failed. */
+	private static final String FAILURES = "failures";
+
+	/** Property that is true once the iterator has no more records. */
+	private static final String COMPLETE = "complete";
+
+	/** Prefix for the properties listing records written beyond the position. */
+	private static final String WRITTEN = "written.";
+
+	/** The file the checkpoint is saved to. */
+	private final File file;
+
+	/** Describes the harvest, so that a checkpoint is not used to continue a different one. */
+	private final String harvest;
+
+	/** Time the harvest started, kept when the harvest is continued. */
+	private Instant started = Instant.now();
+
+	/** Position after the last record for which every earlier record has finished, null if there is none yet. */
+	private String position = null;
+
+	/** Number of records finished up to the position, including those from earlier runs. */
+	private long records = 0;
+
+	/** Number of records up to the position that failed, including those from earlier runs. */
+	private long failures = 0;
+
+	/** Records taken from the iterator that are not yet covered by the position, by ticket. */
+	private final TreeMap<Long, Ticket> open = new TreeMap<Long, Ticket>();
+
+	/** The next ticket number. */
+	private long nextTicket = 0;
+
+	/** IDs written beyond the position by the run being continued, removed as they are met again. */
+	private final Set<String> writtenAhead = new HashSet<String>();
+
+	/** Number of records skipped because the run being continued had written them. */
+	private long skipped = 0;
+
+	/** Milliseconds between saves. */
+	private long interval = TimeUnit.SECONDS.toMillis(DEFAULT_INTERVAL_SECONDS);
+
+	/** Time of the last save. */
+	private long lastSave = System.currentTimeMillis();
+
+	/** Flushed before each save. */
+	private final List<Flushable> flushBeforeSave = new ArrayList<Flushable>();
+
+	/**
+	 * Instantiates a new checkpoint for a harvest. Nothing is read from the file unless the checkpoint is loaded.
+	 *
+	 * @param file the checkpoint file
+	 * @param harvest description of the harvest, e.g. the transform type and filters
+	 */
+	public Checkpoint(File file, String harvest) {
+		if (file==null){
+			throw new IllegalArgumentException("file cannot be null");
+		}
+		if (harvest==null){
+			throw new IllegalArgumentException("harvest cannot be null");
+		}
+		this.file = file;
+		this.harvest = harvest;
+	}
+
+	/**
+	 * Loads the checkpoint saved by an earlier run of the same harvest, so that it can be continued. 
+	 *
+	 * @return true if there is a harvest to continue, false if there is no checkpoint or it was for a harvest that completed
+	 */
+	public synchronized boolean load() {
+		if (!file.exists()){
+			log.info("No checkpoint found at " + file + ", starting from the beginning");
+			return false;
+		}
+		Properties saved = new Properties();
+		try (Reader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+			saved.load(reader);
+		} catch (IOException e) {
+			throw new RuntimeException("Could not load checkpoint from " + file, e);
+		}
+		if (!harvest.equals(saved.getProperty(HARVEST))){
+			throw new IllegalArgumentException("Checkpoint " + file + " is for the harvest " + saved.getProperty(HARVEST) 
+												+ ", not " + harvest);
+		}
+		if (Boolean.parseBoolean(saved.getProperty(COMPLETE))){
+			log.info("Checkpoint " + file + " is for a harvest that completed, starting from the beginning");
+			return false;
+		}
+		try {
+			started = Instant.parse(saved.getProperty(STARTED));
+			records = Long.parseLong(saved.getProperty(RECORDS, "0"));
+			failures = Long.parseLong(saved.getProperty(FAILURES, "0"));
+		} catch (Exception e) {
+			throw new IllegalArgumentException("Invalid checkpoint in " + file, e);
+		}
+		position = saved.getProperty(POSITION);
+		for (String name : saved.stringPropertyNames()){
+			if (name.startsWith(WRITTEN)){
+				writtenAhead.add(saved.getProperty(name));
+			}
+		}
+		log.info("Continuing harvest from checkpoint " + file + " after " + records + " records");
+		return true;
+	}
+
+	/**
+	 * Notes that a record has been taken from the iterator, or that the iterator failed to return one.
+	 *
+	 * @param position the iterator position after the record
+	 * @return the ticket to pass to finished() once the record is complete
+	 */
+	public synchronized long taken(String position) {
+		long ticket = nextTicket;
+		nextTicket = nextTicket + 1;
+		open.put(ticket, new Ticket(position));
+		return ticket;
+	}
+
+	/**
+	 * Notes that a record is complete, moving the position on past any records that are now all finished, and 
+	 * saves the checkpoint if it is due.
+	 *
+	 * @param ticket the ticket from taken()
+	 * @param writtenId the record ID if its DiSCO was written or skipped, null if it failed
+	 */
+	public synchronized void finished(long ticket, String writtenId) {
+		Ticket finished = open.get(ticket);
+		if (finished==null){
+			throw new IllegalArgumentException("Unknown checkpoint ticket " + ticket);
+		}
+		finished.done = true;
+		finished.writtenId = writtenId;
+		while (!open.isEmpty() && open.firstEntry().getValue().done){
+			Ticket passed = open.pollFirstEntry().getValue();
+			position = passed.position;
+			records = records + 1;
+			if (passed.writtenId==null){
+				failures = failures + 1;
+			}
+		}
+		if (System.currentTimeMillis()-lastSave>=interval){
+			save(false);
+		}
+	}
+
+	/**
+	 * Checks whether a record's DiSCO was written by the run being continued, after its saved position. 
+	 * Each ID is only reported once.
+	 *
+	 * @param id the record ID
+	 * @return true if the record should be skipped
+	 */
+	public synchronized boolean skip(String id) {
+		if (id!=null && writtenAhead.remove(id)){
+			skipped = skipped + 1;
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Saves the checkpoint. The file is replaced once the new checkpoint is completely written.
+	 *
+	 * @param complete true if the iterator has no more records, in which case the harvest is marked complete 
+	 * 			once every record taken has finished
+	 */
+	public synchronized void save(boolean complete) {
+		for (Flushable flushable : flushBeforeSave){
+			try {
+				flushable.flush();
+			} catch (IOException e) {
+				throw new RuntimeException("Could not flush " + flushable + " before saving checkpoint", e);
+			}
+		}
+		complete = complete && open.isEmpty();
+		Properties checkpoint = new Properties();
+		checkpoint.setProperty(HARVEST, harvest);
+		checkpoint.setProperty(STARTED, started.toString());
+		checkpoint.setProperty(RECORDS, String.valueOf(records));
+		checkpoint.setProperty(FAILURES, String.valueOf(failures));
+		checkpoint.setProperty(COMPLETE, String.valueOf(complete));
+		if (position!=null){
+			checkpoint.setProperty(POSITION, position);
+		}
+		int written = 0;
+		if (!complete){
+			for (Map.Entry<Long, Ticket> entry : open.entrySet()){
+				if (entry.getValue().writtenId!=null){
+					written = written + 1;
+					checkpoint.setProperty(WRITTEN + written, entry.getValue().writtenId);
+				}
+			}
+			for (String id : writtenAhead){
+				written = written + 1;
+				checkpoint.setProperty(WRITTEN + written, id);
+			}
+		}
+
+		File parentFolder = file.getAbsoluteFile().getParentFile();
+		if (parentFolder!=null && !parentFolder.exists()){
+			parentFolder.mkdirs();
+		}
+		Path tmp = new File(file.getPath() + ".tmp").toPath();
+		try {
+			try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, 
+											StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+				Writer writer = new OutputStreamWriter(Channels.newOutputStream(channel), StandardCharsets.UTF_8);
+				checkpoint.store(writer, "Harvest checkpoint");
+				writer.flush();
+				channel.force(true);
+			}
+			try {
+				Files.move(tmp, file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(tmp, file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+		} catch (IOException e) {
+			throw new RuntimeException("Could not save checkpoint to " + file, e);
+		}
+		lastSave = System.currentTimeMillis();
+		if (complete){
+			log.info("Saved checkpoint to " + file + ": harvest complete after " + records + " records");
+		} else {
+			log.debug("Saved checkpoint to " + file + ": " + records + " records, position " + position);
+		}
+	}
+
+	/**
+	 * Gets the iterator position to continue from.
+	 *
+	 * @return the position, or null to start from the beginning
+	 */
+	public synchronized String getPosition() {
+		return position;
+	}
+
+	/**
+	 * Gets the time the harvest started. When a harvest is continued, this is the start of the first run.
+	 *
+	 * @return the start time
+	 */
+	public synchronized Instant getStarted() {
+		return started;
+	}
+
+	/**
+	 * Gets the number of records finished up to the position, including those from earlier runs.
+	 *
+	 * @return the number of records
+	 */
+	public synchronized long getRecordCount() {
+		return records;
+	}
+
+	/**
+	 * Gets the number of records up to the position that failed, including those from earlier runs.
+	 *
+	 * @return the number of failed records
+	 */
+	public synchronized long getFailureCount() {
+		return failures;
+	}
+
+	/**
+	 * Gets the number of records skipped because the run being continued had written them.
+	 *
+	 * @return the number skipped
+	 */
+	public synchronized long getSkippedCount() {
+		return skipped;
+	}
+
+	/**
+	 * Adds something to be flushed before each save, such as a record of the DiSCOs written, so that it is on 
+	 * disk before the checkpoint moves past the records it covers.
+	 *
+	 * @param flushable the flushable
+	 */
+	public synchronized void addFlushBeforeSave(Flushable flushable) {
+		if (flushable==null){
+			throw new IllegalArgumentException("flushable cannot be null");
+		}
+		flushBeforeSave.add(flushable);
+	}
+
+	/**
+	 * Sets the number of seconds between saves. The checkpoint is only saved as records finish, 
+	 * so saves may be further apart than this.
+	 *
+	 * @param seconds the number of seconds
+	 */
+	public synchronized void setIntervalSeconds(int seconds) {
+		if (seconds<0){
+			throw new IllegalArgumentException("seconds cannot be negative");
+		}
+		this.interval = TimeUnit.SECONDS.toMillis(seconds);
+	}
+
+
+	/**
+	 * A record taken from the iterator that is not yet covered by the checkpoint position.
+	 */
+	private static class Ticket {
+
+		/** The iterator position after the record. */
+		private final String position;
+
+		/** True once the record is complete. */
+		private boolean done = false;
+
+		/** The record ID if its DiSCO was written or skipped. */
+		private String writtenId = null;
+
+		/**
+		 * Instantiates a new ticket.
+		 *
+		 * @param position the iterator position after the record
+		 */
+		private Ticket(String position) {
+			this.position = position;
+		}
+	}
+
+}
@@ -0,0 +1,521 @@
+/*******************************************************************************
+ * Copyright 2017 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This software was produced as part of the RMap Project (http://rmap-project.info),
+ * The RMap Project was funded by the Alfred P. Sloan Foundation and is a
+ * collaboration between Data Conservancy, Portico, and IEEE.
+ *******************************************************************************/
+package info.rmapproject.transformer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import org.openrdf.model.BNode;
+import org.openrdf.model.IRI;
+import org.openrdf.model.Model;
+import org.openrdf.model.Statement;
+import org.openrdf.model.Value;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Persistent index of record id to a hash of the content of the DiSCO last written for it, so that a 
+ * re-harvest can skip records whose DiSCO has not changed. The content hash is taken over the sorted 
+ * statements with blank nodes given canonical labels, since the labels they are built with differ each time
+ * a DiSCO is built. Each blank node is labelled with a hash of the statements it is part of, repeated with the 
+ * new labels until no more blank nodes can be told apart, so that swapping e.g. two agents changes the hash. To keep the index compact, record ids are held as a 64-bit hash and content as a 32-bit hash: 
+ * 12 bytes per record on disk and about 16 in memory, in an open addressing table of primitive arrays.
+ * Each change is appended to a journal as it is made, written through to the file as one small write, so that 
+ * it is not lost if the run stops part way. Changes are merged into the index file when it is saved, and the 
+ * journal is replayed when the index is loaded.
+ */
+public class ContentHashIndex implements Closeable {
+
+    /** The log. */
+    private static final Logger log = LoggerFactory.getLogger(ContentHashIndex.class);
+
+	/** Identifies an index file. */
+	private static final int MAGIC = 0x524D4849;
+
+	/** Version of the index file format. */
+	private static final int VERSION = 1;
+
+	/** Suffix added to the index filename to name the journal. */
+	private static final String JOURNAL_SUFFIX = ".journal";
+
+	/** Buffer size for reading and writing the index. */
+	private static final int BUFFER_SIZE = 1 << 20;
+
+	/** Smallest capacity of the table. */
+	private static final int MIN_CAPACITY = 1 << 10;
+
+	/** The file the index is loaded from and saved to. */
+	private final File file;
+
+	/** The journal of changes since the index was last saved. */
+	private final File journalFile;
+
+	/** Record id hashes, 0 for an empty slot. */
+	private long[] keys;
+
+	/** Content hashes, in the same slots as the id hashes. */
+	private int[] values;
+
+	/** Number of records in the index. */
+	private int size = 0;
+
+	/** Stream appending to the journal, opened with the first change. */
+	private DataOutputStream journal = null;
+
+	/** Number of records not in the index before. */
+	private long newCount = 0;
+
+	/** Number of records whose content hash changed. */
+	private long changedCount = 0;
+
+	/** Number of records whose content hash was unchanged. */
+	private long unchangedCount = 0;
+
+	/**
+	 * Instantiates the index, loading the index file and any journal left by an earlier run. 
+	 * Neither file needs to exist yet.
+	 *
+	 * @param file the index file
+	 */
+	public ContentHashIndex(File file) {
+		if (file==null){
+			throw new IllegalArgumentException("file cannot be null");
+		}
+		this.file = file;
+		this.journalFile = new File(file.getPath() + JOURNAL_SUFFIX);
+		long start = System.currentTimeMillis();
+		try {
+			load();
+		} catch (IOException e) {
+			throw new RuntimeException("Could not load DiSCO hash index from " + file, e);
+		}
+		log.info("Loaded DiSCO hash index " + file + " with " + size + " records in " 
+					+ (System.currentTimeMillis()-start) + "ms");
+	}
+
+	/**
+	 * Calculates the content hash of a DiSCO model.
+	 *
+	 * @param model the DiSCO model
+	 * @return the content hash
+	 */
+	public static int hash(Model model) {
+		Map<BNode, String> labels = labelBNodes(model);
+		List<String> statements = new ArrayList<String>(model.size());
+		for (Statement stmt : model){
+			statements.add(normalize(stmt, labels));
+		}
+		Collections.sort(statements);
+		return digest(statements);
+	}
+
+	/**
+	 * Gives each blank node in a model a label that depends only on the statements around it. All blank nodes
+	 * start with the same label. In each round a blank node's label becomes a hash of its label and the sorted 
+	 * statements it is the subject or object of, written with the current labels. Rounds stop once they no 
+	 * longer split blank nodes that had the same label. Blank nodes that cannot be told apart keep the same label.
+	 *
+	 * @param model the DiSCO model
+	 * @return the label for each blank node
+	 */
+	private static Map<BNode, String> labelBNodes(Model model) {
+		Map<BNode, String> labels = new HashMap<BNode, String>();
+		for (Statement stmt : model){
+			if (stmt.getSubject() instanceof BNode){
+				labels.put((BNode) stmt.getSubject(), "");
+			}
+			if (stmt.getObject() instanceof BNode){
+				labels.put((BNode) stmt.getObject(), "");
+			}
+		}
+		int distinct = 1;
+		while (distinct<labels.size()){
+			Map<BNode, List<String>> neighbours = new HashMap<BNode, List<String>>();
+			for (BNode bnode : labels.keySet()){
+				neighbours.put(bnode, new ArrayList<String>());
+			}
+			for (Statement stmt : model){
+				if (stmt.getSubject() instanceof BNode){
+					neighbours.get(stmt.getSubject()).add("> " + term(stmt.getPredicate(), labels) 
+															+ " " + term(stmt.getObject(), labels));
+				}
+				if (stmt.getObject() instanceof BNode){
+					neighbours.get(stmt.getObject()).add("< " + term(stmt.getSubject(), labels) 
+															+ " " + term(stmt.getPredicate(), labels));
+				}
+			}
+			Map<BNode, String> next = new HashMap<BNode, String>();
+			for (Map.Entry<BNode, List<String>> entry : neighbours.entrySet()){
+				List<String> stmts = entry.getValue();
+				Collections.sort(stmts);
+				stmts.add(0, labels.get(entry.getKey()));
+				next.put(entry.getKey(), Long.toHexString(digest(stmts) & 0xffffffffL));
+			}
+			labels = next;
+			int nextDistinct = new HashSet<String>(labels.values()).size();
+			if (nextDistinct==distinct){
+				break;
+			}
+			distinct = nextDistinct;
+		}
+		return labels;
+	}
+
+	/**
+	 * Checks whether the DiSCO for a record has the same content hash as the last one written. 
+	 * Records that are unchanged are counted.
+	 *
+	 * @param id the record id
+	 * @param hash the content hash of the new DiSCO
+	 * @return true if the DiSCO has not changed
+	 */
+	public synchronized boolean isUnchanged(String id, int hash) {
+		int slot = find(idHash(id));
+		if (keys[slot]!=0 && values[slot]==hash){
+			unchangedCount = unchangedCount + 1;
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Records the content hash of the DiSCO written for a record, counting it as new or changed.
+	 *
+	 * @param id the record id
+	 * @param hash the content hash
+	 */
+	public synchronized void put(String id, int hash) {
+		long key = idHash(id);
+		if (set(key, hash)){
+			newCount = newCount + 1;
+		} else {
+			changedCount = changedCount + 1;
+		}
+		try {
+			if (journal==null){
+				journal = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(journalFile.toPath(), 
+								StandardOpenOption.CREATE, StandardOpenOption.APPEND)));
+			}
+			journal.writeLong(key);
+			journal.writeInt(hash);
+			journal.flush();
+		} catch (IOException e) {
+			throw new RuntimeException("Could not write to DiSCO hash index journal " + journalFile, e);
+		}
+	}
+
+	/**
+	 * Saves the index. The file is replaced once the new index is completely written, and the journal 
+	 * is then removed.
+	 */
+	public synchronized void save() {
+		File parentFolder = file.getAbsoluteFile().getParentFile();
+		if (parentFolder!=null && !parentFolder.exists()){
+			parentFolder.mkdirs();
+		}
+		Path tmp = new File(file.getPath() + ".tmp").toPath();
+		try {
+			try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, 
+											StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+				DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), BUFFER_SIZE));
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				out.writeInt(size);
+				for (int i=0; i<keys.length; i++){
+					if (keys[i]!=0){
+						out.writeLong(keys[i]);
+						out.writeInt(values[i]);
+					}
+				}
+				out.flush();
+				channel.force(true);
+			}
+			try {
+				Files.move(tmp, file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(tmp, file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+			if (journal!=null){
+				journal.close();
+				journal = null;
+			}
+			Files.deleteIfExists(journalFile.toPath());
+		} catch (IOException e) {
+			throw new RuntimeException("Could not save DiSCO hash index to " + file, e);
+		}
+		log.info("Saved DiSCO hash index to " + file + " with " + size + " records");
+	}
+
+	/**
+	 * Saves the index and logs the number of new, changed and unchanged records.
+	 *
+	 * @see java.io.Closeable#close()
+	 */
+	@Override
+	public synchronized void close() {
+		save();
+		log.info("DiSCO hash index: " + newCount + " new, " + changedCount + " changed, " 
+					+ unchangedCount + " unchanged");
+	}
+
+	/**
+	 * Gets the number of records in the index.
+	 *
+	 * @return the number of records
+	 */
+	public synchronized int size() {
+		return size;
+	}
+
+	/**
+	 * Gets the number of records put in the index that were not in it before.
+	 *
+	 * @return the number of new records
+	 */
+	public synchronized long getNewCount() {
+		return newCount;
+	}
+
+	/**
+	 * Gets the number of records put in the index with a different content hash.
+	 *
+	 * @return the number of changed records
+	 */
+	public synchronized long getChangedCount() {
+		return changedCount;
+	}
+
+	/**
+	 * Gets the number of records found to be unchanged.
+	 *
+	 * @return the number of unchanged records
+	 */
+	public synchronized long getUnchangedCount() {
+		return unchangedCount;
+	}
+
+	/**
+	 * Loads the index file and replays the journal, if they exist.
+	 *
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	private void load() throws IOException {
+		allocate(MIN_CAPACITY);
+		if (file.exists()){
+			try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file.toPath()), BUFFER_SIZE))) {
+				if (in.readInt()!=MAGIC || in.readInt()!=VERSION){
+					throw new IOException(file + " is not a DiSCO hash index");
+				}
+				int count = in.readInt();
+				allocate(capacityFor(count));
+				for (int i=0; i<count; i++){
+					set(in.readLong(), in.readInt());
+				}
+			}
+		}
+		if (journalFile.exists()){
+			int replayed = 0;
+			try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(journalFile.toPath()), BUFFER_SIZE))) {
+				while (true){
+					long key = in.readLong();
+					set(key, in.readInt());
+					replayed = replayed + 1;
+				}
+			} catch (EOFException e) {
+				//end of the journal, or a change that was only partly written
+			}
+			log.info("Replayed " + replayed + " changes from DiSCO hash index journal " + journalFile);
+		}
+	}
+
+	/**
+	 * Sets the content hash for a record id hash, growing the table if needed.
+	 *
+	 * @param key the record id hash
+	 * @param hash the content hash
+	 * @return true if the record was not in the index before
+	 */
+	private boolean set(long key, int hash) {
+		int slot = find(key);
+		values[slot] = hash;
+		if (keys[slot]!=0){
+			return false;
+		}
+		keys[slot] = key;
+		size = size + 1;
+		if (size>keys.length/4*3){
+			grow();
+		}
+		return true;
+	}
+
+	/**
+	 * Finds the slot holding a record id hash, or the empty slot where it would go.
+	 *
+	 * @param key the record id hash
+	 * @return the slot
+	 */
+	private int find(long key) {
+		int mask = keys.length - 1;
+		int slot = (int) (key ^ (key>>>32)) & mask;
+		while (keys[slot]!=0 && keys[slot]!=key){
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+
+	/**
+	 * Doubles the capacity of the table.
+	 */
+	private void grow() {
+		long[] oldKeys = keys;
+		int[] oldValues = values;
+		allocate(oldKeys.length * 2);
+		for (int i=0; i<oldKeys.length; i++){
+			if (oldKeys[i]!=0){
+				int slot = find(oldKeys[i]);
+				keys[slot] = oldKeys[i];
+				values[slot] = oldValues[i];
+			}
+		}
+	}
+
+	/**
+	 * Replaces the table with an empty one of the capacity given.
+	 *
+	 * @param capacity the capacity, a power of 2
+	 */
+	private void allocate(int capacity) {
+		keys = new long[capacity];
+		values = new int[capacity];
+		size = 0;
+	}
+
+	/**
+	 * Gets a table capacity that holds the number of records given without growing.
+	 *
+	 * @param count the number of records
+	 * @return the capacity, a power of 2
+	 */
+	private static int capacityFor(int count) {
+		int capacity = MIN_CAPACITY;
+		while (capacity/4*3<count+1){
+			capacity = capacity * 2;
+		}
+		return capacity;
+	}
+
+	/**
+	 * Calculates the 64-bit hash of a record id. 0 marks an empty slot, so is never returned.
+	 *
+	 * @param id the record id
+	 * @return the id hash
+	 */
+	private static long idHash(String id) {
+		byte[] md5 = md5().digest(id.getBytes(StandardCharsets.UTF_8));
+		long key = 0;
+		for (int i=0; i<8; i++){
+			key = (key << 8) | (md5[i] & 0xff);
+		}
+		return (key==0) ? 1 : key;
+	}
+
+	/**
+	 * Calculates the 32-bit hash of a sorted list of normalized statements.
+	 *
+	 * @param statements the statements
+	 * @return the content hash
+	 */
+	private static int digest(List<String> statements) {
+		MessageDigest md5 = md5();
+		for (String stmt : statements){
+			md5.update(stmt.getBytes(StandardCharsets.UTF_8));
+			md5.update((byte) '\n');
+		}
+		byte[] hash = md5.digest();
+		return ((hash[0] & 0xff) << 24) | ((hash[1] & 0xff) << 16) | ((hash[2] & 0xff) << 8) | (hash[3] & 0xff);
+	}
+
+	/**
+	 * Writes a statement as a line of text, with each blank node written with its canonical label.
+	 *
+	 * @param stmt the statement
+	 * @param labels the blank node labels
+	 * @return the normalized statement
+	 */
+	private static String normalize(Statement stmt, Map<BNode, String> labels) {
+		return term(stmt.getSubject(), labels) + " " + term(stmt.getPredicate(), labels) 
+					+ " " + term(stmt.getObject(), labels);
+	}
+
+	/**
+	 * Writes an RDF term in N-Triples style, with blank nodes written with their canonical label.
+	 *
+	 * @param value the term
+	 * @param labels the blank node labels
+	 * @return the term as text
+	 */
+	private static String term(Value value, Map<BNode, String> labels) {
+		if (value instanceof BNode){
+			return "_:" + labels.get(value);
+		}
+		if (value instanceof IRI){
+			return "<" + value.stringValue() + ">";
+		}
+		return value.toString();
+	}
+
+	/**
+	 * Creates an MD5 digest.
+	 *
+	 * @return the digest
+	 */
+	private static MessageDigest md5() {
+		try {
+			return MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			//every JVM is required to support MD5
+			throw new RuntimeException("MD5 is not available", e);
+		}
+	}
+
+}
@@ -0,0 +1,133 @@
+/*******************************************************************************
+ * Copyright 2017 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This software was produced as part of the RMap Project (http://rmap-project.info),
+ * The RMap Project was funded by the Alfred P. Sloan Foundation and is a
+ * collaboration between Data Conservancy, Portico, and IEEE.
+ *******************************************************************************/
+package info.rmapproject.transformer;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Records the IDs of records that could not be retrieved, so that they can be tried again later. 
+ * Each record is written as a comment line with the time and reason, followed by a line with the ID, 
+ * so the file can be passed to -idfile to replay the failed records. Records without an ID are written
+ * as a comment only. Nothing is written until a file is opened. One instance is passed to the 
+ * OSF or SHARE iterator of a run.
+ */
+public class DeadLetterFile implements Closeable {
+
+    /** The log. */
+    private static final Logger log = LoggerFactory.getLogger(DeadLetterFile.class);
+
+	/** The file, null if none is open. */
+	private File file = null;
+
+	/** Writer for the file, null if none is open. */
+	private Writer writer = null;
+
+	/** Number of records added. */
+	private int count = 0;
+
+	/**
+	 * Opens a file to record failures in. Records are appended if the file already exists.
+	 *
+	 * @param file the file
+	 */
+	public synchronized void open(File file) {
+		close();
+		try {
+			File parentFolder = file.getAbsoluteFile().getParentFile();
+			if (parentFolder!=null && !parentFolder.exists()){
+				parentFolder.mkdirs();
+			}
+			this.writer = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8, 
+								StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+			this.file = file;
+			this.count = 0;
+		} catch (IOException e) {
+			throw new RuntimeException("Could not open dead letter file " + file, e);
+		}
+	}
+
+	/**
+	 * Records a record that could not be retrieved. Does nothing if no file is open.
+	 *
+	 * @param id the record ID, or null if it is not known
+	 * @param e the exception
+	 */
+	public synchronized void add(String id, Throwable e) {
+		if (writer==null){
+			return;
+		}
+		String reason = (e.getMessage()==null) ? e.getClass().getName() : e.getMessage();
+		for (Throwable cause = e.getCause(); cause!=null; cause = cause.getCause()){
+			if (cause.getMessage()!=null){
+				reason = reason + ": " + cause.getMessage();
+			}
+		}
+		try {
+			writer.write("# " + Instant.now() + " " + reason.replaceAll("[\r\n]+", " ") + "\n");
+			if (id!=null){
+				writer.write(id + "\n");
+			}
+			writer.flush();
+			count = count + 1;
+		} catch (IOException ioe) {
+			log.error("Could not write record " + id + " to dead letter file " + file, ioe);
+		}
+	}
+
+	/**
+	 * Gets the number of records added since the file was opened.
+	 *
+	 * @return the count
+	 */
+	public synchronized int getCount() {
+		return count;
+	}
+
+	/**
+	 * Closes the file, if one is open.
+	 */
+	public synchronized void close() {
+		if (writer==null){
+			return;
+		}
+		try {
+			writer.close();
+		} catch (IOException e) {
+			log.error("Could not close dead letter file " + file, e);
+		}
+		if (count>0){
+			log.warn(count + " records could not be retrieved and were written to " + file);
+		}
+		writer = null;
+		file = null;
+	}
+
+}
@@ -24,7 +24,9 @@ import info.rmapproject.transformer.vocabulary.Terms;
 
 import java.net.URI;
 import java.util.Date;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 import org.openrdf.model.BNode;
 import org.openrdf.model.IRI;
@@ -37,17 +39,26 @@ import org.openrdf.model.impl.LinkedHashModel;
 import org.openrdf.model.impl.SimpleValueFactory;
 import org.openrdf.model.vocabulary.DCTERMS;
 import org.openrdf.model.vocabulary.RDF;
+import org.openrdf.rio.RDFHandler;
+import org.openrdf.rio.RDFHandlerException;
 
 /**
  * Abstract class for DiSCO Builders. Each data source will implement a custom DiSCO builder
- * for that specific data source.
+ * for that specific data source. Statements are collected into a Model by getModel(), or can be 
+ * streamed to an RDFHandler as they are generated using writeTo().
  * @author khanson
  */
-public abstract class DiscoBuilder {
+public abstract class DiscoBuilder implements DiscoSource {
 
 	/** The model  (list of triples that form the DiSCO Graph). */
 	protected Model model;	
 	
+	/** Where statements are forwarded instead of the model while writeTo() is running, null otherwise. */
+	private StatementStream stream = null;
+	
+	/** Number of distinct statements added so far. Builders should use this rather than model.size() so they also work when streaming. */
+	protected int stmtCount = 0;
+	
 	/** The temporary DiSCO ID. */
 	protected BNode discoId;
 	
@@ -114,7 +125,46 @@ public abstract class DiscoBuilder {
 	public abstract void setRecord(Object record);
 
 	/**
-	 * If all values are not null add a statement to the model .
+	 * Builds the DiSCO, passing each statement to the handler as it is generated rather than collecting 
+	 * the statements into a Model. As with the Model, a statement that has already been added is not 
+	 * passed on again, so the statements written are exactly those getModel() would return.
+	 * A builder can only write one DiSCO at a time.
+	 *
+	 * @param handler the RDF handler
+	 * @throws IllegalStateException if the builder is already writing
+	 */
+	@Override
+	public void writeTo(RDFHandler handler) {
+		if (handler==null){
+			throw new IllegalArgumentException("handler cannot be null");
+		}
+		if (stream!=null){
+			throw new IllegalStateException("DiSCO builder is already writing");
+		}
+		stream = new StatementStream(handler);
+		try {
+			handler.startRDF();
+			getModel();
+			handler.endRDF();
+		} catch (RDFHandlerException e) {
+			throw new RuntimeException("Exception thrown writing DiSCO statements", e);
+		} finally {
+			stream = null;
+		}
+	}
+	
+	/**
+	 * Gets the DiSCO ID - the blank node that is the subject of the DiSCO header statements.
+	 *
+	 * @return the DiSCO ID
+	 */
+	public BNode getDiscoId() {
+		return this.discoId;
+	}
+
+	/**
+	 * If all values are not null add a statement to the model, or pass it to the handler if one is set.
+	 * Duplicate statements are only added or passed on once.
 	 *
 	 * @param subject the subject
 	 * @param predicate the predicate
@@ -123,7 +173,13 @@ public abstract class DiscoBuilder {
 	protected void addStmt(Resource subject, IRI predicate, Value object){
 		if (subject!=null && predicate!=null && object!=null){
 			Statement stmt = factory.createStatement(subject, predicate, object);
-			model.add(stmt);
+			if (stream!=null){
+				if (stream.add(stmt)){
+					stmtCount = stmtCount + 1;
+				}
+			} else if (model.add(stmt)){
+				stmtCount = stmtCount + 1;
+			}
 		}
 	}	
 	
@@ -255,4 +311,43 @@ public abstract class DiscoBuilder {
 		addLiteralStmt(discoId, DCTERMS.DESCRIPTION, discoDescription);
 	}
 
+	/**
+	 * The handler for one call to writeTo(), with the statements already passed to it.
+	 */
+	private static class StatementStream {
+
+		/** The RDF handler. */
+		private final RDFHandler handler;
+
+		/** Statements already passed to the handler. */
+		private final Set<Statement> written = new HashSet<Statement>();
+
+		/**
+		 * Instantiates a new statement stream.
+		 *
+		 * @param handler the RDF handler
+		 */
+		private StatementStream(RDFHandler handler) {
+			this.handler = handler;
+		}
+
+		/**
+		 * Passes a statement to the handler unless it has already been passed on.
+		 *
+		 * @param stmt the statement
+		 * @return true if the statement was passed on
+		 */
+		private boolean add(Statement stmt) {
+			if (!written.add(stmt)){
+				return false;
+			}
+			try {
+				handler.handleStatement(stmt);
+			} catch (RDFHandlerException e) {
+				throw new RuntimeException("Exception thrown writing DiSCO statement", e);
+			}
+			return true;
+		}
+	}
+
 }
\ No newline at end of file
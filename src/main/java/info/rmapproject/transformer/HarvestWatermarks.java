@@ -0,0 +1,125 @@
+/*******************************************************************************
+ * Copyright 2017 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This software was produced as part of the RMap Project (http://rmap-project.info),
+ * The RMap Project was funded by the Alfred P. Sloan Foundation and is a
+ * collaboration between Data Conservancy, Portico, and IEEE.
+ *******************************************************************************/
+package info.rmapproject.transformer;
+
+import info.rmapproject.transformer.model.RecordType;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.Properties;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Holds the high-water mark of each record type for incremental harvests: the time the last complete 
+ * run for that type started. A later run only needs the records modified since then. The marks are 
+ * kept in a properties file, one line per record type, e.g. osf_node=2017-06-01T02:00:00Z, which 
+ * can be edited to harvest again from an earlier time.
+ */
+public class HarvestWatermarks {
+
+    /** The log. */
+    private static final Logger log = LoggerFactory.getLogger(HarvestWatermarks.class);
+
+	/** The file the marks are loaded from and saved to. */
+	private final File file;
+
+	/** The marks, by record type value. */
+	private final Properties marks = new Properties();
+
+	/**
+	 * Instantiates the high-water marks, loading any saved in the file. The file does not need to exist yet.
+	 *
+	 * @param file the watermark file
+	 */
+	public HarvestWatermarks(File file) {
+		if (file==null){
+			throw new IllegalArgumentException("file cannot be null");
+		}
+		this.file = file;
+		if (file.exists()){
+			try (Reader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+				marks.load(reader);
+			} catch (IOException e) {
+				throw new RuntimeException("Could not load harvest watermarks from " + file, e);
+			}
+		}
+	}
+
+	/**
+	 * Gets the high-water mark for a record type.
+	 *
+	 * @param recordType the record type
+	 * @return the start of the last complete run, or null if there hasn't been one
+	 */
+	public synchronized Instant get(RecordType recordType) {
+		String mark = marks.getProperty(recordType.value());
+		if (mark==null || mark.trim().length()==0){
+			return null;
+		}
+		try {
+			return Instant.parse(mark.trim());
+		} catch (DateTimeParseException e) {
+			throw new IllegalArgumentException("Invalid watermark for " + recordType.value() + " in " + file + ": " + mark, e);
+		}
+	}
+
+	/**
+	 * Sets the high-water mark for a record type. The change is not kept until the marks are saved.
+	 *
+	 * @param recordType the record type
+	 * @param mark the start of the run that completed
+	 */
+	public synchronized void set(RecordType recordType, Instant mark) {
+		if (mark==null){
+			throw new IllegalArgumentException("mark cannot be null");
+		}
+		marks.setProperty(recordType.value(), mark.toString());
+	}
+
+	/**
+	 * Saves the marks. The file is replaced once the new marks are completely written.
+	 */
+	public synchronized void save() {
+		File parentFolder = file.getAbsoluteFile().getParentFile();
+		if (parentFolder!=null && !parentFolder.exists()){
+			parentFolder.mkdirs();
+		}
+		File tmp = new File(file.getPath() + ".tmp");
+		try {
+			try (Writer writer = Files.newBufferedWriter(tmp.toPath(), StandardCharsets.UTF_8)) {
+				marks.store(writer, "Start of the last complete harvest for each record type");
+			}
+			Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		} catch (IOException e) {
+			throw new RuntimeException("Could not save harvest watermarks to " + file, e);
+		}
+		log.info("Saved harvest watermarks to " + file);
+	}
+
+}
@@ -19,23 +19,53 @@
  *******************************************************************************/
 package info.rmapproject.transformer;
 
-import java.util.Iterator;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.UnsupportedEncodingException;
+import java.net.URISyntaxException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.ChronoUnit;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
 
 import org.kohsuke.args4j.Argument;
 import org.kohsuke.args4j.CmdLineException;
 import org.kohsuke.args4j.CmdLineParser;
 import org.kohsuke.args4j.Option;
 import org.kohsuke.args4j.ParserProperties;
+import org.openrdf.rio.RDFFormat;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import info.rmapproject.transformer.model.RecordDTO;
+import info.rmapproject.transformer.model.DiscoFile.Durability;
 import info.rmapproject.transformer.model.RecordType;
 import info.rmapproject.transformer.model.TransformType;
 import info.rmapproject.transformer.osf.OsfClientService;
+import info.rmapproject.transformer.osf.OsfHttpClient;
+import info.rmapproject.transformer.osf.OsfIdListIterator;
 import info.rmapproject.transformer.osf.OsfNodeApiIterator;
+import info.rmapproject.transformer.osf.OsfRateLimiter;
 import info.rmapproject.transformer.osf.OsfRegistrationApiIterator;
+import info.rmapproject.transformer.osf.OsfRelationshipResolver;
 import info.rmapproject.transformer.osf.OsfUserApiIterator;
+import info.rmapproject.transformer.osf.ParentAccessCache;
+import info.rmapproject.transformer.output.ArchiveBundleOutput;
+import info.rmapproject.transformer.output.ArchiveBundleOutput.ArchiveFormat;
+import info.rmapproject.transformer.output.AsyncDiscoFileOutput;
+import info.rmapproject.transformer.output.BundleOutput;
+import info.rmapproject.transformer.output.DiscoFileOutput;
+import info.rmapproject.transformer.output.DiscoOutput;
+import info.rmapproject.transformer.output.NQuadsBundleOutput;
+import info.rmapproject.transformer.output.ShardedLayout;
 import info.rmapproject.transformer.share.ShareApiTransformIterator;
 import info.rmapproject.transformer.share.ShareLocalTransformIterator;
 
@@ -58,6 +88,36 @@ public class RMapTransformerCLI {
 	/** The default number of records to retreive, where relevant. */
 	private static final Integer DEFAULT_NUM_RECORDS = 50;
 	
+	/** The default number of worker threads. */
+	private static final Integer DEFAULT_NUM_WORKERS = 1;
+	
+	/** The default number of threads per pipeline stage. */
+	private static final Integer DEFAULT_STAGE_THREADS = 1;
+	
+	/** The default number of concurrent OSF record requests. */
+	private static final Integer DEFAULT_FETCH_THREADS = 1;
+	
+	/** The default number of pages of OSF IDs requested ahead of the current page. */
+	private static final Integer DEFAULT_PREFETCH_DEPTH = 1;
+	
+	/** The default capacity of the queues between pipeline stages. */
+	private static final Integer DEFAULT_QUEUE_SIZE = 100;
+	
+	/** The default maximum size of a bundle in MB. */
+	private static final Integer DEFAULT_BUNDLE_MB = 512;
+	
+	/** The default number of hours an OSF parent access result is kept. */
+	private static final Integer DEFAULT_PARENT_CACHE_HOURS = 24;
+	
+	/** The OSF API filter on date modified, used for incremental harvests. */
+	private static final String MODIFIED_FILTER = "filter[date_modified]";
+	
+	/** Minutes before the harvest watermark that an incremental harvest starts from. */
+	private static final long WATERMARK_OVERLAP_MINUTES = 10;
+	
+	/** The default maximum size of the OSF response cache in MB. */
+	private static final Integer DEFAULT_HTTP_CACHE_MB = 1024;
+	
     /** Type of import e.g. SHARE, OSF_REGISTRATION, OSF_USER */
     @Argument(index = 0, metaVar = "Transform type", usage = "Type of transform. Options available: "
     														+ "share, "
@@ -87,17 +147,183 @@ public class RMapTransformerCLI {
     @Option(name = "-o", aliases = {"-outputpath"}, usage = "Path of output files(s) for DiSCOs")
     public String outputpath = ".";
     
+    /**  RDF format for DiSCOs. */
+    @Option(name = "-of", aliases = {"-outputformat"}, usage = "RDF format for DiSCOs. Options available: turtle, ntriples, nquads, rdfxml, "
+    		+ "jsonld, binary. DiSCO filenames take the format's extension. (default: turtle, with the .rdf extension)")
+    public String outputFormat = "";
+    
+    /**  Stream DiSCO statements to the output. */
+    @Option(name = "-sm", aliases = {"-streaming"}, usage = "Write DiSCO statements as they are generated instead of building "
+    		+ "a model for each record first. Duplicate statements are not removed. Not used with -p")
+    public boolean streaming = false;
+    
     /**  Identifier of record to import. */
     @Option(name = "-id", aliases = {"-identifier"}, usage = "ID to import - supports import of a single record (valid for OSF requests only)")
     public String identifier = "";
 
+    /**  File of identifiers of records to import. */
+    @Option(name = "-idf", aliases = {"-idfile"}, usage = "File listing IDs to import, one per line, or - to read them from stdin. "
+    		+ "Records are requested concurrently using -ft threads (valid for OSF requests only)")
+    public String idFile = "";
+
+    /**  File of high-water marks for incremental harvests. */
+    @Option(name = "-inc", aliases = {"-incremental"}, usage = "File holding the start time of the last complete run for each record type. "
+    		+ "Only records modified since then are requested, and the time is updated when every record has been transformed "
+    		+ "(valid for osf_node and osf_registration API transforms only). (default: all records matching -f are requested)")
+    public String incremental = "";
+
+    /**  File the position of the harvest is saved to. */
+    @Option(name = "-cp", aliases = {"-checkpoint"}, usage = "File to save the position of the harvest to as records are transformed, "
+    		+ "so that a run that stops part way can be continued with -resume (not valid with -id, -bundle or -asyncwrite). "
+    		+ "(default: no checkpoint)")
+    public String checkpointFile = "";
+
+    /**  Continue the harvest from the checkpoint. */
+    @Option(name = "-resume", usage = "Continue the harvest from the position saved in the -checkpoint file, skipping records already "
+    		+ "written. If there is no checkpoint, or it is for a harvest that completed, the harvest starts from the beginning")
+    public boolean resume = false;
+
+    /**  File holding the content hash of each DiSCO written. */
+    @Option(name = "-su", aliases = {"-skipunchanged"}, usage = "File holding a hash of the content of the last DiSCO written for "
+    		+ "each record. Records whose DiSCO has not changed since are skipped, and the file is updated with new and changed "
+    		+ "DiSCOs (not valid with -asyncwrite). (default: every DiSCO is written)")
+    public String skipUnchanged = "";
+
     /**  DiSCO description. */
     @Option(name = "-desc", aliases = {"-discodesc"}, usage = "Custom Description for DiSCO")
     public String discoDescription = "";
     
     /**  File extension for DiSCO metadata file(s). */
-    @Option(name = "-n", aliases = {"-numrecords"}, usage = "Maximum number of records to be converted. (default: 50)")
-    public Integer numrecords = DEFAULT_NUM_RECORDS;
+    @Option(name = "-n", aliases = {"-numrecords"}, usage = "Maximum number of records to be converted. (default: 50, or all IDs with -idfile)")
+    public Integer numrecords = null;
+
+    /**  Number of worker threads used to transform records. */
+    @Option(name = "-w", aliases = {"-workers"}, usage = "Number of worker threads used to transform records in parallel. (default: 1)")
+    public Integer numWorkers = DEFAULT_NUM_WORKERS;
+
+    /**  Number of OSF records to request concurrently. */
+    @Option(name = "-ft", aliases = {"-fetchthreads"}, usage = "Number of records on each page of OSF IDs to request concurrently. "
+    		+ "Uses virtual threads where the JVM supports them (valid for OSF requests only). (default: 1)")
+    public Integer fetchThreads = DEFAULT_FETCH_THREADS;
+
+    /**  Number of pages of OSF IDs to request ahead of the current page. */
+    @Option(name = "-pd", aliases = {"-prefetchdepth"}, usage = "Number of pages of OSF IDs to request in the background ahead of the "
+    		+ "page being processed, 0 to request each page when it is needed (valid for OSF requests only). (default: 1)")
+    public Integer prefetchDepth = DEFAULT_PREFETCH_DEPTH;
+
+    /**  Maximum number of OSF requests per second. */
+    @Option(name = "-rl", aliases = {"-ratelimit"}, usage = "Maximum number of OSF API requests per second. The rate adapts to the "
+    		+ "API's response times and 429/503 responses up to this limit (valid for OSF requests only). (default: 50)")
+    public Double rateLimit = OsfRateLimiter.DEFAULT_MAX_RATE;
+
+    /**  Maximum number of attempts for each API request. */
+    @Option(name = "-ra", aliases = {"-retryattempts"}, usage = "Maximum number of attempts for an API request that fails with a temporary "
+    		+ "error, such as a network failure or a 5xx response. Retries wait longer each time. (default: 3)")
+    public Integer retryAttempts = RetryPolicy.DEFAULT_MAX_ATTEMPTS;
+
+    /**  File for records that could not be retrieved. */
+    @Option(name = "-dl", aliases = {"-deadletter"}, usage = "File to record the IDs of records that could not be retrieved. "
+    		+ "Records are appended, and the file can be passed to -idfile to try them again. (default: not recorded)")
+    public String deadLetterFile = "";
+
+    /**  Run the transform as a staged pipeline. */
+    @Option(name = "-p", aliases = {"-pipeline"}, usage = "Run fetch, build, serialize and write as separate stages connected by bounded queues")
+    public boolean pipeline = false;
+
+    /**  Number of pipeline threads building DiSCO models. */
+    @Option(name = "-bt", aliases = {"-buildthreads"}, usage = "Number of pipeline threads building DiSCO models. (default: 1)")
+    public Integer buildThreads = DEFAULT_STAGE_THREADS;
+
+    /**  Number of pipeline threads serializing DiSCO RDF. */
+    @Option(name = "-st", aliases = {"-serializethreads"}, usage = "Number of pipeline threads serializing DiSCO RDF. (default: 1)")
+    public Integer serializeThreads = DEFAULT_STAGE_THREADS;
+
+    /**  Number of pipeline threads writing DiSCO files. */
+    @Option(name = "-wt", aliases = {"-writethreads"}, usage = "Number of pipeline threads writing DiSCO files. (default: 1)")
+    public Integer writeThreads = DEFAULT_STAGE_THREADS;
+
+    /**  Capacity of the queues between pipeline stages. */
+    @Option(name = "-qs", aliases = {"-queuesize"}, usage = "Number of records each pipeline queue can hold. (default: 100)")
+    public Integer queueSize = DEFAULT_QUEUE_SIZE;
+
+    /**  Write DiSCO files from a background writer thread. */
+    @Option(name = "-aw", aliases = {"-asyncwrite"}, usage = "Write DiSCO files in batches from a background thread, so transform threads "
+    		+ "only wait for the disk when -awq DiSCOs are already waiting (not valid with -b)")
+    public boolean asyncWrite = false;
+
+    /**  Capacity of the background writer queue. */
+    @Option(name = "-awq", aliases = {"-asyncwritequeue"}, usage = "Number of DiSCOs that can wait for the background writer. (default: 1000)")
+    public Integer asyncWriteQueue = AsyncDiscoFileOutput.DEFAULT_QUEUE_CAPACITY;
+
+    /**  How far DiSCO files are synced to disk. */
+    @Option(name = "-dur", aliases = {"-durability"}, usage = "How far each DiSCO file is synced to disk once written. Options available: "
+    		+ "none, file (the file contents), dir (the file and its folder entry). With -aw, folders are synced once per batch "
+    		+ "(not valid with -b). (default: none)")
+    public String durability = "none";
+
+    /**  Levels of hashed subfolders DiSCO files are written to. */
+    @Option(name = "-sd", aliases = {"-sharddepth"}, usage = "Number of levels of subfolders, named from a hash of the record ID, to "
+    		+ "spread DiSCO files across. A manifest.tsv of record ID to file path is written to the output path (not valid with -b). "
+    		+ "(default: 0, all files in the output path)")
+    public Integer shardDepth = 0;
+
+    /**  Hex characters in each hashed subfolder name. */
+    @Option(name = "-sw", aliases = {"-shardwidth"}, usage = "Number of hex characters in each subfolder name used by -sd, giving "
+    		+ "16, 256 or 4096 subfolders per level for 1, 2 or 3. (default: 2)")
+    public Integer shardWidth = ShardedLayout.DEFAULT_WIDTH;
+
+    /**  Bundle format, when DiSCOs are appended to bundle files. */
+    @Option(name = "-b", aliases = {"-bundle"}, usage = "Append DiSCOs to rolling bundle files instead of writing one file per DiSCO. "
+    		+ "Options available: nquads, tar, zip. An index of record id to bundle and offset is written alongside. (default: no bundles)")
+    public String bundle = "";
+
+    /**  Maximum number of DiSCOs per bundle. */
+    @Option(name = "-br", aliases = {"-bundlerecords"}, usage = "Maximum number of DiSCOs in each bundle. (default: 10000)")
+    public Integer bundleRecords = BundleOutput.DEFAULT_MAX_RECORDS;
+
+    /**  Maximum bundle size in MB. */
+    @Option(name = "-bs", aliases = {"-bundlesize"}, usage = "Maximum size of each bundle in MB, before compression. (default: 512)")
+    public Integer bundleSize = DEFAULT_BUNDLE_MB;
+
+    /**  Gzip bundles. */
+    @Option(name = "-gz", aliases = {"-gzip"}, usage = "Gzip compress nquads and tar bundles")
+    public boolean gzip = false;
+
+    /**  File the OSF parent access cache is loaded from and saved to. */
+    @Option(name = "-pc", aliases = {"-parentcache"}, usage = "File to load and save the results of OSF parent accessibility checks, "
+    		+ "so that later runs can skip them (valid for osf_node and osf_registration only). (default: results are not saved)")
+    public String parentCache = "";
+
+    /**  Hours an OSF parent access result is kept. */
+    @Option(name = "-pch", aliases = {"-parentcachehours"}, usage = "Number of hours the result of an OSF parent accessibility check "
+    		+ "is kept before the parent is checked again. (default: 24)")
+    public Integer parentCacheHours = DEFAULT_PARENT_CACHE_HOURS;
+
+    /**  Folder for the OSF response cache. */
+    @Option(name = "-hc", aliases = {"-httpcache"}, usage = "Folder to cache OSF API responses in, so that later runs only need to check "
+    		+ "whether records have changed (valid for OSF requests only). (default: responses are not cached)")
+    public String httpCache = "";
+
+    /**  Maximum size of the OSF response cache in MB. */
+    @Option(name = "-hcs", aliases = {"-httpcachesize"}, usage = "Maximum size of the OSF response cache in MB. The least recently "
+    		+ "used responses are removed beyond this. (default: 1024)")
+    public Integer httpCacheSize = DEFAULT_HTTP_CACHE_MB;
+
+    /**  Only use cached OSF responses. */
+    @Option(name = "-off", aliases = {"-offline"}, usage = "Use only OSF API responses in the cache set by -hc, without contacting the API. "
+    		+ "Records, and parent accessibility checks not found in the -pc file, fail if they are not in the cache")
+    public boolean offline = false;
+
+    /**  Do not ask the OSF API to embed related resources. */
+    @Option(name = "-ne", aliases = {"-noembed"}, usage = "Request the contributors and children of OSF Nodes and Registrations "
+    		+ "separately rather than embedded in the record's response (valid for OSF requests only)")
+    public boolean noEmbed = false;
+
+    /**  Request the related resources of OSF records in the background. */
+    @Option(name = "-rp", aliases = {"-relatedprefetch"}, usage = "Request the contributors, children, identifiers, files and "
+    		+ "institutions of each OSF record in the background as soon as the record is retrieved, rather than one at a time "
+    		+ "as the record is read (valid for OSF requests only)")
+    public boolean relatedPrefetch = false;
 
     /**  Request for help/usage documentation. */
     @Option(name = "-h", aliases = {"-help", "--help"}, usage = "Print help message")
@@ -157,27 +383,96 @@ public class RMapTransformerCLI {
 	 */
 	public void run() throws Exception{
 
-		Integer totalTransformed = 0;
+		Integer totalTransformed;
 		TransformType type = TransformType.getVal(transformType, source);
 		if (type==null){
 			log.error("The transform type " + transformType + " is not available from source " + source);
 			throw new RuntimeException("The transform type " + transformType + " is not available.");			
 		}
 		RecordType recordType = type.recordType();
+		if (identifier.length()>0 && idFile.length()>0){
+			throw new IllegalArgumentException("Use either -id or -idfile, not both");
+		}
+		if (incremental.length()>0 
+				&& (identifier.length()>0 || idFile.length()>0 
+					|| (type!=TransformType.OSF_NODES_API && type!=TransformType.OSF_REGISTRATIONS_API))){
+			throw new IllegalArgumentException("-incremental is only available for osf_node and osf_registration API transforms");
+		}
+		if (resume && checkpointFile.length()==0){
+			throw new IllegalArgumentException("-resume requires a -checkpoint file");
+		}
+		if (checkpointFile.length()>0 && (identifier.length()>0 || bundle.length()>0 || asyncWrite)){
+			//the checkpoint must not get ahead of DiSCOs that are still buffered by the output
+			throw new IllegalArgumentException("-checkpoint cannot be used with -id, -bundle or -asyncwrite");
+		}
+		if (skipUnchanged.length()>0 && asyncWrite){
+			//a hash must not be recorded for a DiSCO that the background writer may still fail to write
+			throw new IllegalArgumentException("-skipunchanged cannot be used with -asyncwrite");
+		}
+		Integer maxRecords = numrecords;
+		if (maxRecords==null){
+			maxRecords = (idFile.length()>0) ? Integer.MAX_VALUE : DEFAULT_NUM_RECORDS;
+		}
+		
+		OsfRateLimiter limiter = new OsfRateLimiter();
+		limiter.setMaxRate(rateLimit);
+		OsfHttpClient httpClient = new OsfHttpClient(limiter);
+		if (httpCache.length()>0){
+			httpClient.setCache(new File(httpCache), httpCacheSize * 1024L * 1024L);
+		}
+		httpClient.setOffline(offline);
+		httpClient.setEmbed(!noEmbed);
+		httpClient.getRelationshipResolver().setPrefetch(relatedPrefetch 
+				? OsfRelationshipResolver.DEFAULT_PREFETCH : Collections.<String>emptyList());
+		RetryPolicy retryPolicy = new RetryPolicy();
+		retryPolicy.setMaxAttempts(offline ? 1 : retryAttempts);
+		try (DeadLetterFile deadLetters = new DeadLetterFile();
+				ContentHashIndex hashIndex = (skipUnchanged.length()>0) ? new ContentHashIndex(new File(skipUnchanged)) : null) {
+			if (deadLetterFile.length()>0){
+				deadLetters.open(new File(deadLetterFile));
+			}
+			try {
+				totalTransformed = transformRecords(type, maxRecords, httpClient, retryPolicy, deadLetters, hashIndex);
+			} finally {
+				httpClient.flushCache();
+			}
+		}
+		log.info("Transform complete! " + totalTransformed.toString() + " records processed.");
+		
+	}
+	
+	/**
+	 * Transforms the records selected by the command options.
+	 *
+	 * @param type the transform type
+	 * @param maxRecords the maximum number of records to transform
+	 * @param httpClient the HTTP client for OSF requests
+	 * @param retryPolicy the retry policy for API requests
+	 * @param deadLetters where records that could not be retrieved are recorded
+	 * @param hashIndex the content hash index, null to write every DiSCO
+	 * @return the number of records transformed
+	 * @throws Exception the exception
+	 */
+	private Integer transformRecords(TransformType type, Integer maxRecords, OsfHttpClient httpClient, 
+			RetryPolicy retryPolicy, DeadLetterFile deadLetters, ContentHashIndex hashIndex) throws Exception {
+		RecordType recordType = type.recordType();
+		OsfClientService osfClient = null;
+		if (recordType!=RecordType.SHARE){
+			osfClient = new OsfClientService(httpClient, retryPolicy, deadLetters);
+		}
 		
 		if (identifier.length()>0){ //single identifier transform
-			OsfClientService osf = new OsfClientService();
 			Object record = null;
 			
 			switch (recordType) {
 			case OSF_NODE:
-				record = osf.getNode(identifier);
+				record = osfClient.getNode(identifier);
 				break;
 			case OSF_REGISTRATION:
-				record = osf.getRegistration(identifier);
+				record = osfClient.getRegistration(identifier);
 				break;
 			case OSF_USER:
-				record = osf.getUser(identifier);
+				record = osfClient.getUser(identifier);
 				break;
 			default:
 				break;
@@ -185,39 +480,275 @@ public class RMapTransformerCLI {
 			
 			if (record!=null){
 				RecordDTO dto = new RecordDTO(record, identifier, recordType);
-				Transformer transformer = new Transformer(outputpath, discoDescription);
-				transformer.transform(dto);	
-				totalTransformed = 1;
+				Transformer transformer = createTransformer();
+				transformer.setHashIndex(hashIndex);
+				try (DiscoOutput output = createDiscoOutput()) {
+					transformer.setDiscoOutput(output);
+					transformer.transform(dto);	
+				}
+				return 1;
 			} else {
 				throw new RuntimeException("Single record transform is not available for this type of data");
 			}
 		} else {
-			Iterator<RecordDTO> iterator = null;
+			Integer totalTransformed;
+			ResumableIterator iterator = null;
+			Instant harvestStart = Instant.now();
+			HarvestWatermarks watermarks = null;
+			String apiFilters = filters;
+			if (incremental.length()>0){
+				watermarks = new HarvestWatermarks(new File(incremental));
+				apiFilters = addModifiedSinceFilter(filters, recordType, watermarks.get(recordType));
+			}
+			ParentAccessCache parentAccessCache = new ParentAccessCache();
+			parentAccessCache.setTtl(TimeUnit.HOURS.toMillis(parentCacheHours));
+			if (parentCache.length()>0){
+				parentAccessCache.load(new File(parentCache));
+			}
 				
-			switch (type) {
-			case SHARE_API:
-				iterator = new ShareApiTransformIterator(filters);
-				break;
-			case SHARE_LOCAL:
-				iterator = new ShareLocalTransformIterator(inputpath, inputFileExtension);
-				break;
-			case OSF_NODES_API:
-				iterator = new OsfNodeApiIterator(filters);			
-				break;            
-			case OSF_USERS_API:
-				iterator = new OsfUserApiIterator(filters);
-				break;
-			case OSF_REGISTRATIONS_API:
-				iterator = new OsfRegistrationApiIterator(filters);
-				break;
+			if (idFile.length()>0){
+				iterator = new OsfIdListIterator(openIdFile(), recordType, osfClient, fetchThreads);
+			} else {
+				switch (type) {
+				case SHARE_API:
+					iterator = new ShareApiTransformIterator(filters, retryPolicy, deadLetters);
+					break;
+				case SHARE_LOCAL:
+					iterator = new ShareLocalTransformIterator(inputpath, inputFileExtension);
+					break;
+				case OSF_NODES_API:
+					iterator = new OsfNodeApiIterator(apiFilters, fetchThreads, prefetchDepth, osfClient, parentAccessCache);
+					break;            
+				case OSF_USERS_API:
+					iterator = new OsfUserApiIterator(filters, fetchThreads, prefetchDepth, osfClient);
+					break;
+				case OSF_REGISTRATIONS_API:
+					iterator = new OsfRegistrationApiIterator(apiFilters, fetchThreads, prefetchDepth, osfClient, parentAccessCache);
+					break;
+				}
+			}
+			
+			Checkpoint checkpoint = null;
+			if (checkpointFile.length()>0){
+				checkpoint = new Checkpoint(new File(checkpointFile), describeHarvest(type));
+				if (resume && checkpoint.load()){
+					if (checkpoint.getPosition()!=null){
+						iterator.resume(checkpoint.getPosition());
+					}
+					harvestStart = checkpoint.getStarted();
+				}
 			}
 
-			Transformer transformer = new Transformer(outputpath, discoDescription);
-			totalTransformed = transformer.transform(iterator, numrecords);	
+			Transformer transformer = createTransformer();
+			transformer.setCheckpoint(checkpoint);
+			transformer.setHashIndex(hashIndex);
+			try (DiscoOutput output = createDiscoOutput()) {
+				transformer.setDiscoOutput(output);
+				if (checkpoint!=null){
+					checkpoint.addFlushBeforeSave(output);
+				}
+				//the output is closed before the watermark is considered, and throws if any DiSCO was not written
+				try {
+					if (pipeline){
+						TransformPipeline transformPipeline = new TransformPipeline(transformer);
+						transformPipeline.setBuildThreads(buildThreads);
+						transformPipeline.setSerializeThreads(serializeThreads);
+						transformPipeline.setWriteThreads(writeThreads);
+						transformPipeline.setQueueCapacity(queueSize);
+						totalTransformed = transformPipeline.run(iterator, maxRecords);
+					} else {
+						transformer.setNumWorkers(numWorkers);
+						totalTransformed = transformer.transform(iterator, maxRecords);
+					}	
+				} catch (RuntimeException e) {
+					//keep the position reached so that the harvest can be continued with -resume
+					if (checkpoint!=null){
+						try {
+							checkpoint.save(false);
+						} catch (RuntimeException se) {
+							e.addSuppressed(se);
+						}
+					}
+					throw e;
+				}
+			}
+			
+			if (type==TransformType.OSF_NODES_API || type==TransformType.OSF_REGISTRATIONS_API){
+				log.info("Parent access cache: " + parentAccessCache.getHitCount() + " hits, " 
+							+ parentAccessCache.getMissCount() + " misses");
+				if (parentCache.length()>0){
+					parentAccessCache.save(new File(parentCache));
+				}
+			}
+			
+			long failures = transformer.getFailureCount();
+			if (checkpoint!=null){
+				//include records that failed in earlier runs of the harvest
+				failures = checkpoint.getFailureCount();
+				if (checkpoint.getSkippedCount()>0){
+					log.info("Skipped " + checkpoint.getSkippedCount() + " records written before the checkpoint was saved");
+				}
+			}
+			
+			if (watermarks!=null){
+				//only move the mark on once every record modified since the last one has been transformed
+				if (!iterator.hasNext() && failures==0){
+					watermarks.set(recordType, harvestStart);
+					watermarks.save();
+				} else {
+					log.warn("Harvest watermark for " + recordType.value() + " not updated: " 
+								+ (iterator.hasNext() ? "not all records were transformed" 
+										: failures + " records failed"));
+				}
+			}
+			return totalTransformed;
 		}
-
-		log.info("Transform complete! " + totalTransformed.toString() + " records processed.");
-		
+	}
+	
+	/**
+	 * Adds a filter for records modified since the high-water mark to the API filters, unless the filters 
+	 * already restrict the date modified. The filter starts a little before the mark to allow for any 
+	 * difference between the local and OSF clocks.
+	 *
+	 * @param filters the API filters
+	 * @param recordType the record type
+	 * @param mark the high-water mark, or null to request all records
+	 * @return the API filters with the date modified filter added
+	 * @throws URISyntaxException if the filters cannot be parsed
+	 * @throws UnsupportedEncodingException the unsupported encoding exception
+	 */
+	private String addModifiedSinceFilter(String filters, RecordType recordType, Instant mark) 
+			throws URISyntaxException, UnsupportedEncodingException {
+		if (mark==null){
+			log.info("No harvest watermark for " + recordType.value() + ", requesting all records");
+			return filters;
+		}
+		for (String param : TransformUtils.readParamsIntoMap(filters, "UTF-8").keySet()){
+			if (param.startsWith(MODIFIED_FILTER)){
+				log.info("Filters already include " + param + ", ignoring harvest watermark");
+				return filters;
+			}
+		}
+		String since = LocalDateTime.ofInstant(mark.minus(WATERMARK_OVERLAP_MINUTES, ChronoUnit.MINUTES), ZoneOffset.UTC)
+								.truncatedTo(ChronoUnit.SECONDS).format(DateTimeFormatter.ISO_LOCAL_DATE_TIME);
+		log.info("Requesting records modified since " + since + " UTC");
+		String filter = URLEncoder.encode(MODIFIED_FILTER + "[gte]", "UTF-8") + "=" + URLEncoder.encode(since, "UTF-8");
+		return (filters.length()==0) ? filter : filters + "&" + filter;
+	}
+	
+	/**
+	 * Describes the harvest for the checkpoint, so that a checkpoint is only used to continue the same harvest.
+	 *
+	 * @param type the transform type
+	 * @return the description
+	 */
+	private String describeHarvest(TransformType type) {
+		if (idFile.length()>0){
+			return type.name() + " idfile " + idFile;
+		}
+		if (type==TransformType.SHARE_LOCAL){
+			return type.name() + " " + new File(inputpath).getAbsolutePath() + " ." + inputFileExtension;
+		}
+		return type.name() + " " + filters;
+	}
+	
+	/**
+	 * Opens the file of IDs to import, or stdin if the filename is -.
+	 *
+	 * @return the reader for the IDs
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	private BufferedReader openIdFile() throws IOException {
+		if (idFile.equals("-")){
+			return new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+		}
+		return Files.newBufferedReader(new File(idFile).toPath(), StandardCharsets.UTF_8);
+	}
+	
+	/**
+	 * Creates the transformer, with DiSCO filenames using the extension of the output format if one was chosen.
+	 *
+	 * @return the transformer
+	 */
+	private Transformer createTransformer() {
+		Transformer transformer = new Transformer(outputpath, discoDescription);
+		transformer.setStreaming(streaming);
+		if (outputFormat.length()>0){
+			transformer.setDiscoFilenameExtension(TransformUtils.getRdfFormat(outputFormat).getDefaultFileExtension());
+		}
+		return transformer;
+	}
+	
+	/**
+	 * Creates the DiSCO output - either one file per DiSCO or bundles, depending on the bundle option.
+	 *
+	 * @return the DiSCO output
+	 */
+	private DiscoOutput createDiscoOutput() {
+		RDFFormat format = RDFFormat.TURTLE;
+		if (outputFormat.length()>0){
+			format = TransformUtils.getRdfFormat(outputFormat);
+		}
+		if (asyncWrite && bundle.length()>0){
+			throw new IllegalArgumentException("-asyncwrite cannot be used with -bundle");
+		}
+		Durability fileDurability = null;
+		switch (durability.toLowerCase()) {
+		case "none":
+			fileDurability = Durability.NONE;
+			break;
+		case "file":
+			fileDurability = Durability.FSYNC_FILE;
+			break;
+		case "dir":
+			fileDurability = Durability.FSYNC_DIRECTORY;
+			break;
+		default:
+			throw new IllegalArgumentException("The durability " + durability + " is not available.");
+		}
+		if (fileDurability!=Durability.NONE && bundle.length()>0){
+			throw new IllegalArgumentException("-durability cannot be used with -bundle");
+		}
+		if (shardDepth>0 && bundle.length()>0){
+			throw new IllegalArgumentException("-sharddepth cannot be used with -bundle");
+		}
+		ShardedLayout layout = null;
+		if (shardDepth>0){
+			layout = new ShardedLayout(outputpath, shardDepth, shardWidth);
+		}
+		if (asyncWrite){
+			AsyncDiscoFileOutput output = new AsyncDiscoFileOutput(outputpath, format);
+			output.setQueueCapacity(asyncWriteQueue);
+			output.setDurability(fileDurability);
+			output.setLayout(layout);
+			return output;
+		}
+		if (bundle.length()==0){
+			DiscoFileOutput output = new DiscoFileOutput(outputpath, format);
+			output.setLayout(layout);
+			output.setDurability(fileDurability);
+			return output;
+		}
+		BundleOutput output = null;
+		switch (bundle.toLowerCase()) {
+		case "nquads":
+			output = new NQuadsBundleOutput(outputpath);
+			break;
+		case "tar":
+			output = new ArchiveBundleOutput(outputpath, ArchiveFormat.TAR);
+			((ArchiveBundleOutput) output).setRdfFormat(format);
+			break;
+		case "zip":
+			output = new ArchiveBundleOutput(outputpath, ArchiveFormat.ZIP);
+			((ArchiveBundleOutput) output).setRdfFormat(format);
+			break;
+		default:
+			throw new IllegalArgumentException("The bundle format " + bundle + " is not available.");
+		}
+		output.setMaxRecords(bundleRecords);
+		output.setMaxBytes(bundleSize * 1024L * 1024L);
+		output.setGzip(gzip);
+		return output;
 	}
 	
 
@@ -0,0 +1,51 @@
+/*******************************************************************************
+ * Copyright 2017 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This software was produced as part of the RMap Project (http://rmap-project.info),
+ * The RMap Project was funded by the Alfred P. Sloan Foundation and is a
+ * collaboration between Data Conservancy, Portico, and IEEE.
+ *******************************************************************************/
+package info.rmapproject.transformer;
+
+import info.rmapproject.transformer.model.RecordDTO;
+
+import java.util.Iterator;
+
+/**
+ * An iterator that can report how far it has got, so that a later run can continue from the same point.
+ * Positions are saved in a Checkpoint as strings, in a form defined by each iterator.
+ */
+public interface ResumableIterator extends Iterator<RecordDTO> {
+
+	/** Position of an iterator that has no more records. */
+	public static final String END = "end";
+
+	/**
+	 * Gets the position following the last record that next() returned or failed on. Passing this to
+	 * resume() in a later run continues with the record after it.
+	 *
+	 * @return the position
+	 */
+	public String getPosition();
+
+	/**
+	 * Moves the iterator to a position from getPosition(), so that next() continues with the record that 
+	 * followed it. Must be called before the first call to next().
+	 *
+	 * @param position the position
+	 */
+	public void resume(String position);
+
+}
@@ -0,0 +1,195 @@
+/*******************************************************************************
+ * Copyright 2017 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This software was produced as part of the RMap Project (http://rmap-project.info),
+ * The RMap Project was funded by the Alfred P. Sloan Foundation and is a
+ * collaboration between Data Conservancy, Portico, and IEEE.
+ *******************************************************************************/
+package info.rmapproject.transformer;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Supplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+
+/**
+ * Retries API requests that fail for reasons that are likely to be temporary. A failure is retried if it 
+ * was caused by an I/O error other than a JSON parsing error, or by a response with one of the retryable 
+ * status codes. The delay before each retry doubles from the initial delay up to the maximum delay, 
+ * and a random part of up to half of it is taken off so that concurrent requests don't retry together.
+ */
+public class RetryPolicy {
+
+    /** The log. */
+    private static final Logger log = LoggerFactory.getLogger(RetryPolicy.class);
+
+	/** The default maximum number of attempts, including the first. */
+	public static final int DEFAULT_MAX_ATTEMPTS = 3;
+
+	/** The default delay before the first retry, in milliseconds. */
+	public static final long DEFAULT_INITIAL_DELAY = 1000;
+
+	/** The default maximum delay before a retry, in milliseconds. */
+	public static final long DEFAULT_MAX_DELAY = 30000;
+
+	/** The status codes retried by default. */
+	public static final Set<Integer> DEFAULT_RETRYABLE_STATUSES = 
+			new HashSet<Integer>(Arrays.asList(408, 429, 500, 502, 503, 504));
+
+	/** Maximum number of attempts, including the first. */
+	private volatile int maxAttempts = DEFAULT_MAX_ATTEMPTS;
+
+	/** Delay before the first retry, in milliseconds. */
+	private volatile long initialDelay = DEFAULT_INITIAL_DELAY;
+
+	/** Maximum delay before a retry, in milliseconds. */
+	private volatile long maxDelay = DEFAULT_MAX_DELAY;
+
+	/** Status codes that are retried. */
+	private volatile Set<Integer> retryableStatuses = DEFAULT_RETRYABLE_STATUSES;
+
+	/**
+	 * Runs an action, retrying it while it fails with a retryable exception and attempts remain. 
+	 * The last exception is thrown if all attempts fail.
+	 *
+	 * @param <T> the result type
+	 * @param description description of the action for log messages
+	 * @param action the action
+	 * @return the result of the action
+	 */
+	public <T> T call(String description, Supplier<T> action) {
+		int attempt = 0;
+		while (true) {
+			attempt = attempt + 1;
+			try {
+				return action.get();
+			} catch (RuntimeException e) {
+				if (attempt>=maxAttempts || !isRetryable(e)){
+					throw e;
+				}
+				long delay = getDelay(attempt);
+				log.warn("Attempt " + attempt + " of " + maxAttempts + " failed for " + description 
+							+ ", retrying in " + delay + "ms. Msg: " + e.getMessage());
+				try {
+					Thread.sleep(delay);
+				} catch (InterruptedException ie) {
+					Thread.currentThread().interrupt();
+					throw e;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Checks whether a failure is likely to be temporary.
+	 *
+	 * @param e the exception
+	 * @return true if the failure should be retried
+	 */
+	public boolean isRetryable(Throwable e) {
+		for (Throwable cause = e; cause!=null; cause = cause.getCause()){
+			if (cause instanceof ApiResponseException){
+				return retryableStatuses.contains(((ApiResponseException) cause).getStatusCode());
+			}
+			if (cause instanceof JsonProcessingException){
+				return false; //the response was received but could not be read, it will be the same next time
+			}
+			if (cause instanceof IOException){
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Gets the delay before a retry, with jitter.
+	 *
+	 * @param attempt the number of the attempt that failed
+	 * @return the delay in milliseconds
+	 */
+	protected long getDelay(int attempt) {
+		long delay = initialDelay;
+		for (int i=1; i<attempt && delay<maxDelay; i++){
+			delay = delay * 2;
+		}
+		delay = Math.min(delay, maxDelay);
+		return delay - ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+	}
+
+	/**
+	 * Sets the maximum number of attempts, including the first. 1 means failures are not retried.
+	 *
+	 * @param maxAttempts the maximum number of attempts
+	 */
+	public void setMaxAttempts(int maxAttempts) {
+		if (maxAttempts<1){
+			throw new IllegalArgumentException("maxAttempts must be at least 1");
+		}
+		this.maxAttempts = maxAttempts;
+	}
+
+	/**
+	 * Gets the maximum number of attempts, including the first.
+	 *
+	 * @return the maximum number of attempts
+	 */
+	public int getMaxAttempts() {
+		return maxAttempts;
+	}
+
+	/**
+	 * Sets the delay before the first retry.
+	 *
+	 * @param initialDelay the delay in milliseconds
+	 */
+	public void setInitialDelay(long initialDelay) {
+		if (initialDelay<0){
+			throw new IllegalArgumentException("initialDelay cannot be negative");
+		}
+		this.initialDelay = initialDelay;
+	}
+
+	/**
+	 * Sets the maximum delay before a retry.
+	 *
+	 * @param maxDelay the delay in milliseconds
+	 */
+	public void setMaxDelay(long maxDelay) {
+		if (maxDelay<0){
+			throw new IllegalArgumentException("maxDelay cannot be negative");
+		}
+		this.maxDelay = maxDelay;
+	}
+
+	/**
+	 * Sets the status codes that are retried.
+	 *
+	 * @param retryableStatuses the retryable status codes
+	 */
+	public void setRetryableStatuses(Set<Integer> retryableStatuses) {
+		if (retryableStatuses==null){
+			throw new IllegalArgumentException("retryableStatuses cannot be null");
+		}
+		this.retryableStatuses = new HashSet<Integer>(retryableStatuses);
+	}
+
+}
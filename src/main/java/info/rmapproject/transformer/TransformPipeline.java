@@ -0,0 +1,433 @@
+/*******************************************************************************
+ * Copyright 2017 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This software was produced as part of the RMap Project (http://rmap-project.info),
+ * The RMap Project was funded by the Alfred P. Sloan Foundation and is a
+ * collaboration between Data Conservancy, Portico, and IEEE.
+ *******************************************************************************/
+package info.rmapproject.transformer;
+
+import info.rmapproject.transformer.model.RecordDTO;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openrdf.model.Model;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs a transform as a staged pipeline. Records are fetched from the iterator on the calling thread
+ * and passed through bounded queues to the build, serialize and write stages, each of which has its own
+ * pool of threads. When a queue is full the stage feeding it blocks, so the number of records held in
+ * memory stays bounded by the queue capacity regardless of the size of the harvest.
+ */
+public class TransformPipeline {
+
+	/** The log. */
+	private static final Logger log = LoggerFactory.getLogger(TransformPipeline.class);
+
+	/** Marks the end of the input for a stage. */
+	private static final PipelineItem END = new PipelineItem(null, -1, -1);
+
+	/** How long to wait for the stage threads to stop once the pipeline is interrupted, in milliseconds. */
+	private static final long STOP_TIMEOUT_MS = 10000;
+
+	/** Transformer that provides the build, serialize and write steps. */
+	private Transformer transformer;
+
+	/** Number of threads building DiSCO models. */
+	private int buildThreads = 1;
+
+	/** Number of threads serializing DiSCO models to RDF. */
+	private int serializeThreads = 1;
+
+	/** Number of threads writing DiSCO RDF to the output path. */
+	private int writeThreads = 1;
+
+	/** Capacity of each queue between stages. */
+	private int queueCapacity = 100;
+
+	/**
+	 * Instantiates a new transform pipeline.
+	 *
+	 * @param transformer the transformer that builds, serializes and writes each DiSCO
+	 */
+	public TransformPipeline(Transformer transformer) {
+		if (transformer==null){
+			throw new IllegalArgumentException("transformer cannot be null");
+		}
+		this.transformer = transformer;
+	}
+
+	/**
+	 * Runs the pipeline over the iterator until it is exhausted or maxNumberRecords DiSCOs have been written.
+	 * As with Transformer.transform(), a record that fails in any stage is logged and replaced by the next one.
+	 * If the transformer has a checkpoint, records are noted as taken when fetched and as finished when written or failed.
+	 *
+	 * @param iterator - iterator to loop through for record processing.
+	 * @param maxNumberRecords - maximum number of records to process.
+	 * @return the number of records transformed
+	 */
+	public Integer run(Iterator<RecordDTO> iterator, Integer maxNumberRecords) {
+		if (iterator==null){
+			throw new IllegalArgumentException("iterator cannot be null");
+		}
+		if (maxNumberRecords==null){
+			throw new IllegalArgumentException("maxNumberRecords cannot be null");
+		}
+		transformer.checkResumable(iterator);
+
+		RecordBudget budget = new RecordBudget(maxNumberRecords);
+		BlockingQueue<PipelineItem> buildQueue = new ArrayBlockingQueue<PipelineItem>(queueCapacity);
+		BlockingQueue<PipelineItem> serializeQueue = new ArrayBlockingQueue<PipelineItem>(queueCapacity);
+		BlockingQueue<PipelineItem> writeQueue = new ArrayBlockingQueue<PipelineItem>(queueCapacity);
+
+		List<Thread> threads = new ArrayList<Thread>();
+		threads.addAll(startStage("build", buildThreads, buildQueue, serializeQueue, serializeThreads, budget,
+				item -> {
+					item.model = transformer.buildModel(item.record);
+					item.hash = transformer.contentHash(item.model);
+					item.unchanged = transformer.skipUnchanged(item.record.getId(), item.hash);
+				}));
+		threads.addAll(startStage("serialize", serializeThreads, serializeQueue, writeQueue, writeThreads, budget,
+				item -> {
+					item.rdf = transformer.serialize(item.record.getId(), item.model);
+					item.model = null;
+				}));
+		threads.addAll(startStage("write", writeThreads, writeQueue, null, 0, budget,
+				item -> {
+					transformer.writeDisco(item.record.getId(), item.rdf);
+					transformer.recordHash(item.record.getId(), item.hash);
+					transformer.recordFinished(item.ticket, item.record.getId());
+					budget.succeeded();
+				}));
+
+		try {
+			int position = 0;
+			while (iterator.hasNext() && budget.acquire()) {
+				position = position + 1;
+				RecordDTO recordDTO = null;
+				try {
+					recordDTO = iterator.next();
+				} catch (Exception e) {
+					transformer.logFailure(null, position, e);
+					transformer.recordFinished(transformer.recordTaken(iterator), null);
+					budget.failed();
+					continue;
+				}
+				long ticket = transformer.recordTaken(iterator);
+				if (transformer.skipWritten(recordDTO.getId())){
+					transformer.recordFinished(ticket, recordDTO.getId());
+					budget.failed();
+					continue;
+				}
+				buildQueue.put(new PipelineItem(recordDTO, position, ticket));
+			}
+			for (int i=0; i<buildThreads; i++){
+				buildQueue.put(END);
+			}
+			for (Thread thread : threads){
+				thread.join();
+			}
+			transformer.saveCheckpoint(iterator);
+		} catch (InterruptedException e) {
+			log.error("Transform pipeline interrupted after " + budget.getSucceeded() + " records", e);
+			stopStages(threads);
+			Thread.currentThread().interrupt();
+		}
+
+		return budget.getSucceeded();
+	}
+
+	/**
+	 * Interrupts the stage threads and waits up to STOP_TIMEOUT_MS for them to finish the item they are on,
+	 * so that none is still writing once run() returns. Threads that do not stop in time are logged.
+	 *
+	 * @param threads the stage threads
+	 */
+	private static void stopStages(List<Thread> threads) {
+		for (Thread thread : threads){
+			thread.interrupt();
+		}
+		long deadline = System.currentTimeMillis() + STOP_TIMEOUT_MS;
+		try {
+			for (Thread thread : threads){
+				thread.join(Math.max(1, deadline - System.currentTimeMillis()));
+			}
+		} catch (InterruptedException e) {
+			log.warn("Interrupted again while waiting for the transform pipeline threads to stop");
+		}
+		for (Thread thread : threads){
+			if (thread.isAlive()){
+				log.warn("Transform pipeline thread " + thread.getName() + " did not stop within " 
+							+ STOP_TIMEOUT_MS + "ms");
+			}
+		}
+	}
+
+	/**
+	 * Starts the threads for one stage of the pipeline. Each thread takes items from the input queue, applies the
+	 * step and passes the item on to the output queue. An item whose step throws anything, including an Error such 
+	 * as a StackOverflowError from a deeply nested record, is failed and the thread continues with the next one.
+	 * When every thread in the stage has finished, the last one passes the end marker on to each thread of the 
+	 * next stage. This is done even if a thread stops unexpectedly, so the next stage and run() do not wait forever.
+	 *
+	 * @param name the stage name, used to name threads
+	 * @param numThreads the number of threads in this stage
+	 * @param input the input queue
+	 * @param output the output queue, or null for the final stage
+	 * @param nextStageThreads the number of threads in the next stage
+	 * @param budget the record budget, notified of failures
+	 * @param step the work done on each item
+	 * @return the started threads
+	 */
+	private List<Thread> startStage(String name, int numThreads, BlockingQueue<PipelineItem> input,
+			BlockingQueue<PipelineItem> output, int nextStageThreads, RecordBudget budget, PipelineStep step) {
+		List<Thread> threads = new ArrayList<Thread>();
+		AtomicInteger running = new AtomicInteger(numThreads);
+		for (int i=1; i<=numThreads; i++){
+			Thread thread = new Thread(() -> {
+				try {
+					PipelineItem item = input.take();
+					while (item!=END) {
+						boolean ok = false;
+						try {
+							step.apply(item);
+							ok = true;
+						} catch (Throwable e) {
+							budget.failed();
+							transformer.logFailure(item.record.getId(), item.position, e);
+							transformer.recordFinished(item.ticket, null);
+						}
+						if (ok && item.unchanged){
+							//nothing more to do for a DiSCO that has not changed
+							transformer.recordFinished(item.ticket, item.record.getId());
+							budget.succeeded();
+						} else if (ok && output!=null){
+							output.put(item);
+						}
+						item = input.take();
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				} finally {
+					if (running.decrementAndGet()==0 && output!=null){
+						endStage(output, nextStageThreads);
+					}
+				}
+			}, "transform-" + name + "-" + i);
+			thread.start();
+			threads.add(thread);
+		}
+		return threads;
+	}
+
+	/**
+	 * Passes the end marker on to each thread of the next stage.
+	 *
+	 * @param output the queue to the next stage
+	 * @param nextStageThreads the number of threads in the next stage
+	 */
+	private static void endStage(BlockingQueue<PipelineItem> output, int nextStageThreads) {
+		try {
+			for (int j=0; j<nextStageThreads; j++){
+				output.put(END);
+			}
+		} catch (InterruptedException e) {
+			//run() interrupts every stage when it is stopped, so none are waiting for the end marker
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Sets the number of threads building DiSCO models.
+	 *
+	 * @param buildThreads the number of build threads
+	 */
+	public void setBuildThreads(int buildThreads) {
+		this.buildThreads = checkPositive(buildThreads, "buildThreads");
+	}
+
+	/**
+	 * Sets the number of threads serializing DiSCO models to RDF.
+	 *
+	 * @param serializeThreads the number of serialize threads
+	 */
+	public void setSerializeThreads(int serializeThreads) {
+		this.serializeThreads = checkPositive(serializeThreads, "serializeThreads");
+	}
+
+	/**
+	 * Sets the number of threads writing DiSCO RDF to the output path.
+	 *
+	 * @param writeThreads the number of write threads
+	 */
+	public void setWriteThreads(int writeThreads) {
+		this.writeThreads = checkPositive(writeThreads, "writeThreads");
+	}
+
+	/**
+	 * Sets the capacity of each queue between stages.
+	 *
+	 * @param queueCapacity the queue capacity
+	 */
+	public void setQueueCapacity(int queueCapacity) {
+		this.queueCapacity = checkPositive(queueCapacity, "queueCapacity");
+	}
+
+	/**
+	 * Checks a setting is at least 1.
+	 *
+	 * @param value the value
+	 * @param name the setting name
+	 * @return the value
+	 */
+	private static int checkPositive(int value, String name) {
+		if (value<1){
+			throw new IllegalArgumentException(name + " must be at least 1");
+		}
+		return value;
+	}
+
+
+	/**
+	 * The work done on an item by a pipeline stage.
+	 */
+	@FunctionalInterface
+	private interface PipelineStep {
+
+		/**
+		 * Applies the step to the item.
+		 *
+		 * @param item the item
+		 */
+		void apply(PipelineItem item);
+	}
+
+	/**
+	 * A record and what has been produced from it so far as it passes through the pipeline.
+	 */
+	private static class PipelineItem {
+
+		/** The record. */
+		private final RecordDTO record;
+
+		/** Position of the record in the iteration. */
+		private final int position;
+
+		/** The checkpoint ticket for the record, -1 if there is no checkpoint. */
+		private final long ticket;
+
+		/** The DiSCO model, set by the build stage. */
+		private Model model;
+
+		/** The content hash of the DiSCO, set by the build stage if the transformer has a hash index. */
+		private int hash;
+
+		/** True if the DiSCO is the same as the last one written, in which case it is not passed on. */
+		private boolean unchanged = false;
+
+		/** The DiSCO RDF, set by the serialize stage. */
+		private ByteArrayOutputStream rdf;
+
+		/**
+		 * Instantiates a new pipeline item.
+		 *
+		 * @param record the record
+		 * @param position position of the record in the iteration
+		 * @param ticket the checkpoint ticket for the record, -1 if there is no checkpoint
+		 */
+		private PipelineItem(RecordDTO record, int position, long ticket) {
+			this.record = record;
+			this.position = position;
+			this.ticket = ticket;
+		}
+	}
+
+	/**
+	 * Keeps track of records in flight so that no more records are fetched than could still be needed
+	 * to reach the maximum number of records.
+	 */
+	private static class RecordBudget {
+
+		/** Maximum number of records to transform. */
+		private final int maxNumberRecords;
+
+		/** Records written successfully. */
+		private int succeeded = 0;
+
+		/** Records fetched but not yet written or failed. */
+		private int inFlight = 0;
+
+		/**
+		 * Instantiates a new record budget.
+		 *
+		 * @param maxNumberRecords the maximum number of records
+		 */
+		private RecordBudget(int maxNumberRecords) {
+			this.maxNumberRecords = maxNumberRecords;
+		}
+
+		/**
+		 * Waits until another record could be needed. Returns false once the maximum has been reached.
+		 *
+		 * @return true if another record should be fetched
+		 * @throws InterruptedException the interrupted exception
+		 */
+		private synchronized boolean acquire() throws InterruptedException {
+			while (succeeded+inFlight>=maxNumberRecords && succeeded<maxNumberRecords) {
+				wait();
+			}
+			if (succeeded>=maxNumberRecords) {
+				return false;
+			}
+			inFlight = inFlight + 1;
+			return true;
+		}
+
+		/**
+		 * Records a successful write.
+		 */
+		private synchronized void succeeded() {
+			succeeded = succeeded + 1;
+			inFlight = inFlight - 1;
+			notifyAll();
+		}
+
+		/**
+		 * Records a failure.
+		 */
+		private synchronized void failed() {
+			inFlight = inFlight - 1;
+			notifyAll();
+		}
+
+		/**
+		 * Gets the number of records written successfully.
+		 *
+		 * @return the number succeeded
+		 */
+		private synchronized int getSucceeded() {
+			return succeeded;
+		}
+	}
+
+}
@@ -21,8 +21,6 @@ package info.rmapproject.transformer;
 
 import java.io.ByteArrayOutputStream;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
-import java.io.Writer;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.HashMap;
@@ -193,19 +191,114 @@ public class TransformUtils {
 	 * Generates Turtle RDF given a Model.
 	 *
 	 * @param model the model (set of statements that form the graph)
-	 * @return the RDF as an OutputStream
+	 * @return the RDF
 	 */
-	public static OutputStream generateTurtleRdf(Model model) {
-		OutputStream bOut = new ByteArrayOutputStream();
+	public static ByteArrayOutputStream generateTurtleRdf(Model model) {
+		return generateRdf(model, RDFFormat.TURTLE);	
+	}
+	
+	/**
+	 *  
+	 * Generates RDF in the format provided given a Model.
+	 *
+	 * @param model the model (set of statements that form the graph)
+	 * @param format the RDF format
+	 * @return the RDF
+	 */
+	public static ByteArrayOutputStream generateRdf(Model model, RDFFormat format) {
+		ByteArrayOutputStream bOut = new ByteArrayOutputStream();
+		writeRdf(model, bOut, format);
+		return bOut;	
+	}
+	
+	/**
+	 *  
+	 * Writes a Model as UTF-8 Turtle RDF to an OutputStream. The stream is flushed but not closed.
+	 *
+	 * @param model the model (set of statements that form the graph)
+	 * @param out the stream to write to
+	 */
+	public static void writeTurtleRdf(Model model, OutputStream out) {
+		writeRdf(model, out, RDFFormat.TURTLE);
+	}
+	
+	/**
+	 *  
+	 * Writes a Model to an OutputStream in the format provided. Text formats are written as UTF-8. 
+	 * The stream is flushed but not closed.
+	 *
+	 * @param model the model (set of statements that form the graph)
+	 * @param out the stream to write to
+	 * @param format the RDF format
+	 */
+	public static void writeRdf(Model model, OutputStream out, RDFFormat format) {
 		try {
-			Writer writer = new OutputStreamWriter(bOut, "UTF-8");
-			Rio.write(model, writer, RDFFormat.TURTLE);
+			Rio.write(model, out, format);
 		} catch (Exception e) {
 			throw new RuntimeException("Exception thrown creating RDF from statement list", e);
 		}
+	}
+	
+	/**
+	 *  
+	 * Generates RDF in the format provided from a DiSCO source, without building a Model.
+	 *
+	 * @param source the DiSCO source
+	 * @param format the RDF format
+	 * @return the RDF
+	 */
+	public static ByteArrayOutputStream generateRdf(DiscoSource source, RDFFormat format) {
+		ByteArrayOutputStream bOut = new ByteArrayOutputStream();
+		writeRdf(source, bOut, format);
 		return bOut;	
 	}
 	
+	/**
+	 *  
+	 * Writes the statements from a DiSCO source to an OutputStream in the format provided as they are 
+	 * generated, without building a Model. The stream is flushed but not closed.
+	 *
+	 * @param source the DiSCO source
+	 * @param out the stream to write to
+	 * @param format the RDF format
+	 */
+	public static void writeRdf(DiscoSource source, OutputStream out, RDFFormat format) {
+		try {
+			source.writeTo(Rio.createWriter(format, out));
+		} catch (Exception e) {
+			throw new RuntimeException("Exception thrown creating RDF from statement list", e);
+		}
+	}
+	
+	/**
+	 * Gets the RDF format for a format name as used on the command line:
+	 * turtle, ntriples, nquads, rdfxml, jsonld or binary.
+	 *
+	 * @param name the format name
+	 * @return the RDF format
+	 */
+	public static RDFFormat getRdfFormat(String name) {
+		if (name==null){
+			throw new IllegalArgumentException("name cannot be null");
+		}
+		switch (name.toLowerCase()) {
+		case "turtle":
+			return RDFFormat.TURTLE;
+		case "ntriples":
+			return RDFFormat.NTRIPLES;
+		case "nquads":
+			return RDFFormat.NQUADS;
+		case "rdfxml":
+			return RDFFormat.RDFXML;
+		case "jsonld":
+			return RDFFormat.JSONLD;
+		case "binary":
+			return RDFFormat.BINARY;
+		default:
+			throw new IllegalArgumentException("The output format " + name + " is not available.");
+		}
+	}
+	
 	/**
 	 * Very basic validation to check if a string looks like a doi. 
 	 *
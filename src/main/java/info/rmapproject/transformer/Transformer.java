@@ -19,11 +19,17 @@
  *******************************************************************************/
 package info.rmapproject.transformer;
 
-import info.rmapproject.transformer.model.DiscoFile;
 import info.rmapproject.transformer.model.RecordDTO;
+import info.rmapproject.transformer.output.DiscoFileOutput;
+import info.rmapproject.transformer.output.DiscoOutput;
 
-import java.io.OutputStream;
+import java.io.ByteArrayOutputStream;
 import java.util.Iterator;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.openrdf.model.Model;
 import org.slf4j.Logger;
@@ -49,6 +55,24 @@ public class Transformer {
 	
 	/** Description to be assigned to new discos. */
 	protected String discoDescription=".";
+	
+	/** Number of worker threads used to build and write DiSCOs. 1 means records are processed on the calling thread. */
+	protected int numWorkers = 1;
+	
+	/** Destination for new DiSCOs. By default each DiSCO is written to its own file in the output path. */
+	protected DiscoOutput discoOutput;
+	
+	/** True if DiSCO statements should be passed to the output as they are generated instead of building a Model. */
+	protected boolean streaming = false;
+	
+	/** Number of records that could not be transformed. */
+	private final AtomicInteger failures = new AtomicInteger(0);
+	
+	/** Records the progress of the transform so that it can be continued later, null if there is none. */
+	protected Checkpoint checkpoint = null;
+	
+	/** Content hashes of the DiSCOs last written, used to skip records that have not changed. Null to write every DiSCO. */
+	protected ContentHashIndex hashIndex = null;
 			
 		
 	/**
@@ -61,6 +85,7 @@ public class Transformer {
 			throw new IllegalArgumentException("outputPath cannot be null");
 		}
 		this.outputPath = outputPath;
+		this.discoOutput = new DiscoFileOutput(outputPath);
 	}
 	
 	/**
@@ -79,10 +104,12 @@ public class Transformer {
 		}
 		this.outputPath = outputPath;
 		this.discoDescription = discoDescription;
+		this.discoOutput = new DiscoFileOutput(outputPath);
 	}
 	
 	/**
-	 * Transforms the source data to DiSCOs.
+	 * Transforms the source data to DiSCOs. A record that fails is logged with its position in the iteration, 
+	 * counting from 1, and replaced by the next one. If maxNumberRecords is 0 no records are taken from the iterator.
 	 *
 	 * @param iterator - iterator to loop through for record processing.
 	 * @param maxNumberRecords - maximum number of records to process.
@@ -95,33 +122,203 @@ public class Transformer {
 		if (maxNumberRecords==null){
 			throw new IllegalArgumentException("maxNumberRecords cannot be null");
 		}
+		checkResumable(iterator);
+
+		if (numWorkers>1){
+			Integer counter = transformParallel(iterator, maxNumberRecords);
+			saveCheckpoint(iterator);
+			return counter;
+		}
 
 		//Reset counter
 		Integer counter = 0;
+		int position = 0;
         
         RecordDTO recordDTO = null;                                                                  
-		do {
+		while(iterator.hasNext() && counter<maxNumberRecords) {
 	        String id = null;
+	        position = position + 1;
+	        String writtenId = null;
     		try {
     			recordDTO = iterator.next();
     			id = recordDTO.getId();
-    			transform(recordDTO);
-    			counter = counter + 1;
-    		} catch (Exception e) {
-    			if (id==null){
-    				Integer i = counter+1;
-    				id = i.toString();
+    			if (skipWritten(id)){
+    				writtenId = id;
+    			} else {
+	    			transform(recordDTO);
+	    			writtenId = id;
+	    			counter = counter + 1;
     			}
-    			String logMsg = "Could not complete export for record " + id + "\n Continuing to next record. Msg: " + e.getMessage();
-    			log.error(logMsg,e);
+    		} catch (Exception e) {
+    			logFailure(id, position, e);
     		}
-		} while(iterator.hasNext() && counter<maxNumberRecords);
+    		recordFinished(recordTaken(iterator), writtenId);
+		}
 
+		saveCheckpoint(iterator);
 		return counter;		
 	}
 	
+	/**
+	 * Transforms the source data to DiSCOs using a pool of worker threads. The calling thread pulls 
+	 * records from the iterator and hands them to the workers, which build, serialize and write each DiSCO.
+	 * No more records are pulled than could still be needed to reach maxNumberRecords, so a failed record 
+	 * is replaced by the next one from the iterator in the same way as in the single threaded transform.
+	 *
+	 * @param iterator - iterator to loop through for record processing.
+	 * @param maxNumberRecords - maximum number of records to process.
+	 * @return the number of records transformed
+	 */
+	protected Integer transformParallel(Iterator<RecordDTO> iterator, Integer maxNumberRecords) {
+		ExecutorService workers = Executors.newFixedThreadPool(numWorkers);
+		CompletionService<String> completed = new ExecutorCompletionService<String>(workers);
+
+		Integer counter = 0;
+		int inFlight = 0;
+		int attempted = 0;
+		
+		try {
+			while (counter<maxNumberRecords) {
+				//keep workers busy, but never have more records in flight than are still needed
+				while (inFlight<numWorkers && counter+inFlight<maxNumberRecords && iterator.hasNext()) {
+					attempted = attempted + 1;
+					final int position = attempted;
+					RecordDTO recordDTO = null;
+					try {
+						recordDTO = iterator.next();
+					} catch (Exception e) {
+						logFailure(null, position, e);
+						recordFinished(recordTaken(iterator), null);
+						continue;
+					}
+					final RecordDTO dto = recordDTO;
+					final long ticket = recordTaken(iterator);
+					completed.submit(() -> {
+						try {
+							if (skipWritten(dto.getId())){
+								recordFinished(ticket, dto.getId());
+								return null;
+							}
+							String id = transform(dto);
+							recordFinished(ticket, id);
+							return id;
+						} catch (Exception e) {
+							logFailure(dto.getId(), position, e);
+							recordFinished(ticket, null);
+							return null;
+						}
+					});
+					inFlight = inFlight + 1;
+				}
+				
+				if (inFlight==0) {
+					break; //nothing left to wait for
+				}
+				
+				String id = completed.take().get();
+				inFlight = inFlight - 1;
+				if (id!=null){
+					counter = counter + 1;
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			log.error("Transform interrupted after " + counter + " records", e);
+		} catch (Exception e) {
+			//workers catch their own exceptions, so this should not happen
+			throw new RuntimeException("Parallel transform failed", e);
+		} finally {
+			workers.shutdownNow();
+		}
+
+		return counter;
+	}
+	
+	/**
+	 * Checks that the iterator can report its position when there is a checkpoint.
+	 *
+	 * @param iterator the iterator
+	 */
+	protected void checkResumable(Iterator<RecordDTO> iterator) {
+		if (checkpoint!=null && !(iterator instanceof ResumableIterator)){
+			throw new IllegalArgumentException("A checkpoint can only be used with a ResumableIterator");
+		}
+	}
+	
+	/**
+	 * Notes that a record has been taken from the iterator, or that the iterator failed to return one, 
+	 * when there is a checkpoint. Must be called on the thread using the iterator, straight after next().
+	 *
+	 * @param iterator the iterator
+	 * @return the checkpoint ticket for the record, or -1 if there is no checkpoint
+	 */
+	protected long recordTaken(Iterator<RecordDTO> iterator) {
+		if (checkpoint==null){
+			return -1;
+		}
+		return checkpoint.taken(((ResumableIterator) iterator).getPosition());
+	}
+	
+	/**
+	 * Notes that a record is complete when there is a checkpoint.
+	 *
+	 * @param ticket the checkpoint ticket from recordTaken()
+	 * @param writtenId the record ID if its DiSCO was written or skipped, null if it failed
+	 */
+	protected void recordFinished(long ticket, String writtenId) {
+		if (checkpoint!=null){
+			checkpoint.finished(ticket, writtenId);
+		}
+	}
+	
+	/**
+	 * Checks whether a record should be skipped because the run being continued from the checkpoint 
+	 * had already written its DiSCO.
+	 *
+	 * @param id the record id
+	 * @return true if the record should be skipped
+	 */
+	protected boolean skipWritten(String id) {
+		if (checkpoint!=null && checkpoint.skip(id)){
+			log.debug("DiSCO for record " + id + " was written before the checkpoint was saved, skipping");
+			return true;
+		}
+		return false;
+	}
+	
+	/**
+	 * Saves the checkpoint at the end of a transform, if there is one. The harvest is marked complete if the 
+	 * iterator has no more records.
+	 *
+	 * @param iterator the iterator
+	 */
+	protected void saveCheckpoint(Iterator<RecordDTO> iterator) {
+		if (checkpoint!=null){
+			checkpoint.save(!iterator.hasNext());
+		}
+	}
+	
+	/**
+	 * Logs a record that could not be transformed so that the transform can continue to the next record.
+	 *
+	 * @param id the record id, or null if the record could not be retrieved
+	 * @param position position of the record in the iteration, used when there is no id
+	 * @param e the exception or error
+	 */
+	protected void logFailure(String id, Integer position, Throwable e) {
+		failures.incrementAndGet();
+		if (id==null){
+			id = position.toString();
+		}
+		String logMsg = "Could not complete export for record " + id + "\n Continuing to next record. Msg: " + e.getMessage();
+		log.error(logMsg,e);
+	}
+	
 	/**
 	 * Take a RecordDTO, which contains the record, ID and a type and writes a DiSCO to the output path.
+	 * If there is a hash index, the DiSCO is only written if it has changed since the last one written 
+	 * for the record. Every statement is needed to calculate the hash before the DiSCO can be written, 
+	 * so with a hash index the DiSCO is built as a model even when streaming.
 	 *
 	 * @param recordDTO the record DTO
 	 * @return the id of the DiSCO transformed
@@ -132,19 +329,114 @@ public class Transformer {
 			if (recordDTO.getId()!=null) {
 				id = recordDTO.getId();
 			} 
-			DiscoBuilder discoModel = 
-					DiscoBuilderFactory.createDiscoBuilder(recordDTO.getRecordType(), discoDescription);
-			discoModel.setRecord(recordDTO.getRecord());
-			Model model = discoModel.getModel();
-			String filename = getNewFilename(id);
-			OutputStream rdf = TransformUtils.generateTurtleRdf(model);
-			DiscoFile disco = new DiscoFile(rdf, this.outputPath, filename);
-			disco.writeFile();
-			log.info("File written: id " + id + " -> " + filename);
+			if (streaming && hashIndex==null){
+				discoOutput.write(id, getNewFilename(id), createDiscoBuilder(recordDTO));
+			} else {
+				Model model = buildModel(recordDTO);
+				int hash = contentHash(model);
+				if (skipUnchanged(id, hash)){
+					return id;
+				}
+				writeDisco(id, model);
+				recordHash(id, hash);
+			}
 		}
 		return id;
 	}
 	
+	/**
+	 * Calculates the content hash of a DiSCO model, when there is a hash index.
+	 *
+	 * @param model the DiSCO model
+	 * @return the content hash, or 0 if there is no hash index
+	 */
+	protected int contentHash(Model model) {
+		return (hashIndex==null) ? 0 : ContentHashIndex.hash(model);
+	}
+	
+	/**
+	 * Checks whether a record can be skipped because its DiSCO is the same as the last one written.
+	 *
+	 * @param id the record id
+	 * @param hash the content hash of the new DiSCO
+	 * @return true if the DiSCO has not changed
+	 */
+	protected boolean skipUnchanged(String id, int hash) {
+		if (hashIndex!=null && id!=null && hashIndex.isUnchanged(id, hash)){
+			log.debug("DiSCO for record " + id + " has not changed, skipping");
+			return true;
+		}
+		return false;
+	}
+	
+	/**
+	 * Records the content hash of a DiSCO once it has been written, when there is a hash index.
+	 *
+	 * @param id the record id
+	 * @param hash the content hash
+	 */
+	protected void recordHash(String id, int hash) {
+		if (hashIndex!=null && id!=null){
+			hashIndex.put(id, hash);
+		}
+	}
+	
+	/**
+	 * Builds the DiSCO model for a record using the DiscoBuilder that matches the record type.
+	 *
+	 * @param recordDTO the record DTO
+	 * @return the DiSCO model
+	 */
+	protected Model buildModel(RecordDTO recordDTO) {
+		return createDiscoBuilder(recordDTO).getModel();
+	}
+	
+	/**
+	 * Creates the DiscoBuilder that matches the record type and sets the record on it.
+	 *
+	 * @param recordDTO the record DTO
+	 * @return the DiSCO builder
+	 */
+	protected DiscoBuilder createDiscoBuilder(RecordDTO recordDTO) {
+		DiscoBuilder discoModel = 
+				DiscoBuilderFactory.createDiscoBuilder(recordDTO.getRecordType(), discoDescription);
+		discoModel.setRecord(recordDTO.getRecord());
+		return discoModel;
+	}
+	
+	/**
+	 * Serializes a DiSCO model as RDF in the form used by the DiSCO output.
+	 *
+	 * @param id the record id
+	 * @param model the DiSCO model
+	 * @return the RDF
+	 */
+	protected ByteArrayOutputStream serialize(String id, Model model) {
+		return discoOutput.serialize(id, model);
+	}
+	
+	/**
+	 * Writes a DiSCO model to the DiSCO output. With the default output the model is serialized 
+	 * straight into a new file in the output path.
+	 *
+	 * @param id the record id, used to generate the filename
+	 * @param model the DiSCO model
+	 */
+	protected void writeDisco(String id, Model model) {
+		discoOutput.write(id, getNewFilename(id), model);
+	}
+	
+	/**
+	 * Writes serialized DiSCO RDF to the DiSCO output. Used where serialization
+	 * is done separately from writing, as in TransformPipeline.
+	 *
+	 * @param id the record id, used to generate the filename
+	 * @param rdf the DiSCO RDF
+	 */
+	protected void writeDisco(String id, ByteArrayOutputStream rdf) {
+		discoOutput.write(id, getNewFilename(id), rdf);
+	}
+	
 	/**
 	 * Set template for disco filename.  outputFileExt will be added to the end, 
 	 * #### should be included as this will be replaced with a unique ID.
@@ -160,6 +452,119 @@ public class Transformer {
 		this.discoFilenameTemplate = discoFilenameTemplate;	
 	}
 	
+	/**
+	 * Replaces the file extension in the disco filename template, e.g. so that it matches the RDF format
+	 * of the DiSCO output. If the template has no extension, the new one is appended.
+	 *
+	 * @param extension the new file extension, without the leading "."
+	 */
+	public void setDiscoFilenameExtension(String extension) {
+		if (extension==null || extension.length()==0){
+			throw new IllegalArgumentException("extension cannot be empty");
+		}
+		String template = this.discoFilenameTemplate;
+		int dot = template.lastIndexOf('.');
+		if (dot > template.lastIndexOf("####")){
+			template = template.substring(0, dot);
+		}
+		this.discoFilenameTemplate = template + "." + extension;
+	}
+	
+	/**
+	 * Sets the number of worker threads used to transform records. When this is greater than 1, 
+	 * records are built, serialized and written in parallel.
+	 *
+	 * @param numWorkers the number of worker threads
+	 */
+	public void setNumWorkers(int numWorkers) {
+		if (numWorkers<1){
+			throw new IllegalArgumentException("numWorkers must be at least 1");
+		}
+		this.numWorkers = numWorkers;
+	}
+	
+	/**
+	 * Sets whether DiSCO statements are passed to the DiSCO output as they are generated, rather than 
+	 * first being collected into a Model. This avoids holding the full model for each record, but duplicate 
+	 * statements are no longer removed. TransformPipeline always builds a Model, since it is passed between stages.
+	 *
+	 * @param streaming true to stream statements to the output
+	 */
+	public void setStreaming(boolean streaming) {
+		this.streaming = streaming;
+	}
+	
+	/**
+	 * Checks whether DiSCO statements are passed to the DiSCO output as they are generated.
+	 *
+	 * @return true if statements are streamed to the output
+	 */
+	public boolean isStreaming() {
+		return this.streaming;
+	}
+	
+	/**
+	 * Gets the number of worker threads used to transform records.
+	 *
+	 * @return the number of worker threads
+	 */
+	public int getNumWorkers() {
+		return this.numWorkers;
+	}
+	
+	/**
+	 * Sets the destination for new DiSCOs, e.g. a BundleOutput to append DiSCOs to bundle files 
+	 * rather than writing one file per DiSCO. The caller is responsible for closing the output
+	 * once the transform is complete.
+	 *
+	 * @param discoOutput the DiSCO output
+	 */
+	public void setDiscoOutput(DiscoOutput discoOutput) {
+		if (discoOutput==null){
+			throw new IllegalArgumentException("discoOutput cannot be null");
+		}
+		this.discoOutput = discoOutput;
+	}
+	
+	/**
+	 * Gets the destination for new DiSCOs.
+	 *
+	 * @return the DiSCO output
+	 */
+	public DiscoOutput getDiscoOutput() {
+		return this.discoOutput;
+	}
+	
+	/**
+	 * Sets a checkpoint to record the progress of transforms through a ResumableIterator, so that an interrupted 
+	 * transform can be continued. To continue from a loaded checkpoint, the iterator must first be resumed 
+	 * at the checkpoint position.
+	 *
+	 * @param checkpoint the checkpoint, null for none
+	 */
+	public void setCheckpoint(Checkpoint checkpoint) {
+		this.checkpoint = checkpoint;
+	}
+	
+	/**
+	 * Sets an index of the content hashes of DiSCOs written, so that records whose DiSCO has not changed
+	 * since the last one written are skipped. The caller is responsible for saving the index.
+	 *
+	 * @param hashIndex the hash index, null to write every DiSCO
+	 */
+	public void setHashIndex(ContentHashIndex hashIndex) {
+		this.hashIndex = hashIndex;
+	}
+	
+	/**
+	 * Gets the number of records that could not be retrieved or transformed, across all transforms run.
+	 *
+	 * @return the number of failed records
+	 */
+	public int getFailureCount() {
+		return failures.get();
+	}
+	
 	/**
 	 * get template for disco filename.
 	 *
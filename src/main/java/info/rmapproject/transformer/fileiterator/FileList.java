@@ -53,7 +53,8 @@ public class FileList {
     private static final Logger log = LoggerFactory.getLogger(FileList.class);
 	
     /**
-     * Initiates file path based on path defined and filtered by file extension.
+     * Initiates file path based on path defined and filtered by file extension. Files are listed in 
+     * name order, so that positions in the list are the same each time the folder is read.
      * Note: does not currently iterate through sub-folders.
      * @param inputfilepath the input file path
      * @param inputfileext the input file extension
@@ -99,11 +100,23 @@ public class FileList {
 								file.isFile() && file.getName().endsWith("."+inputFileExt)
 							);
 					
+		Arrays.sort(files);
 		List <File> filelist = Arrays.asList(files);
 		this.files = filelist;		
     	this.size=filelist.size();    	
       }
 	
+	/**
+	 * Moves to a position in the list, so that next() returns the file at that index.
+	 * @param fileIndex the index of the next file
+	 */
+	public void moveTo(int fileIndex){
+		if (fileIndex<0 || fileIndex>this.size){
+			throw new IllegalArgumentException("File index " + fileIndex + " is outside the file list");
+		}
+		this.currFileIndex=fileIndex-1;
+	}
+	
 	/**
 	 * retrieve the next file in the list and update the current fileIndex.
 	 * @return the next file in the sequence
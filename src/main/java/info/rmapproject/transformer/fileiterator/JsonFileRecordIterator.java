@@ -22,13 +22,15 @@ package info.rmapproject.transformer.fileiterator;
 import java.io.File;
 import java.util.Iterator;
 
+import com.fasterxml.jackson.databind.ObjectReader;
+
 /**
  * Supports iteration through files on a particular path to retrieve JSON records one at a time.
  *
  * @author khanson
  * @param <E> the element type
  */
-public class JsonFileRecordIterator<E> implements Iterator<String> {
+public class JsonFileRecordIterator<E> implements Iterator<E> {
 	
 	/** Stores file list so that we don't need to rebuild the file list for each record request Maintains position in list for iteration. */
 	private FileList inputFileList;
@@ -38,11 +40,14 @@ public class JsonFileRecordIterator<E> implements Iterator<String> {
 	
 	/** Root for JSON record *. */
 	private String recordRoot;
+	
+	/** Reader used to bind each JSON record to the element type. */
+	private ObjectReader reader;
 		
 	/**
-	 * Stores JSON array taken from current file. Maintains position in list for iteration
+	 * Streams JSON records from the current file. Maintains position in list for iteration
 	 */
-	private JsonRecordList records;
+	private JsonRecordList<E> records;
 
 	
 	/**
@@ -51,8 +56,9 @@ public class JsonFileRecordIterator<E> implements Iterator<String> {
 	 * @param inputPath the input path
 	 * @param inputFileExt the input file ext
 	 * @param recordRoot the record root
+	 * @param reader the reader used to bind each JSON record to the element type
 	 */
-	public JsonFileRecordIterator(String inputPath, String inputFileExt, String recordRoot){
+	public JsonFileRecordIterator(String inputPath, String inputFileExt, String recordRoot, ObjectReader reader){
 		if (inputPath==null){
 			throw new IllegalArgumentException("inputPath cannot be null");
 		}
@@ -62,44 +68,79 @@ public class JsonFileRecordIterator<E> implements Iterator<String> {
 		if (recordRoot==null){
 			throw new IllegalArgumentException("recordRoot cannot be null");
 		}		
+		if (reader==null){
+			throw new IllegalArgumentException("reader cannot be null");
+		}		
 		
 		this.inputFileList = new FileList(inputPath, inputFileExt);
 		this.recordRoot = recordRoot;
+		this.reader = reader;
 	}
 
 
 	/**
 	 * Get next JSON record in sequence - iterates through each file and extracts JSON records one at a time on request.
 	 *
-	 * @return the next JSON record as a String
+	 * @return the next JSON record
 	 */
-    public String next() {
-    	if (this.currentFile==null && !this.inputFileList.hasNext()){
-    		throw new RuntimeException("There are no files in the file list. Need at least one file");
-    	}
-    	
-    	
-    	if (this.currentFile==null){
-    		//first pass, load currentFile
-			this.currentFile=this.inputFileList.next();
-    	}
-
-		if (this.records==null){
-    		//haven't read in records yet, read them from current file...
-    		this.records = new JsonRecordList(this.currentFile, recordRoot);
-    	}
-    	
-    	
-    	if (this.inputFileList.getCurrFileIndex()==-1 
-    			|| !this.records.hasNext()) {
+    public E next() {
+    	if (this.records==null || !this.records.hasNext()) {
+        	if (!this.inputFileList.hasNext()){
+        		throw new RuntimeException("There are no more files in the file list.");
+        	}
     		//either first time accessing, or done with previous file... open new file
+    		this.records = null;
     		this.currentFile = this.inputFileList.next();
-    		//load corresponding records
-        	this.records = new JsonRecordList(this.currentFile, recordRoot);
+        	this.records = new JsonRecordList<E>(this.currentFile, recordRoot, reader);
     	}
     	
-    	String jsonRecord = records.next();
-    	return jsonRecord;
+    	return records.next();
+    }
+       
+    /**
+     * Moves to a record in a file, so that next() returns the record at that position. Records before it 
+     * in the file are skipped without being read.
+     *
+     * @param fileIndex the index of the file in the file list
+     * @param recordIndex the index of the record in the file
+     */
+    public void moveTo(int fileIndex, int recordIndex) {
+    	this.inputFileList.moveTo(fileIndex);
+    	this.records = null;
+    	if (recordIndex>0 && this.inputFileList.hasNext()){
+    		this.currentFile = this.inputFileList.next();
+        	this.records = new JsonRecordList<E>(this.currentFile, recordRoot, reader);
+        	for (int i=0; i<recordIndex && records.hasNext(); i++){
+        		records.skip();
+        	}
+    	}
+    }
+    
+    /**
+     * Gets the number of files in the file list.
+     *
+     * @return the number of files
+     */
+    public int getFileCount() {
+    	return this.inputFileList.getSize();
+    }
+    
+    /**
+     * Gets the index in the file list of the file the last record was read from.
+     *
+     * @return the file index, -1 before the first record is read
+     */
+    public int getFileIndex() {
+    	return this.inputFileList.getCurrFileIndex();
+    }
+    
+    /**
+     * Gets the index of the last record read within its file.
+     *
+     * @return the record index, -1 before the first record is read
+     */
+    public int getRecordIndex() {
+    	return (this.records==null) ? -1 : this.records.getCurrRecordIndex();
     }
        
     /* (non-Javadoc)
@@ -107,7 +148,7 @@ public class JsonFileRecordIterator<E> implements Iterator<String> {
      */
     public boolean hasNext(){
 	   	//are we on last record of last file?
-		return (inputFileList.hasNext() || records.hasNext());
+		return (inputFileList.hasNext() || (records!=null && records.hasNext()));
     }
 	
-}
+}
\ No newline at end of file
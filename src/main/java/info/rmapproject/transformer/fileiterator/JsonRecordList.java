@@ -19,26 +19,32 @@
  *******************************************************************************/
 package info.rmapproject.transformer.fileiterator;
 
+import java.io.Closeable;
 import java.io.File;
-import java.nio.charset.Charset;
+import java.io.IOException;
 
-import org.json.JSONArray;
-import org.json.JSONObject;
-
-import com.google.common.io.Files;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectReader;
 
 /**
- * Extracts the text from a File object and breaks it into a list of records.
+ * Streams the records in a JSON file one at a time. The file is read with a streaming parser
+ * positioned on the array held in the record root field, and each element is bound directly to
+ * the record type when it is requested, so only one record is held in memory at a time.
  *
  * @author khanson
+ * @param <E> the record type
  */
-public class JsonRecordList {
+public class JsonRecordList<E> implements Closeable {
 
-	/** JSONArray of records extracted from file. */
-	private JSONArray records;
+	/** Parser positioned on the next record in the file. */
+	private JsonParser parser;
+	
+	/** Reader used to bind each JSON element to a record. */
+	private ObjectReader reader;
 	
-	/** Size of the JSON Records Array. */
-	private Integer size;
+	/** Token at the start of the next record, END_ARRAY or null once there are no more records. */
+	private JsonToken nextToken;
 		
 	/** Stores current position in file list. */
 	protected Integer currRecordIndex = -1;
@@ -46,37 +52,33 @@ public class JsonRecordList {
     //private static final Logger log = LoggerFactory.getLogger(JsonRecordList.class);
 	
     /**
-     * Initiates file path based on path defined and filtered by file extension.
-     * Note: does not currently iterate through sub-folders.
+     * Opens the file and moves to the first record in the record root array.
      *
      * @param file the file
      * @param recordRoot the record root element
+     * @param reader the reader used to bind each JSON element to a record
      */
-	public JsonRecordList(File file, String recordRoot){
+	public JsonRecordList(File file, String recordRoot, ObjectReader reader){
 		if (file==null){
 			throw new IllegalArgumentException("file cannot be null");
 		}
 		if (recordRoot==null){
 			throw new IllegalArgumentException("recordRoot cannot be null");
 		}
+		if (reader==null){
+			throw new IllegalArgumentException("reader cannot be null");
+		}
+		this.reader = reader;
 
-		loadJsonRecordList(file, recordRoot);
+		openJsonRecordList(file, recordRoot);
 		
-    	if (this.size==0 || size==null){
+    	if (!hasNext()){
     		//no records
+    		close();
     		throw new RuntimeException("No JSON records found in file " + file.getName());    		
     	}
 	}	
 
-	/**
-	 * Gets the list size.
-	 *
-	 * @return the size
-	 */
-	public Integer getSize() {
-		return this.size;
-	}
-
 	/**
 	 * Gets the current record index.
 	 *
@@ -87,52 +89,106 @@ public class JsonRecordList {
 	}
 
 	/**
-	 * Loads JSON array of records to be processed.
+	 * Opens the file and walks the top level JSON object until it reaches the array in the record root field.
+	 * Other top level fields are skipped without being bound.
 	 *
 	 * @param file the file
 	 * @param recordRoot the record root
 	 */
-	protected void loadJsonRecordList(File file, String recordRoot) {
-    	if (file == null){
-    		throw new RuntimeException("File is null");
-    	}
-    	JSONArray jsonArray = null;
-	    String jsonFileContents = null;
+	protected void openJsonRecordList(File file, String recordRoot) {
 	    try {
-	    	jsonFileContents = Files.toString(file, Charset.forName("UTF-8"));
-	    	JSONObject jsonRecords = new JSONObject(jsonFileContents);
-	    	jsonArray = jsonRecords.getJSONArray(recordRoot);
-	    	this.size = jsonArray.length();
-	    	this.currRecordIndex = -1;
+	    	this.parser = reader.getFactory().createParser(file);
+	    	if (parser.nextToken()!=JsonToken.START_OBJECT){
+	    		throw new RuntimeException("Expected a JSON object at the start of the file");
+	    	}
+	    	while (parser.nextToken()==JsonToken.FIELD_NAME) {
+	    		String fieldName = parser.getCurrentName();
+	    		JsonToken value = parser.nextToken();
+	    		if (recordRoot.equals(fieldName)){
+	    			if (value!=JsonToken.START_ARRAY){
+	    				throw new RuntimeException("Record root " + recordRoot + " is not an array");
+	    			}
+	    			this.nextToken = parser.nextToken();
+	    	    	this.currRecordIndex = -1;
+	    			return;
+	    		}
+	    		parser.skipChildren();
+	    	}
+	    	this.nextToken = null; //record root not found, treat as no records
 	    }
 	    catch (Exception e) {
+	    	close();
 	    	throw new RuntimeException("Error while retrieving contents from file " + file.getPath(), e);
 	    }
-		this.records = jsonArray;
       }
 	
 	/**
-	 * retrieve the next record in the list and update the current recordIndex.
+	 * Retrieve the next record in the list and update the current recordIndex.
 	 *
-	 * @return the next JSON record as a String
+	 * @return the next record
+	 */
+	public E next(){
+		if (!this.hasNext()){
+			throw new RuntimeException("You have reached the end of the file list.");
+		}
+		try {
+			E record = reader.readValue(parser);
+			this.currRecordIndex=this.currRecordIndex+1;
+			this.nextToken = parser.nextToken();
+			if (!hasNext()){
+				close();
+			}
+			return record;
+		} catch (IOException e) {
+			close();
+			this.nextToken = null;
+			throw new RuntimeException("Error while reading record " + (this.currRecordIndex+1), e);
+		}
+	}
+		
+	/**
+	 * Moves past the next record without reading it.
 	 */
-	public String next(){
+	public void skip(){
 		if (!this.hasNext()){
 			throw new RuntimeException("You have reached the end of the file list.");
 		}
-		this.currRecordIndex=this.currRecordIndex+1;
-		return this.records.get(this.currRecordIndex).toString();		
+		try {
+			parser.skipChildren();
+			this.currRecordIndex=this.currRecordIndex+1;
+			this.nextToken = parser.nextToken();
+			if (!hasNext()){
+				close();
+			}
+		} catch (IOException e) {
+			close();
+			this.nextToken = null;
+			throw new RuntimeException("Error while skipping record " + (this.currRecordIndex+1), e);
+		}
 	}
 		
 	/**
-	 * Determines whether current file is last file.
+	 * Determines whether there is another record in the file.
 	 *
 	 * @return true, if successful
 	 */
     public boolean hasNext() {
-    	//do we have another file?
-    	return (this.size!=(currRecordIndex+1));
+    	return (this.nextToken!=null && this.nextToken!=JsonToken.END_ARRAY);
     }
+
+	/* (non-Javadoc)
+	 * @see java.io.Closeable#close()
+	 */
+	@Override
+	public void close() {
+		if (parser!=null && !parser.isClosed()){
+			try {
+				parser.close();
+			} catch (IOException e) {
+				//nothing more to read from this file
+			}
+		}
+	}
     
 	
-}
+}
\ No newline at end of file
@@ -19,49 +19,160 @@
  *******************************************************************************/
 package info.rmapproject.transformer.model;
 
-import java.io.BufferedWriter;
+import info.rmapproject.transformer.DiscoSource;
+import info.rmapproject.transformer.TransformUtils;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileWriter;
+import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ThreadLocalRandom;
 
+import org.openrdf.model.Model;
+import org.openrdf.rio.RDFFormat;
+import org.openrdf.rio.Rio;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
- * A class to support conversion of a DiSCO to a file.
+ * A class to support conversion of a DiSCO to a file. When created from a Model or DiscoSource, the RDF is serialized
+ * straight into the file as UTF-8 without first being buffered in memory. The DiSCO is written to a temporary file 
+ * in the same folder, which is then moved into place in one step, so a DiSCO file is either complete or absent 
+ * even if the process stops part way through writing it. Each write uses its own temporary file, and an existing 
+ * DiSCO file is never replaced: if the name is taken the DiSCO is written once with _duplicate appended.
+ * How far the file is synced to disk is set by its Durability.
  */
 public class DiscoFile {
 	
     /** The log. */
     protected static final Logger log = LoggerFactory.getLogger(DiscoFile.class);
     
+	/** Suffix of the temporary file a DiSCO is written to before it is moved into place. */
+	public static final String TEMP_SUFFIX = ".tmp";
+	
+	/** Suffix added to a filename that already exists. */
+	public static final String DUPLICATE_SUFFIX = "_duplicate";
+	
+	/**
+	 * How far a DiSCO file is synced to disk before writing it is complete.
+	 */
+	public enum Durability {
+		
+		/** Left to the operating system to write to disk. */
+		NONE,
+		
+		/** The file contents are synced to disk before the file is moved into place. */
+		FSYNC_FILE,
+		
+		/** As FSYNC_FILE, and the folder is synced once the file is moved into place, so the new name is also on disk. */
+		FSYNC_DIRECTORY
+	}
+    
 	/** The filename of the DiSCO file. */
 	private String filename;
 	
 	/** The filepath for the DiSCO file. */
 	private String filepath;
 	
-	/** The DiSCO RDF. */
-	private OutputStream rdf;
+	/** The DiSCO RDF, already serialized. Null when writing from a source. */
+	private ByteArrayOutputStream rdf;
+	
+	/** Source of the DiSCO statements. Null when writing already serialized RDF. */
+	private DiscoSource source;
+	
+	/** The RDF format used to serialize the model. */
+	private RDFFormat format = RDFFormat.TURTLE;
+	
+	/** How far the file is synced to disk. */
+	private Durability durability = Durability.NONE;
 		
 	/**
-	 * Instantiates a new DiSCO file.
+	 * Instantiates a new DiSCO file from RDF that has already been serialized.
 	 *
-	 * @param rdf the DiSCO RDF
+	 * @param rdf the DiSCO RDF, as produced by TransformUtils.generateRdf()
 	 * @param filepath the file path
 	 * @param filename the file name
 	 */
-	public DiscoFile(OutputStream rdf, String filepath, String filename){
+	public DiscoFile(ByteArrayOutputStream rdf, String filepath, String filename){
+		this(filepath, filename);
 		if (rdf==null){
 			throw new IllegalArgumentException("rdf cannot be null");
 		}
+		this.rdf = rdf;
+	}
+		
+	/**
+	 * Instantiates a new DiSCO file that will be serialized from the model as Turtle as it is written.
+	 *
+	 * @param model the DiSCO model
+	 * @param filepath the file path
+	 * @param filename the file name
+	 */
+	public DiscoFile(Model model, String filepath, String filename){
+		this(model, filepath, filename, RDFFormat.TURTLE);
+	}
+		
+	/**
+	 * Instantiates a new DiSCO file that will be serialized from the model in the format provided as it is written.
+	 *
+	 * @param model the DiSCO model
+	 * @param filepath the file path
+	 * @param filename the file name
+	 * @param format the RDF format
+	 */
+	public DiscoFile(Model model, String filepath, String filename, RDFFormat format){
+		this(filepath, filename);
+		if (model==null){
+			throw new IllegalArgumentException("model cannot be null");
+		}
+		if (format==null){
+			throw new IllegalArgumentException("format cannot be null");
+		}
+		this.source = handler -> Rio.write(model, handler);
+		this.format = format;
+	}
+		
+	/**
+	 * Instantiates a new DiSCO file that will be written in the format provided as the source generates its statements.
+	 *
+	 * @param source the source of the DiSCO statements
+	 * @param filepath the file path
+	 * @param filename the file name
+	 * @param format the RDF format
+	 */
+	public DiscoFile(DiscoSource source, String filepath, String filename, RDFFormat format){
+		this(filepath, filename);
+		if (source==null){
+			throw new IllegalArgumentException("source cannot be null");
+		}
+		if (format==null){
+			throw new IllegalArgumentException("format cannot be null");
+		}
+		this.source = source;
+		this.format = format;
+	}
+	
+	/**
+	 * Sets the file path and name.
+	 *
+	 * @param filepath the file path
+	 * @param filename the file name
+	 */
+	private DiscoFile(String filepath, String filename){
 		if (filepath==null){
 			throw new IllegalArgumentException("filepath cannot be null");
 		}
 		if (filename==null){
 			throw new IllegalArgumentException("filename cannot be null");
 		}
-		this.rdf = rdf;
 		if (filepath=="."){
 			filepath="";
 		}
@@ -75,46 +186,155 @@ public class DiscoFile {
 	}
 	
 	/**
-	 * Uses the DiSCO RDF to write a file to the filepath
+	 * Uses the DiSCO RDF to write a file to the filepath. 
+	 *
+	 * @return the file written
+	 * @throws RuntimeException if the file could not be written. No DiSCO file is left behind.
 	 */
-	public void writeFile() {
+	public File writeFile() {
 		
 		//if output folder isn't there, create it now
-		File outputFolder = new File(this.filepath);
-		if (!outputFolder.exists() || !outputFolder.isDirectory()) {
-			outputFolder.mkdir();
+		File outputFolder = new File(this.filepath).getAbsoluteFile();
+		if (!outputFolder.isDirectory()) {
+			outputFolder.mkdirs();
 		}		
 		
-		String writePath = null;
-		writePath = this.filepath + this.filename;
-		
-		File outputFile = new File(writePath);
+		Path tempFile = null;
+		Path outputFile = null;
 		try {
-			if (outputFile.exists()) { // we will accept one duplicate
-				log.error("File already exists. Creating file with '_duplicate' appended.  Please review to confirm whether to include this");
-				writePath = this.filepath + this.filename + "_duplicate";
-				outputFile = new File(writePath);
+			tempFile = createTempFile(outputFolder.toPath(), this.filename);
+			try (FileChannel channel = FileChannel.open(tempFile, StandardOpenOption.WRITE);
+					OutputStream out = new BufferedOutputStream(Channels.newOutputStream(channel))) {
+				if (source!=null){
+					TransformUtils.writeRdf(source, out, format);
+				} else {
+					rdf.writeTo(out);
+				}
+				out.flush();
+				if (durability!=Durability.NONE){
+					channel.force(true);
+				}
 			}
-			
-			if  (outputFile.createNewFile()) {
-				FileWriter fw = new FileWriter(outputFile.getAbsoluteFile());
-				BufferedWriter bw = new BufferedWriter(fw);
-				bw.write(rdf.toString());
-				bw.close();
-				//log.info("DiSCO RDF saved to file " + this.filename);
-			}
-			else {
-				throw new Exception("Create new file failed");
+			outputFile = moveIntoPlace(tempFile, outputFolder.toPath().resolve(this.filename));
+			if (durability==Durability.FSYNC_DIRECTORY){
+				syncFolder(outputFolder.toPath());
 			}
 		} catch (Exception e){
-			log.error("Stopping process: Could not create new DiSCO output file " + this.filename 
+			//only remove the temporary file this write created, and only if it was not moved into place
+			if (tempFile!=null && outputFile==null){
+				try {
+					Files.deleteIfExists(tempFile);
+				} catch (IOException de) {
+					log.warn("Could not remove temporary file " + tempFile, de);
+				}
+			}
+			throw new RuntimeException("Could not create new DiSCO output file " + this.filename 
 					+ ". Please verify the output folder is accessible and that this file does not already exist.", e);
-			System.exit(0);		
 		}
+		return outputFile.toFile();
 	}
-
 	
+	/**
+	 * Creates a new, empty temporary file for a DiSCO in the folder it will be moved into. The name is unique to 
+	 * this write, so writers of the same filename, or a temporary file left behind by an earlier run, do not
+	 * interfere with each other. Unlike Files.createTempFile(), the file gets the default permissions so that
+	 * the DiSCO file has them once moved into place.
+	 *
+	 * @param folder the folder
+	 * @param filename the DiSCO filename
+	 * @return the temporary file
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public static Path createTempFile(Path folder, String filename) throws IOException {
+		while (true) {
+			Path tempFile = folder.resolve("." + filename + "." 
+								+ Long.toHexString(ThreadLocalRandom.current().nextLong()) + TEMP_SUFFIX);
+			try {
+				Files.createFile(tempFile);
+				return tempFile;
+			} catch (FileAlreadyExistsException e) {
+				log.debug("Temporary file " + tempFile + " already exists, trying another name");
+			}
+		}
+	}
 	
+	/**
+	 * Moves a completely written temporary file to its final name in the same folder, without replacing an 
+	 * existing file. If the name is taken the file is given the name with _duplicate appended instead, and if that
+	 * is also taken a FileAlreadyExistsException is thrown and the temporary file is left for the caller to remove.
+	 *
+	 * @param tempFile the temporary file
+	 * @param target the final file
+	 * @return the file the DiSCO was moved to
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public static Path moveIntoPlace(Path tempFile, Path target) throws IOException {
+		try {
+			moveToNewFile(tempFile, target);
+			return target;
+		} catch (FileAlreadyExistsException e) { // we will accept one duplicate
+			log.error("File already exists. Creating file with '" + DUPLICATE_SUFFIX + "' appended.  Please review to confirm whether to include this");
+		}
+		Path duplicate = target.resolveSibling(target.getFileName() + DUPLICATE_SUFFIX);
+		try {
+			moveToNewFile(tempFile, duplicate);
+		} catch (FileAlreadyExistsException e) {
+			throw new FileAlreadyExistsException(target.toString(), null, "the file and its duplicate already exist");
+		}
+		return duplicate;
+	}
 	
+	/**
+	 * Gives a temporary file a new name in one step, failing if a file already has that name. The file is 
+	 * hard linked to the new name, which the file system refuses if the name is taken, and the temporary name 
+	 * is then removed. Where hard links are not supported the file is moved instead, which checks the name 
+	 * is free just before the move.
+	 *
+	 * @param tempFile the temporary file
+	 * @param target the new name
+	 * @throws IOException Signals that an I/O exception has occurred, including FileAlreadyExistsException if the name is taken.
+	 */
+	private static void moveToNewFile(Path tempFile, Path target) throws IOException {
+		try {
+			Files.createLink(target, tempFile);
+		} catch (FileAlreadyExistsException e) {
+			throw e;
+		} catch (UnsupportedOperationException | FileSystemException e) {
+			log.debug("Could not link " + tempFile + " to " + target + ", moving it instead", e);
+			Files.move(tempFile, target);
+			return;
+		}
+		try {
+			Files.delete(tempFile);
+		} catch (IOException e) {
+			log.warn("Could not remove temporary file " + tempFile, e);
+		}
+	}
+	
+	/**
+	 * Syncs a folder so that new entries in it are on disk. Not all platforms allow a folder to be opened
+	 * for this, in which case nothing is done.
+	 *
+	 * @param folder the folder
+	 */
+	public static void syncFolder(Path folder) {
+		try (FileChannel channel = FileChannel.open(folder, StandardOpenOption.READ)) {
+			channel.force(true);
+		} catch (IOException e) {
+			log.debug("Could not sync folder " + folder, e);
+		}
+	}
+	
+	/**
+	 * Sets how far the file is synced to disk. By default it is left to the operating system.
+	 *
+	 * @param durability the durability
+	 */
+	public void setDurability(Durability durability) {
+		if (durability==null){
+			throw new IllegalArgumentException("durability cannot be null");
+		}
+		this.durability = durability;
+	}
 	
 }
@@ -20,19 +20,18 @@
 package info.rmapproject.transformer.osf;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.List;
 import java.util.Map;
+import java.util.function.Supplier;
 
 import org.dataconservancy.cos.osf.client.retrofit.RetrofitOsfServiceFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.github.jasminb.jsonapi.ResourceConverter;
 import com.squareup.okhttp.OkHttpClient;
 import com.squareup.okhttp.Request;
 
-import info.rmapproject.cos.osf.client.model.Contributor;
-import info.rmapproject.cos.osf.client.model.Identifier;
-import info.rmapproject.cos.osf.client.model.Institution;
 import info.rmapproject.cos.osf.client.model.LightNode;
 import info.rmapproject.cos.osf.client.model.LightRegistration;
 import info.rmapproject.cos.osf.client.model.LightUser;
@@ -40,43 +39,69 @@ import info.rmapproject.cos.osf.client.model.Node;
 import info.rmapproject.cos.osf.client.model.Registration;
 import info.rmapproject.cos.osf.client.model.User;
 import info.rmapproject.cos.osf.client.retrofit.OsfService;
+import info.rmapproject.transformer.ApiResponseException;
+import info.rmapproject.transformer.DeadLetterFile;
+import info.rmapproject.transformer.RetryPolicy;
 import retrofit.Call;
 import retrofit.Response;
 
 /**
  * This class interacts with the OSF client so that model objects are returned 
- * instead of retrofit calls.
+ * instead of retrofit calls. Instances are thread-safe, and one instance should be used for a run
+ * so that the OSF configuration is only read once and all requests use the same connection pool.
+ * The service also holds the retry policy for its requests and the dead letter file that records 
+ * that could not be retrieved through it are noted in.
  *
  * @author khanson
  */
 public class OsfClientService {
-	
+
+    /** The log. */
+    private static final Logger log = LoggerFactory.getLogger(OsfClientService.class);
+
 	/** The osf service. */
 	private OsfService osfService = null;
 	
+	/** The HTTP client the service was created with. */
+	private OkHttpClient client = null;
+	
+	/** The retry policy for API requests. */
+	private RetryPolicy retryPolicy = null;
+	
+	/** Records the IDs of records that could not be retrieved. */
+	private DeadLetterFile deadLetters = null;
+	
 	/**
-	 * Instantiates a new osf client service.
+	 * Instantiates a new osf client service with its own HTTP client, a default retry policy and no dead letter file.
 	 */
 	public OsfClientService(){
+		this(new OsfHttpClient(), new RetryPolicy(), new DeadLetterFile());
+	}
+	
+	/**
+	 * Instantiates a new OSF client service that sends its requests with the HTTP client provided. The HTTP
+	 * client should be configured first, as the service keeps the client it was configured with.
+	 *
+	 * @param httpClient the OSF HTTP client
+	 * @param retryPolicy the retry policy for API requests
+	 * @param deadLetters records the IDs of records that could not be retrieved
+	 */
+	public OsfClientService(OsfHttpClient httpClient, RetryPolicy retryPolicy, DeadLetterFile deadLetters){
+		if (httpClient==null){
+			throw new IllegalArgumentException("httpClient cannot be null");
+		}
+		if (retryPolicy==null){
+			throw new IllegalArgumentException("retryPolicy cannot be null");
+		}
+		if (deadLetters==null){
+			throw new IllegalArgumentException("deadLetters cannot be null");
+		}
+		this.retryPolicy = retryPolicy;
+		this.deadLetters = deadLetters;
 		try {
-	    	// Create object mapper
-	        ObjectMapper objectMapper = new ObjectMapper();
-	        OkHttpClient client = new OkHttpClient();
-
-	        ResourceConverter converter = new ResourceConverter(objectMapper, LightNode.class, LightRegistration.class, Registration.class, Identifier.class,
-	        													Contributor.class, User.class, LightUser.class, Institution.class, Node.class); 
-	        converter.setGlobalResolver(relUrl -> {
-	            System.err.println("Resolving " + relUrl);
-	            com.squareup.okhttp.Call req = client.newCall(new Request.Builder().url(relUrl).build());
-	            try {
-	                byte[] bytes = req.execute().body().bytes();
-	                return bytes;
-	            } catch (IOException e) {
-	                throw new RuntimeException(e.getMessage(), e);
-	            }
-	        });
-
-	        RetrofitOsfServiceFactory factory = new RetrofitOsfServiceFactory("classpath*:/osf-config.json");
+	        //the factory sets up the JSON API converter, which resolves relationships through this client
+	        client = httpClient.getClient();
+	        RetrofitOsfServiceFactory factory = new RetrofitOsfServiceFactory("classpath*:/osf-config.json", client.clone());
 	        osfService = factory.getOsfService(OsfService.class);
 	        	
 		} catch (Exception e){
@@ -91,22 +116,7 @@ public class OsfClientService {
 	 * @return the registration
 	 */
 	public Registration getRegistration(String id){	
-	
-        Call<Registration> listCall = osfService.getRegistrationById(id);
-        Response<Registration> res;
-		try {
-			res = listCall.execute();
-		} catch (Exception e) {
-			throw new RuntimeException("cannot retrieve registration with ID " + id, e);
-		}
-       
-        Registration registration = null;
-        if (res.isSuccess()) {
-        	registration = res.body();
-        } else {
-			throw new RuntimeException("Cannot retrieve registration with ID " + id + "; Response code:" + res.code() + " ; Url: " + res.raw().request().urlString());
-        }
-        return registration;
+		return execute(() -> osfService.getRegistrationById(id), "registration with ID " + id);
 	}
 	
 	/**
@@ -116,23 +126,7 @@ public class OsfClientService {
 	 * @return a list of Registration IDs list
 	 */
 	public List<LightRegistration> getRegistrationIds(Map<String,String> params){	
-
-        Call<List<LightRegistration>> listCall = osfService.getRegistrationIds(params);
-        Response<List<LightRegistration>> res;
-		try {
-			res = listCall.execute();
-		} catch (Exception e) {
-			throw new RuntimeException("cannot retrieve Registration ID list", e);
-		}
-
-		List<LightRegistration> registrations = null;
-        if (res.isSuccess()) {
-        	registrations = res.body();
-        } else {
-			throw new RuntimeException("Cannot retrieve registration with IDs; Response code:" + res.code() + " ; Url: " + res.raw().request().urlString());
-        }
-        
-        return registrations;
+		return execute(() -> osfService.getRegistrationIds(params), "Registration ID list");
 	}
 	
 
@@ -143,22 +137,7 @@ public class OsfClientService {
 	 * @return the Node
 	 */
 	public Node getNode(String id){	
-		
-        Call<Node> listCall = osfService.getNodeById(id);
-        Response<Node> res;
-		try {
-			res = listCall.execute();
-		} catch (Exception e) {
-			throw new RuntimeException("cannot retrieve node with ID " + id, e);
-		}
-       
-        Node node = null;
-        if (res.isSuccess()) {
-        	node = res.body();
-        } else {
-    		throw new RuntimeException("Cannot retrieve registration with ID " + id + "; Response code:" + res.code() + " ; Url: " + res.raw().request().urlString());
-        }
-        return node;
+		return execute(() -> osfService.getNodeById(id), "node with ID " + id);
 	}
 	
 	/**
@@ -168,23 +147,7 @@ public class OsfClientService {
 	 * @return the Node ID list
 	 */
 	public List<LightNode> getNodeIds(Map<String,String> params){	
-
-        Call<List<LightNode>> listCall = osfService.getNodeIds(params);
-        Response<List<LightNode>> res;
-		try {
-			res = listCall.execute();
-		} catch (Exception e) {
-			throw new RuntimeException("cannot retrieve LightNode list",e);
-		}
-
-        List<LightNode> nodes = null;
-        if (res.isSuccess()) {
-        	nodes = res.body();
-        } else {
-			throw new RuntimeException("Cannot retrieve registration with IDs; Response code:" + res.code() + " ; Url: " + res.raw().request().urlString());
-        }
-
-        return nodes;
+		return execute(() -> osfService.getNodeIds(params), "LightNode list");
 	}
 
 	
@@ -196,23 +159,7 @@ public class OsfClientService {
 	 * @return the OSF User
 	 */
 	public User getUser(String id){	
-		
-        Call<User> listCall = osfService.getUserById(id);
-        Response<User> res;
-		try {
-			res = listCall.execute();
-		} catch (Exception e) {
-			throw new RuntimeException("cannot retrieve node with ID " + id, e);
-		}
-       
-		User user = null;
-        if (res.isSuccess()) {
-        	user = res.body();
-        } else {
-			throw new RuntimeException("Cannot retrieve User ID:" + id + "; Response code:" + res.code() + " ; Url: " + res.raw().request().urlString());
-        }
-
-        return user;
+		return execute(() -> osfService.getUserById(id), "User with ID " + id);
 	}
 	
 
@@ -223,23 +170,72 @@ public class OsfClientService {
 	 * @return the user ID list
 	 */
 	public List<LightUser> getUserIds(Map<String,String> params){	
-
-        Call<List<LightUser>> listCall = osfService.getUserIds(params);
-        Response<List<LightUser>> res;
+		return execute(() -> osfService.getUserIds(params), "User ID list");
+	}
+	
+	/**
+	 * Requests an OSF API URL once through the OSF HTTP client and gets the response code, e.g. to check 
+	 * whether a record is accessible. The body is read to the end and discarded, so that the response can be 
+	 * cached and the connection reused. A 429 or 503 response is thrown as an ApiResponseException for the 
+	 * caller's retry policy.
+	 *
+	 * @param url the URL
+	 * @return the response code
+	 */
+	public int getResponseCode(String url){
 		try {
-			res = listCall.execute();
-		} catch (Exception e) {
-			throw new RuntimeException("cannot retrieve User ID list",e);
+			com.squareup.okhttp.Response response = client.newCall(new Request.Builder().url(url).build()).execute();
+			try (InputStream in = response.body().byteStream()){
+				byte[] buffer = new byte[8192];
+				while (in.read(buffer)>=0) {}
+			}
+			return response.code();
+		} catch (IOException e) {
+			throw new RuntimeException("Could not request " + url, e);
 		}
-       
-        List<LightUser> users = null;
-        if (res.isSuccess()) {
-        	users = res.body();
-        } else {
-			throw new RuntimeException("Cannot retrieve Users; Response code:" + res.code() + " ; Url: " + res.raw().request().urlString());
-        }
-
-        return users;
+	}
+	
+	/**
+	 * Executes an OSF API request, retrying it according to the retry policy if it fails with
+	 * a temporary error. A new call is created for each attempt, as a call can only be executed once.
+	 *
+	 * @param <T> the response type
+	 * @param call creates the call for the request
+	 * @param description description of what is being retrieved, for messages
+	 * @return the response body
+	 */
+	protected <T> T execute(Supplier<Call<T>> call, String description){
+		return retryPolicy.call(description, () -> {
+	        Response<T> res;
+			try {
+				res = call.get().execute();
+			} catch (Exception e) {
+				throw new RuntimeException("cannot retrieve " + description, e);
+			}
+	        if (!res.isSuccess()) {
+				throw new ApiResponseException(res.code(), "Cannot retrieve " + description + "; Response code:" + res.code() 
+											+ " ; Url: " + res.raw().request().urlString());
+	        }
+	        return res.body();
+		});
+	}
+	
+	/**
+	 * Gets the retry policy for OSF API requests.
+	 *
+	 * @return the retry policy
+	 */
+	public RetryPolicy getRetryPolicy() {
+		return retryPolicy;
+	}
+	
+	/**
+	 * Gets the dead letter file that records that could not be retrieved are noted in.
+	 *
+	 * @return the dead letter file
+	 */
+	public DeadLetterFile getDeadLetterFile() {
+		return deadLetters;
 	}
 	
 }
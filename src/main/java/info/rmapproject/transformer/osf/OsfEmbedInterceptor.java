@@ -0,0 +1,223 @@
+/*******************************************************************************
+ * Copyright 2017 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This software was produced as part of the RMap Project (http://rmap-project.info),
+ * The RMap Project was funded by the Alfred P. Sloan Foundation and is a
+ * collaboration between Data Conservancy, Portico, and IEEE.
+ *******************************************************************************/
+package info.rmapproject.transformer.osf;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.squareup.okhttp.HttpUrl;
+import com.squareup.okhttp.Interceptor;
+import com.squareup.okhttp.MediaType;
+import com.squareup.okhttp.Request;
+import com.squareup.okhttp.Response;
+import com.squareup.okhttp.ResponseBody;
+
+/**
+ * Asks the OSF API to embed related resources in the response for a single Node or Registration, so they 
+ * don't each need a separate request when the record is read. The OSF API returns these in an "embeds" 
+ * object on each resource, which the JSON API converter does not read, so the response is rewritten to 
+ * standard JSON API: each embedded resource is moved to "included", and the relationship is given data 
+ * linking to it in place of its related link. Resources that the API embeds by default, such as the users 
+ * in a list of contributors, are moved in the same way. Relationships are left to be resolved by their 
+ * link if the embedded list is incomplete (more than one page) or the API returned an error for it.
+ */
+public class OsfEmbedInterceptor implements Interceptor {
+
+    /** The log. */
+    private static final Logger log = LoggerFactory.getLogger(OsfEmbedInterceptor.class);
+
+	/** The relationships embedded by default. */
+	public static final List<String> DEFAULT_EMBEDS = Arrays.asList("contributors", "children");
+
+	/** Path of a request for a single Node or Registration. */
+	private static final Pattern RECORD_PATH = Pattern.compile(".*/(nodes|registrations)/[^/]+/?");
+
+	/** The Constant DATA. */
+	private static final String DATA = "data";
+
+	/** The Constant EMBEDS. */
+	private static final String EMBEDS = "embeds";
+
+	/** The Constant INCLUDED. */
+	private static final String INCLUDED = "included";
+
+	/** The Constant RELATIONSHIPS. */
+	private static final String RELATIONSHIPS = "relationships";
+
+	/** Mapper used to rewrite responses. */
+	private static final ObjectMapper mapper = new ObjectMapper();
+
+	/** The relationships to ask the API to embed. */
+	private final List<String> embeds;
+
+	/**
+	 * Instantiates a new OSF embed interceptor that embeds the contributors and children of Nodes and Registrations.
+	 */
+	public OsfEmbedInterceptor() {
+		this(DEFAULT_EMBEDS);
+	}
+
+	/**
+	 * Instantiates a new OSF embed interceptor that embeds the relationships provided.
+	 *
+	 * @param embeds the names of the relationships to embed
+	 */
+	public OsfEmbedInterceptor(List<String> embeds) {
+		if (embeds==null){
+			throw new IllegalArgumentException("embeds cannot be null");
+		}
+		this.embeds = embeds;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.squareup.okhttp.Interceptor#intercept(com.squareup.okhttp.Interceptor.Chain)
+	 */
+	@Override
+	public Response intercept(Chain chain) throws IOException {
+		Request request = chain.request();
+		if (!request.method().equals("GET") || !RECORD_PATH.matcher(request.httpUrl().encodedPath()).matches()){
+			return chain.proceed(request);
+		}
+		HttpUrl.Builder url = request.httpUrl().newBuilder();
+		for (String embed : embeds){
+			if (!request.httpUrl().queryParameterValues("embed").contains(embed)){
+				url.addQueryParameter("embed", embed);
+			}
+		}
+		Response response = chain.proceed(request.newBuilder().url(url.build()).build());
+		if (!response.isSuccessful()){
+			return response;
+		}
+		
+		MediaType contentType = response.body().contentType();
+		byte[] body = response.body().bytes();
+		try {
+			body = inlineEmbeds(body);
+		} catch (IOException e) {
+			//leave it to the converter to report
+			log.debug("Could not read embedded resources from " + request.urlString(), e);
+		}
+		return response.newBuilder().body(ResponseBody.create(contentType, body)).build();
+	}
+
+	/**
+	 * Moves the embedded resources in a JSON API document to "included", linking to them from the relationships.
+	 *
+	 * @param document the JSON API document
+	 * @return the rewritten document, or the document provided if nothing was embedded
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	protected static byte[] inlineEmbeds(byte[] document) throws IOException {
+		JsonNode root = mapper.readTree(document);
+		if (root==null || !root.isObject() || !root.path(DATA).isObject()){
+			return document;
+		}
+		ArrayNode included = (root.path(INCLUDED).isArray()) 
+								? (ArrayNode) root.get(INCLUDED) 
+								: mapper.createArrayNode();
+		int inlined = 0;
+		Deque<JsonNode> resources = new ArrayDeque<JsonNode>();
+		resources.add(root.get(DATA));
+		while (!resources.isEmpty()){
+			JsonNode resource = resources.poll();
+			if (!resource.isObject() || !resource.has(EMBEDS)){
+				continue;
+			}
+			ObjectNode relationships = ((ObjectNode) resource).with(RELATIONSHIPS);
+			JsonNode embedded = ((ObjectNode) resource).remove(EMBEDS);
+			Iterator<Map.Entry<String, JsonNode>> fields = embedded.fields();
+			while (fields.hasNext()){
+				Map.Entry<String, JsonNode> field = fields.next();
+				JsonNode embed = field.getValue();
+				if (!isComplete(embed)){
+					continue;
+				}
+				JsonNode embedData = embed.get(DATA);
+				JsonNode linkage = null;
+				if (embedData.isArray()){
+					ArrayNode identifiers = mapper.createArrayNode();
+					for (JsonNode item : embedData){
+						identifiers.add(identifier(item));
+						included.add(item);
+						resources.add(item);
+					}
+					linkage = identifiers;
+				} else if (embedData.isObject()){
+					linkage = identifier(embedData);
+					included.add(embedData);
+					resources.add(embedData);
+				} else {
+					linkage = embedData; //null
+				}
+				ObjectNode relationship = mapper.createObjectNode();
+				relationship.set(DATA, linkage);
+				relationships.set(field.getKey(), relationship);
+				inlined = inlined + 1;
+			}
+		}
+		if (inlined==0){
+			return document;
+		}
+		((ObjectNode) root).set(INCLUDED, included);
+		return mapper.writeValueAsBytes(root);
+	}
+
+	/**
+	 * Checks whether an embedded relationship can be used in place of its link: it has data, no errors, 
+	 * and all of the related resources are on the page embedded.
+	 *
+	 * @param embed the embedded relationship
+	 * @return true, if complete
+	 */
+	private static boolean isComplete(JsonNode embed) {
+		if (!embed.has(DATA) || embed.has("errors")){
+			return false;
+		}
+		JsonNode next = embed.path("links").path("next");
+		return next.isMissingNode() || next.isNull();
+	}
+
+	/**
+	 * Creates a resource identifier, the type and id of a resource.
+	 *
+	 * @param resource the resource
+	 * @return the resource identifier
+	 */
+	private static ObjectNode identifier(JsonNode resource) {
+		ObjectNode identifier = mapper.createObjectNode();
+		identifier.set("type", resource.get("type"));
+		identifier.set("id", resource.get("id"));
+		return identifier;
+	}
+
+}
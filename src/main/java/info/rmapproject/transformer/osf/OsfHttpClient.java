@@ -0,0 +1,305 @@
+/*******************************************************************************
+ * Copyright 2017 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This software was produced as part of the RMap Project (http://rmap-project.info),
+ * The RMap Project was funded by the Alfred P. Sloan Foundation and is a
+ * collaboration between Data Conservancy, Portico, and IEEE.
+ *******************************************************************************/
+package info.rmapproject.transformer.osf;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.squareup.okhttp.Cache;
+import com.squareup.okhttp.CacheControl;
+import com.squareup.okhttp.ConnectionPool;
+import com.squareup.okhttp.Interceptor;
+import com.squareup.okhttp.OkHttpClient;
+import com.squareup.okhttp.Protocol;
+import com.squareup.okhttp.Request;
+import com.squareup.okhttp.Response;
+
+import info.rmapproject.transformer.ApiResponseException;
+
+/**
+ * The HTTP client for the OSF API requests of one run. The run's OsfClientService instances share it.
+ * It owns the OkHttp client and the parts it is built from:
+ * <ul>
+ * <li>an OsfRateLimiter that paces requests. A 429 or 503 response slows it down and is thrown as an 
+ * ApiResponseException for the caller's RetryPolicy to retry</li>
+ * <li>an OsfRelationshipResolver that requests each relationship of a record, such as its contributors, once per run</li>
+ * <li>an OsfEmbedInterceptor, unless embedding is turned off, so a Node or Registration comes with its 
+ * contributors and children</li>
+ * <li>an optional disk cache. Cached responses are revalidated on each request, so an unchanged record costs
+ * a 304. In offline mode requests are only answered from the cache, and fail with a 504 if not cached</li>
+ * <li>a connection pool sized for the rate limiter's maximum concurrency</li>
+ * </ul>
+ * The OkHttp client is created on first use and recreated when the configuration changes, keeping the same
+ * connection pool. HTTP/2 is used where the JVM and the API support it.
+ */
+public class OsfHttpClient {
+
+    /** The log. */
+    private static final Logger log = LoggerFactory.getLogger(OsfHttpClient.class);
+
+	/** The default number of idle connections kept open, matching the rate limiter's maximum concurrency. */
+	public static final int DEFAULT_MAX_IDLE_CONNECTIONS = OsfRateLimiter.DEFAULT_MAX_CONCURRENCY;
+
+	/** The default time in minutes an idle connection is kept open. */
+	public static final long DEFAULT_KEEP_ALIVE_MINUTES = 5;
+
+	/** The default maximum size of the response cache in bytes. */
+	public static final long DEFAULT_CACHE_BYTES = 1024L * 1024 * 1024;
+
+	/** Cache-Control header used to store responses so that they are revalidated before they are reused. */
+	private static final String REVALIDATE = "max-age=0";
+
+	/** The connection pool, kept when the client is recreated. */
+	private final ConnectionPool connectionPool = 
+			new ConnectionPool(DEFAULT_MAX_IDLE_CONNECTIONS, DEFAULT_KEEP_ALIVE_MINUTES, TimeUnit.MINUTES);
+
+	/** The rate limiter for requests to the API. */
+	private final OsfRateLimiter limiter;
+
+	/** Resolves the related resources of records once each. */
+	private final OsfRelationshipResolver resolver = new OsfRelationshipResolver();
+
+	/** The client, null until first requested or after the configuration changes. */
+	private OkHttpClient client = null;
+
+	/** The response cache, null if responses are not cached. */
+	private Cache cache = null;
+
+	/** True if requests should only be answered from the cache. */
+	private boolean offline = false;
+
+	/** True if requests for a Node or Registration should ask for related resources to be embedded. */
+	private boolean embed = true;
+
+	/**
+	 * Instantiates a new OSF HTTP client with its own rate limiter.
+	 */
+	public OsfHttpClient() {
+		this(new OsfRateLimiter());
+	}
+
+	/**
+	 * Instantiates a new OSF HTTP client that uses the rate limiter provided.
+	 *
+	 * @param limiter the rate limiter
+	 */
+	public OsfHttpClient(OsfRateLimiter limiter) {
+		if (limiter==null){
+			throw new IllegalArgumentException("limiter cannot be null");
+		}
+		this.limiter = limiter;
+	}
+
+	/**
+	 * Gets the HTTP client, creating it on first use with the current configuration.
+	 *
+	 * @return the HTTP client
+	 */
+	public synchronized OkHttpClient getClient() {
+		if (client==null){
+			client = createClient();
+		}
+		return client;
+	}
+
+	/**
+	 * Creates the HTTP client, adding the cache and its interceptors if there is a cache, and
+	 * the rate limiter unless working offline.
+	 *
+	 * @return the HTTP client
+	 */
+	private OkHttpClient createClient() {
+		OkHttpClient newClient = new OkHttpClient();
+		newClient.setConnectionPool(connectionPool);
+		newClient.setProtocols(Arrays.asList(Protocol.HTTP_2, Protocol.HTTP_1_1));
+		newClient.interceptors().add(resolver);
+		resolver.setClient(newClient);
+		if (embed){
+			newClient.interceptors().add(new OsfEmbedInterceptor());
+		}
+		if (!offline){
+			newClient.interceptors().add(this::sendRateLimited);
+		}
+		if (cache!=null){
+			newClient.setCache(cache);
+			//OSF responses are not all marked as cacheable, so store every successful GET 
+			//and have it revalidated before it is reused.
+			newClient.networkInterceptors().add(chain -> {
+				Request request = chain.request();
+				Response response = chain.proceed(request);
+				if (request.method().equals("GET") && (response.isSuccessful() || response.code()==304)){
+					response = response.newBuilder()
+							.removeHeader("Pragma")
+							.header("Cache-Control", REVALIDATE)
+							.build();
+				}
+				return response;
+			});
+			if (offline){
+				newClient.interceptors().add(chain -> chain.proceed(
+						chain.request().newBuilder().cacheControl(CacheControl.FORCE_CACHE).build()));
+			}
+		}
+		return newClient;
+	}
+
+	/**
+	 * Sends a request once when the rate limiter allows it and reports the response to the limiter. 
+	 * A 429 or 503 response is thrown as an ApiResponseException for the caller's RetryPolicy to retry; 
+	 * the limiter holds back the retry until any Retry-After period has passed.
+	 *
+	 * @param chain the interceptor chain
+	 * @return the response
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	private Response sendRateLimited(Interceptor.Chain chain) throws IOException {
+		limiter.acquire();
+		long start = System.nanoTime();
+		Response response = null;
+		boolean throttled = false;
+		try {
+			response = chain.proceed(chain.request());
+		} finally {
+			throttled = limiter.release(OsfRateLimiter.getRequestClass(chain.request().httpUrl()), 
+							(response==null) ? -1 : response.code(), 
+							System.nanoTime() - start, (response==null) ? null : response.header("Retry-After"));
+		}
+		if (throttled){
+			response.body().close();
+			throw new ApiResponseException(response.code(), "OSF API refused the request; Response code:" 
+											+ response.code() + " ; Url: " + chain.request().urlString());
+		}
+		return response;
+	}
+
+	/**
+	 * Sets the directory for the response cache and its maximum size. The cache can be reused by later runs.
+	 *
+	 * @param directory the cache directory, null to stop caching responses
+	 * @param maxBytes the maximum size of the cache in bytes
+	 */
+	public synchronized void setCache(File directory, long maxBytes) {
+		if (maxBytes<1){
+			throw new IllegalArgumentException("maxBytes must be at least 1");
+		}
+		if (directory==null){
+			cache = null;
+		} else {
+			cache = new Cache(directory, maxBytes);
+			log.info("Caching OSF API responses in " + directory);
+		}
+		client = null;
+	}
+
+	/**
+	 * Sets whether requests are only answered from the response cache. A cache must be set for offline mode.
+	 *
+	 * @param offline true to use only cached responses
+	 */
+	public synchronized void setOffline(boolean offline) {
+		if (offline && cache==null){
+			throw new IllegalArgumentException("A response cache must be set to work offline");
+		}
+		this.offline = offline;
+		client = null;
+	}
+
+	/**
+	 * Checks whether requests are only answered from the response cache.
+	 *
+	 * @return true if offline
+	 */
+	public synchronized boolean isOffline() {
+		return offline;
+	}
+
+	/**
+	 * Sets whether requests for a Node or Registration ask the API to embed its contributors and children.
+	 * Responses cached with embedded resources are not reused for requests without them, and vice versa.
+	 *
+	 * @param embed true to embed related resources
+	 */
+	public synchronized void setEmbed(boolean embed) {
+		this.embed = embed;
+		client = null;
+	}
+
+	/**
+	 * Gets the connection pool, e.g. to check how many connections are open.
+	 *
+	 * @return the connection pool
+	 */
+	public ConnectionPool getConnectionPool() {
+		return connectionPool;
+	}
+
+	/**
+	 * Gets the rate limiter for requests to the API.
+	 *
+	 * @return the rate limiter
+	 */
+	public OsfRateLimiter getRateLimiter() {
+		return limiter;
+	}
+
+	/**
+	 * Gets the resolver for the related resources of records, e.g. to turn on background requests.
+	 *
+	 * @return the relationship resolver
+	 */
+	public OsfRelationshipResolver getRelationshipResolver() {
+		return resolver;
+	}
+
+	/**
+	 * Logs the number of requests answered by the cache and by the API, and writes any pending 
+	 * changes to the cache. Also logs the rate and concurrency the rate limiter settled at, if it was used.
+	 */
+	public synchronized void flushCache() {
+		if (limiter.getRequestCount()>0){
+			log.info("OSF rate limiter: " + String.format("%.1f", limiter.getRate()) + " requests per second, " 
+						+ limiter.getConcurrency() + " concurrent, " + limiter.getThrottledCount() + " throttled responses");
+		}
+		if (resolver.getHitCount() + resolver.getJoinedCount() + resolver.getMissCount()>0){
+			log.info("OSF record and relationship requests: " + resolver.getHitCount() + " answered from memory, " 
+						+ resolver.getJoinedCount() + " shared with a request in progress, " + resolver.getMissCount() + " sent");
+		}
+		if (connectionPool.getConnectionCount()>0){
+			log.info("OSF connections: " + connectionPool.getConnectionCount() + " open, " + connectionPool.getIdleConnectionCount() 
+						+ " idle, " + connectionPool.getMultiplexedConnectionCount() + " HTTP/2");
+		}
+		if (cache==null){
+			return;
+		}
+		log.info("OSF response cache: " + cache.getRequestCount() + " requests, " + cache.getHitCount() 
+					+ " answered from cache, " + cache.getNetworkCount() + " from the API");
+		try {
+			cache.flush();
+		} catch (IOException e) {
+			log.warn("Could not flush OSF response cache", e);
+		}
+	}
+
+}
@@ -0,0 +1,274 @@
+/*******************************************************************************
+ * Copyright 2017 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This software was produced as part of the RMap Project (http://rmap-project.info),
+ * The RMap Project was funded by the Alfred P. Sloan Foundation and is a
+ * collaboration between Data Conservancy, Portico, and IEEE.
+ *******************************************************************************/
+package info.rmapproject.transformer.osf;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.function.Function;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import info.rmapproject.transformer.ResumableIterator;
+import info.rmapproject.transformer.model.RecordDTO;
+import info.rmapproject.transformer.model.RecordType;
+
+/**
+ * Iterates over OSF records for a list of IDs read one per line, e.g. from a file or stdin. Blank lines and 
+ * lines starting with # are ignored. IDs are read in batches as they are needed, and the records in each 
+ * batch are retrieved concurrently, with no more than the number of fetch threads requested at once.
+ * Records are not checked for exclusion criteria, in the same way as a single record requested by ID.
+ * The position of the iterator is the number of IDs handed back so far, so a list read from stdin can only
+ * be resumed if the same list is provided again.
+ */
+public class OsfIdListIterator implements ResumableIterator {
+
+    /** The log. */
+    private static final Logger log = LoggerFactory.getLogger(OsfIdListIterator.class);
+
+	/** Number of IDs read in each batch for each fetch thread. */
+	private static final int IDS_PER_THREAD = 4;
+
+	/** Source of IDs, null once all IDs have been read. */
+	private BufferedReader reader;
+
+	/** The type of record the IDs refer to. */
+	private RecordType recordType;
+
+	/** Retrieves the records for the current batch of IDs. */
+	private OsfRecordFetcher<Object> fetcher;
+
+	/** Number of IDs read in each batch. */
+	private int batchSize;
+
+	/** The current batch of IDs. */
+	private List<String> ids = new ArrayList<String>();
+
+	/** The position of the iterator in the current batch. */
+	private int position = -1;
+
+	/** The next id, null if there are no more. */
+	private String nextId = null;
+
+	/** Number of IDs handed back by next(). */
+	private long taken = 0;
+
+	/**
+	 * Instantiates a new OSF ID list iterator.
+	 *
+	 * @param reader source of IDs, one per line. Closed once all IDs have been read
+	 * @param recordType the type of record the IDs refer to - OSF_NODE, OSF_REGISTRATION or OSF_USER
+	 * @param osfClient the OSF client used for all requests
+	 * @param fetchThreads maximum number of concurrent requests
+	 */
+	public OsfIdListIterator(BufferedReader reader, RecordType recordType, OsfClientService osfClient, int fetchThreads) {
+		if (reader==null){
+			throw new IllegalArgumentException("reader cannot be null");
+		}
+		if (osfClient==null){
+			throw new IllegalArgumentException("osfClient cannot be null");
+		}
+		if (fetchThreads<1){
+			throw new IllegalArgumentException("fetchThreads must be at least 1");
+		}
+		Function<String, Object> fetch = null;
+		switch (recordType) {
+		case OSF_NODE:
+			fetch = osfClient::getNode;
+			break;
+		case OSF_REGISTRATION:
+			fetch = osfClient::getRegistration;
+			break;
+		case OSF_USER:
+			fetch = osfClient::getUser;
+			break;
+		default:
+			throw new IllegalArgumentException("ID lists are not supported for record type " + recordType);
+		}
+		this.reader = reader;
+		this.recordType = recordType;
+		this.batchSize = fetchThreads * IDS_PER_THREAD;
+		this.fetcher = new OsfRecordFetcher<Object>(fetch, fetchThreads, osfClient.getDeadLetterFile());
+		loadNextId();
+	}
+
+	/* (non-Javadoc)
+	 * @see java.util.Iterator#hasNext()
+	 */
+	@Override
+	public boolean hasNext() {
+		return (nextId!=null);
+	}
+
+	/* (non-Javadoc)
+	 * @see java.util.Iterator#next()
+	 */
+	@Override
+	public RecordDTO next() {
+		if (!hasNext()){
+			throw new NoSuchElementException("No more IDs in the list");
+		}
+		String id = nextId;
+		taken = taken + 1;
+		Object record = null;
+		try {
+			record = fetcher.get(position, id);
+		} catch (Exception e){
+			throw new RuntimeException("Iterator failed to load Record for import: " + id, e);
+		} finally {
+			loadNextId();
+		}
+		if (record==null){
+			throw new RuntimeException("No record was returned for ID " + id);
+		}
+		return new RecordDTO(record, id, recordType);
+	}
+
+	/**
+	 * Gets the number of IDs handed back so far.
+	 * 
+	 * @see info.rmapproject.transformer.ResumableIterator#getPosition()
+	 */
+	@Override
+	public String getPosition() {
+		if (nextId==null){
+			return END;
+		}
+		return String.valueOf(taken);
+	}
+
+	/**
+	 * Skips over the number of IDs in the position. IDs beyond the first batch are read and discarded 
+	 * without requesting their records.
+	 * 
+	 * @see info.rmapproject.transformer.ResumableIterator#resume(java.lang.String)
+	 */
+	@Override
+	public void resume(String position) {
+		if (position==null){
+			throw new IllegalArgumentException("position cannot be null");
+		}
+		if (position.equals(END)){
+			closeReader();
+			nextId = null;
+			return;
+		}
+		long skip = 0;
+		try {
+			skip = Long.parseLong(position) - taken;
+		} catch (NumberFormatException e){
+			throw new IllegalArgumentException("Invalid ID list position: " + position);
+		}
+		if (skip<0){
+			throw new IllegalArgumentException("Cannot move back to ID list position " + position);
+		}
+		taken = taken + skip;
+		int remaining = ids.size() - this.position;
+		if (nextId==null || skip<remaining){
+			if (nextId!=null){
+				this.position = this.position + (int) skip;
+				nextId = ids.get(this.position);
+			}
+			return;
+		}
+		skip = skip - remaining;
+		while (skip>0 && readId()!=null){
+			skip = skip - 1;
+		}
+		ids = new ArrayList<String>();
+		this.position = -1;
+		loadNextId();
+	}
+
+	/**
+	 * Load next Id to check using hasNext, reading the next batch of IDs at the end of the current batch.
+	 */
+	protected void loadNextId() {
+		if (position==(ids.size()-1)){
+			loadBatch();
+			if (ids.isEmpty()){
+				nextId = null;
+				fetcher.close();
+				return; //no more IDs
+			}
+		}
+		position = position+1;
+		nextId = ids.get(position);
+	}
+
+	/**
+	 * Reads the next batch of IDs and starts retrieving their records.
+	 */
+	protected void loadBatch() {
+		position = -1;
+		ids = new ArrayList<String>(batchSize);
+		if (reader==null){
+			return;
+		}
+		String id;
+		while (ids.size()<batchSize && (id = readId())!=null){
+			ids.add(id);
+		}
+		log.debug("Read " + ids.size() + " IDs from list");
+		fetcher.loadPage(ids);
+	}
+
+	/**
+	 * Reads the next ID from the list, skipping blank lines and comments. The reader is closed at the end of the list.
+	 *
+	 * @return the ID, or null if there are no more
+	 */
+	private String readId() {
+		if (reader==null){
+			return null;
+		}
+		try {
+			String line;
+			while ((line = reader.readLine())!=null){
+				line = line.trim();
+				if (line.length()>0 && !line.startsWith("#")){
+					return line;
+				}
+			}
+		} catch (IOException e) {
+			throw new RuntimeException("Could not read list of IDs", e);
+		}
+		closeReader();
+		return null;
+	}
+
+	/**
+	 * Closes the source of IDs.
+	 */
+	private void closeReader() {
+		if (reader!=null){
+			try {
+				reader.close();
+			} catch (IOException e) {
+				log.debug("Could not close list of IDs", e);
+			}
+			reader = null;
+		}
+	}
+
+}
@@ -19,7 +19,10 @@
  *******************************************************************************/
 package info.rmapproject.transformer.osf;
 
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
 
 import info.rmapproject.cos.osf.client.model.LightNode;
 import info.rmapproject.cos.osf.client.model.Node;
@@ -34,8 +37,14 @@ import info.rmapproject.transformer.model.RecordType;
 public class OsfNodeApiIterator extends OsfNodeBaseApiIterator {
 	   
 
-	/** The list of IDs to iterate over. */
-	protected List<LightNode> ids = null;
+	/** The list of IDs to iterate over. Not initialized here because the super constructor loads the first page. */
+	protected List<LightNode> ids;
+	
+	/** Retrieves the Nodes for the current page of IDs. */
+	protected OsfRecordFetcher<Node> fetcher;
+	
+	/** Retrieves the pages of IDs, requesting pages ahead of the current one. Not initialized here because the super constructor loads the first page. */
+	protected OsfPagePrefetcher<LightNode> pages;
 	
     /**
      * Instantiates a new OSF Node API iterator.
@@ -47,6 +56,61 @@ public class OsfNodeApiIterator extends OsfNodeBaseApiIterator {
     	super(filters);
     }    
     
+    /**
+     * Instantiates a new OSF Node API iterator that retrieves the Nodes on each page of IDs concurrently.
+     *
+     * @param filters the filters
+     * @param fetchThreads number of concurrent requests, 1 to retrieve Nodes one at a time
+     * @throws Exception the exception
+     */
+    public OsfNodeApiIterator(String filters, int fetchThreads) throws Exception{
+    	super(filters, fetchThreads);
+    }    
+    
+    /**
+     * Instantiates a new OSF Node API iterator that retrieves the Nodes on each page of IDs concurrently, 
+     * and requests pages of IDs ahead of the current page.
+     *
+     * @param filters the filters
+     * @param fetchThreads number of concurrent requests, 1 to retrieve Nodes one at a time
+     * @param prefetchDepth number of pages of IDs to request ahead of the current page, 0 to request each page when it is needed
+     * @throws Exception the exception
+     */
+    public OsfNodeApiIterator(String filters, int fetchThreads, int prefetchDepth) throws Exception{
+    	super(filters, fetchThreads, prefetchDepth);
+    }    
+    
+    /**
+     * Instantiates a new OSF Node API iterator that retrieves the Nodes on each page of IDs concurrently, 
+     * requests pages of IDs ahead of the current page, and uses the OSF client provided.
+     *
+     * @param filters the filters
+     * @param fetchThreads number of concurrent requests, 1 to retrieve Nodes one at a time
+     * @param prefetchDepth number of pages of IDs to request ahead of the current page, 0 to request each page when it is needed
+     * @param osfClient the OSF client
+     * @throws Exception the exception
+     */
+    public OsfNodeApiIterator(String filters, int fetchThreads, int prefetchDepth, OsfClientService osfClient) throws Exception{
+    	super(filters, fetchThreads, prefetchDepth, osfClient);
+    }    
+    
+    /**
+     * Instantiates a new OSF Node API iterator that retrieves the Nodes on each page of IDs 
+     * concurrently, requests pages of IDs ahead of the current page, uses the OSF client provided, and keeps 
+     * parent access results in the cache provided.
+     *
+     * @param filters the filters
+     * @param fetchThreads number of concurrent requests, 1 to retrieve Nodes one at a time
+     * @param prefetchDepth number of pages of IDs to request ahead of the current page, 0 to request each page when it is needed
+     * @param osfClient the OSF client
+     * @param parentAccessCache the cache of parent access results
+     * @throws Exception the exception
+     */
+    public OsfNodeApiIterator(String filters, int fetchThreads, int prefetchDepth, OsfClientService osfClient, 
+    		ParentAccessCache parentAccessCache) throws Exception{
+    	super(filters, fetchThreads, prefetchDepth, osfClient, parentAccessCache);
+    }    
+    
     /* (non-Javadoc)
      * @see info.rmapproject.transformer.osf.OsfNodeBaseApiIterator#isLastRow()
      */
@@ -55,6 +119,30 @@ public class OsfNodeApiIterator extends OsfNodeBaseApiIterator {
 		return (position==(ids.size()-1));
 	}
 
+    /* (non-Javadoc)
+     * @see info.rmapproject.transformer.osf.OsfNodeBaseApiIterator#getPage()
+     */
+    @Override
+	protected int getPage() {
+		return (pages==null) ? 0 : pages.getPage();
+	}
+
+    /* (non-Javadoc)
+     * @see info.rmapproject.transformer.osf.OsfNodeBaseApiIterator#restartAt(int)
+     */
+    @Override
+	protected void restartAt(int page) {
+		if (pages!=null){
+			pages.close();
+		}
+		Map<String, String> restart = new HashMap<String, String>(params);
+		restart.put("page", String.valueOf(page-1)); //the prefetcher starts at the page after this
+		pages = new OsfPagePrefetcher<LightNode>(osfClient::getNodeIds, restart, prefetchDepth, 
+				osfClient.getDeadLetterFile());
+		ids = null;
+		loadNextId();
+	}
+
     /* (non-Javadoc)
      * @see info.rmapproject.transformer.osf.OsfNodeBaseApiIterator#loadNextId()
      */
@@ -62,6 +150,10 @@ public class OsfNodeApiIterator extends OsfNodeBaseApiIterator {
 	protected void loadNextId(){
 		if (ids==null || isLastRow()){
 			loadBatch();
+			if (ids.isEmpty()){
+				fetcher.close();
+				return; //no more records
+			}
 		}
 		position = position+1;
 		nextId = ids.get(position).getId();
@@ -72,19 +164,20 @@ public class OsfNodeApiIterator extends OsfNodeBaseApiIterator {
      */
     @Override
 	protected void loadBatch() {
+		//clear the current page first, so that if the next page fails the IDs already handed back are not repeated
 		position = -1;
 		nextId = null;
+		ids = null;
 		try {
-			Integer page = 0;
-			String pageval = params.get("page");
-			if (pageval!=null && !pageval.isEmpty()){
-				page = Integer.parseInt(pageval);
+			if (pages==null){
+				pages = new OsfPagePrefetcher<LightNode>(osfClient::getNodeIds, params, prefetchDepth, 
+						osfClient.getDeadLetterFile());
 			}
-			page=page+1;
-			params.put("page", page.toString());
-			log.info("Loading page " + page);
-			ids = osfClient.getNodeIds(params);
-			nextId = ids.get(0).getId();
+			ids = pages.next();
+			if (fetcher==null){
+				fetcher = new OsfRecordFetcher<Node>(this::fetchNode, fetchThreads, osfClient.getDeadLetterFile());
+			}
+			fetcher.loadPage(ids.stream().map(LightNode::getId).collect(Collectors.toList()));
 		} catch(Exception e){
 			log.error("Could not load list of records to iterate over.");
 			throw new RuntimeException(e);
@@ -102,15 +195,16 @@ public class OsfNodeApiIterator extends OsfNodeBaseApiIterator {
 		try {			
 			while(node==null && hasNext()) {
 				//load next
-				node = osfClient.getNode(nextId);
-				if (hasAccessibleParent(node)){
-					node = null;
-				}
+				node = fetcher.get(position, nextId);
 				loadNextId();
 			} 
 		} catch (Exception e){
 			//load failed... though there may be another record... so let's load it for the next iteration
 			loadNextId();
+			if (node!=null){
+				//the record was retrieved but the page after it was not, the page is noted in the dead letter file
+				return new RecordDTO(node, node.getId(), RecordType.OSF_NODE);
+			}
 			throw new RuntimeException("Iterator failed to load Record for import",e);
 		}
 
@@ -121,6 +215,20 @@ public class OsfNodeApiIterator extends OsfNodeBaseApiIterator {
 		}
 		return nodeDTO;
 	}
+	
+	/**
+	 * Retrieves a Node, skipping it if it has an accessible parent.
+	 *
+	 * @param id the Node ID
+	 * @return the Node, or null if it should be skipped
+	 */
+	protected Node fetchNode(String id) {
+		Node node = osfClient.getNode(id);
+		if (hasAccessibleParent(node)){
+			node = null;
+		}
+		return node;
+	}
 
     	
 }
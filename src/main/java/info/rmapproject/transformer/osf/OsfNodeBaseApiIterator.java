@@ -19,25 +19,26 @@
  *******************************************************************************/
 package info.rmapproject.transformer.osf;
 
-import java.net.HttpURLConnection;
 import java.net.URISyntaxException;
-import java.net.URL;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import info.rmapproject.cos.osf.client.model.NodeBase;
+import info.rmapproject.transformer.ApiResponseException;
+import info.rmapproject.transformer.ResumableIterator;
 import info.rmapproject.transformer.TransformUtils;
-import info.rmapproject.transformer.model.RecordDTO;
 
 /**
  * An abstract iterator class to iterate over a list of OSF Nodes. 
  * This can be used with both OSF Nodes and OSF Registrations which share a lot of fields
  */
-public abstract class OsfNodeBaseApiIterator implements Iterator<RecordDTO>{
+public abstract class OsfNodeBaseApiIterator implements ResumableIterator {
 	
     /** The log. */
     protected static final Logger log = LoggerFactory.getLogger(OsfNodeBaseApiIterator.class);  
@@ -53,6 +54,18 @@ public abstract class OsfNodeBaseApiIterator implements Iterator<RecordDTO>{
 	
 	/** The OSF client, used to retrieve data from API. */
 	protected OsfClientService osfClient = null;
+	
+	/** Number of records on a page to retrieve concurrently, 1 to retrieve them one at a time. */
+	protected int fetchThreads = 1;
+	
+	/** Number of pages of IDs to request ahead of the current page, 0 to request each page when it is needed. */
+	protected int prefetchDepth = OsfPagePrefetcher.DEFAULT_DEPTH;
+	
+	/** Cache of whether parent nodes are accessible. */
+	protected ParentAccessCache parentAccessCache = null;
+
+	/** Parent accessibility checks in progress by parent ID, so that siblings retrieved together wait for one request. */
+	private final Map<String, CompletableFuture<Boolean>> parentChecks = new ConcurrentHashMap<String, CompletableFuture<Boolean>>();
 		
 	/**
 	 * Instantiates a new OSF Node base API iterator.
@@ -65,6 +78,73 @@ public abstract class OsfNodeBaseApiIterator implements Iterator<RecordDTO>{
 	 * @param filters the filters for the iterator
 	 */
 	protected OsfNodeBaseApiIterator(String filters) {
+		this(filters, 1);
+	}
+
+	/**
+	 * Instantiates a new OSF Node base API iterator that retrieves the records on each page of IDs 
+	 * using the number of concurrent requests specified.
+	 *
+	 * @param filters the filters for the iterator
+	 * @param fetchThreads number of concurrent requests, 1 to retrieve records one at a time
+	 */
+	protected OsfNodeBaseApiIterator(String filters, int fetchThreads) {
+		this(filters, fetchThreads, OsfPagePrefetcher.DEFAULT_DEPTH);
+	}
+
+	/**
+	 * Instantiates a new OSF Node base API iterator that retrieves the records on each page of IDs 
+	 * using the number of concurrent requests specified, and requests pages of IDs ahead of the current page.
+	 *
+	 * @param filters the filters for the iterator
+	 * @param fetchThreads number of concurrent requests, 1 to retrieve records one at a time
+	 * @param prefetchDepth number of pages of IDs to request ahead of the current page, 0 to request each page when it is needed
+	 */
+	protected OsfNodeBaseApiIterator(String filters, int fetchThreads, int prefetchDepth) {
+		this(filters, fetchThreads, prefetchDepth, new OsfClientService());
+	}
+
+	/**
+	 * Instantiates a new OSF Node base API iterator that retrieves the records on each page of IDs 
+	 * using the number of concurrent requests specified, requests pages of IDs ahead of the current page,
+	 * and uses the OSF client provided for all requests.
+	 *
+	 * @param filters the filters for the iterator
+	 * @param fetchThreads number of concurrent requests, 1 to retrieve records one at a time
+	 * @param prefetchDepth number of pages of IDs to request ahead of the current page, 0 to request each page when it is needed
+	 * @param osfClient the OSF client
+	 */
+	protected OsfNodeBaseApiIterator(String filters, int fetchThreads, int prefetchDepth, OsfClientService osfClient) {
+		this(filters, fetchThreads, prefetchDepth, osfClient, new ParentAccessCache());
+	}
+
+	/**
+	 * Instantiates a new OSF Node base API iterator that retrieves the records on each page of IDs 
+	 * using the number of concurrent requests specified, requests pages of IDs ahead of the current page,
+	 * uses the OSF client provided for all requests, and keeps parent access results in the cache provided.
+	 *
+	 * @param filters the filters for the iterator
+	 * @param fetchThreads number of concurrent requests, 1 to retrieve records one at a time
+	 * @param prefetchDepth number of pages of IDs to request ahead of the current page, 0 to request each page when it is needed
+	 * @param osfClient the OSF client
+	 * @param parentAccessCache the cache of parent access results
+	 */
+	protected OsfNodeBaseApiIterator(String filters, int fetchThreads, int prefetchDepth, OsfClientService osfClient, 
+			ParentAccessCache parentAccessCache) {
+		if (osfClient==null){
+			throw new IllegalArgumentException("osfClient cannot be null");
+		}
+		if (parentAccessCache==null){
+			throw new IllegalArgumentException("parentAccessCache cannot be null");
+		}
+		if (fetchThreads<1){
+			throw new IllegalArgumentException("fetchThreads must be at least 1");
+		}
+		if (prefetchDepth<0){
+			throw new IllegalArgumentException("prefetchDepth cannot be negative");
+		}
+		this.fetchThreads = fetchThreads;
+		this.prefetchDepth = prefetchDepth;
 		HashMap<String,String> params=null;
 		try{
 			params = TransformUtils.readParamsIntoMap(filters, "UTF-8");
@@ -77,7 +157,8 @@ public abstract class OsfNodeBaseApiIterator implements Iterator<RecordDTO>{
 			params.put("filter[public]", "true");
 		}
 		this.params = params;
-		this.osfClient = new OsfClientService();
+		this.osfClient = osfClient;
+		this.parentAccessCache = parentAccessCache;
 		// this loads a batch of records to be retrieved, each next() retrieves current record and loads next id to see if there is a next
 		loadNextId(); 
 	}
@@ -90,6 +171,75 @@ public abstract class OsfNodeBaseApiIterator implements Iterator<RecordDTO>{
 		return (nextId!=null);	
 	}
 
+	/**
+	 * Gets the position of the next ID as page:index, where index is the position on the page. 
+	 * 
+	 * @see info.rmapproject.transformer.ResumableIterator#getPosition()
+	 */
+	@Override
+	public String getPosition() {
+		if (nextId==null){
+			return END;
+		}
+		return getPage() + ":" + position;
+	}
+
+	/**
+	 * Moves to the position given. If this is not on the current page, the current page of IDs is discarded 
+	 * and the page in the position is requested.
+	 * 
+	 * @see info.rmapproject.transformer.ResumableIterator#resume(java.lang.String)
+	 */
+	@Override
+	public void resume(String position) {
+		if (position==null){
+			throw new IllegalArgumentException("position cannot be null");
+		}
+		if (position.equals(END)){
+			nextId = null;
+			return;
+		}
+		int[] pageIndex = parsePosition(position);
+		if (pageIndex[0]!=getPage()){
+			restartAt(pageIndex[0]);
+		}
+		while (nextId!=null && getPage()==pageIndex[0] && this.position<pageIndex[1]){
+			loadNextId();
+		}
+	}
+
+	/**
+	 * Reads a page:index position.
+	 *
+	 * @param position the position
+	 * @return the page number and index
+	 */
+	protected static int[] parsePosition(String position) {
+		String[] parts = position.split(":");
+		try {
+			if (parts.length==2){
+				return new int[] {Integer.parseInt(parts[0]), Integer.parseInt(parts[1])};
+			}
+		} catch (NumberFormatException e){
+			//reported below
+		}
+		throw new IllegalArgumentException("Invalid OSF iterator position: " + position);
+	}
+
+	/**
+	 * Gets the number of the current page of IDs.
+	 *
+	 * @return the page number
+	 */
+	protected abstract int getPage();
+
+	/**
+	 * Discards the current page of IDs and loads the first ID on the page given.
+	 *
+	 * @param page the page number
+	 */
+	protected abstract void restartAt(int page);
+
 	/**
 	 * Collect OSF data from API using parameters defined.
 	 */
@@ -124,7 +274,9 @@ public abstract class OsfNodeBaseApiIterator implements Iterator<RecordDTO>{
 	/**
 	 * Determines whether there is a parent node and if so whether it is 
 	 * accessible through the API. If it is, we can skip over this child node,
-	 * if not we can use this node.
+	 * if not we can use this node. Results are held in the parent access cache
+	 * so that siblings don't request the same parent again, and siblings retrieved 
+	 * at the same time wait for the request already in progress.
 	 *
 	 * @param nodebase the nodebase
 	 * @return true, if successful
@@ -136,25 +288,92 @@ public abstract class OsfNodeBaseApiIterator implements Iterator<RecordDTO>{
 			String parentId = TransformUtils.extractLastSubFolder(parent);
 			
 			if (!parentId.equals(nodebase.getId())){
-				try {
-					URL url = new URL(parent); 
-					HttpURLConnection connection = (HttpURLConnection)url.openConnection(); 
-					connection.setRequestMethod("GET"); connection.connect(); 
-					int code = connection.getResponseCode();
-					if (code==401){// process this
-						return false; //there is a parent node but it isn't accessible!
-					} else {
-						return true; //there is a parent node and it is accessible
-					}
-				} catch (Exception e){
-					throw new RuntimeException("Could not validate Node accessibility");
+				Boolean accessible = parentAccessCache.get(parentId);
+				if (accessible==null){
+					accessible = checkParent(parent, parentId);
 				}
+				return accessible;
 			}
 		}
 			
 		return false; //this node is the parent node
 	}
 
+	/**
+	 * Checks whether a parent node is accessible, waiting for the check already in progress for the same 
+	 * parent if there is one.
+	 *
+	 * @param parent the parent node URL
+	 * @param parentId the parent node ID
+	 * @return true, if the parent is accessible
+	 */
+	private boolean checkParent(String parent, String parentId) {
+		CompletableFuture<Boolean> pending = new CompletableFuture<Boolean>();
+		CompletableFuture<Boolean> existing = parentChecks.putIfAbsent(parentId, pending);
+		if (existing!=null){
+			try {
+				return existing.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException("Interrupted while waiting for parent node " + parentId, e);
+			} catch (ExecutionException e) {
+				throw new RuntimeException("Could not validate Node accessibility", e.getCause());
+			}
+		}
+		try {
+			boolean accessible = isAccessible(parent, parentId);
+			pending.complete(accessible);
+			return accessible;
+		} catch (RuntimeException e) {
+			pending.completeExceptionally(e);
+			throw e;
+		} finally {
+			parentChecks.remove(parentId, pending);
+		}
+	}
+
+	/**
+	 * Requests the parent node to check whether it is accessible through the API. The result is cached
+	 * if the API gave a definite answer, and a server error is thrown rather than taken as an answer. 
+	 * The request goes through the OSF client, so it shares the rate limiter, connection pool and response 
+	 * cache with the other OSF requests.
+	 *
+	 * @param parent the parent node URL
+	 * @param parentId the parent node ID
+	 * @return true, if the parent is accessible
+	 */
+	protected boolean isAccessible(String parent, String parentId) {
+		try {
+			int code = osfClient.getRetryPolicy().call("parent node " + parentId, () -> {
+				int status = osfClient.getResponseCode(parent);
+				if (status>=500){ //includes a parent that is not in the cache when working offline
+					throw new ApiResponseException(status, "Cannot check parent node " + parentId + "; Response code:" + status);
+				}
+				return status;
+			});
+			if (code==401){// process this
+				parentAccessCache.put(parentId, false);
+				return false; //there is a parent node but it isn't accessible!
+			} else {
+				if (code<400){
+					parentAccessCache.put(parentId, true);
+				}
+				return true; //there is a parent node and it is accessible
+			}
+		} catch (Exception e){
+			throw new RuntimeException("Could not validate Node accessibility", e);
+		}
+	}
+
+	/**
+	 * Gets the cache of parent access results.
+	 *
+	 * @return the parent access cache
+	 */
+	public ParentAccessCache getParentAccessCache() {
+		return parentAccessCache;
+	}
+
 	
 	
 }
\ No newline at end of file
@@ -0,0 +1,260 @@
+/*******************************************************************************
+ * Copyright 2017 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This software was produced as part of the RMap Project (http://rmap-project.info),
+ * The RMap Project was funded by the Alfred P. Sloan Foundation and is a
+ * collaboration between Data Conservancy, Portico, and IEEE.
+ *******************************************************************************/
+package info.rmapproject.transformer.osf;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import info.rmapproject.transformer.ApiResponseException;
+import info.rmapproject.transformer.DeadLetterFile;
+
+/**
+ * Retrieves pages of OSF IDs in order, requesting the following pages in the background while the current
+ * page is processed so that the iterator does not stall at each page boundary. The prefetch depth is the 
+ * number of pages requested ahead of the current one; 0 requests each page only when it is needed.
+ * The end of the results is reached at an empty page, or after a page shorter than those before it,
+ * in which case no further pages are requested. When the last page is exactly full, the page after it is 
+ * requested, and the OSF API answers that with 404 Not Found, so a page after the first that is not found 
+ * is also treated as the end, and the threads used for page requests are stopped once the end is reached.
+ * Pages that could not be retrieved are noted in the
+ * dead letter file, though the IDs on them are not known.
+ *
+ * @param <T> the ID record type
+ */
+public class OsfPagePrefetcher<T> {
+
+    /** The log. */
+    private static final Logger log = LoggerFactory.getLogger(OsfPagePrefetcher.class);
+
+	/** The default number of pages requested ahead of the current page. */
+	public static final int DEFAULT_DEPTH = 1;
+
+	/** Retrieves a page of IDs using the API parameters provided. */
+	private Function<Map<String, String>, List<T>> loadPage;
+
+	/** The API parameters, without the page number. */
+	private Map<String, String> params;
+
+	/** Number of pages requested ahead of the current page. */
+	private int depth;
+
+	/** Records the pages that could not be retrieved. */
+	private DeadLetterFile deadLetters;
+
+	/** Executor for page requests, null when the depth is 0. */
+	private ExecutorService executor = null;
+
+	/** Requests for the pages after the current page, in page order. */
+	private Deque<Future<List<T>>> pending = new ArrayDeque<Future<List<T>>>();
+
+	/** Number of the last page handed back. */
+	private int page;
+
+	/** Number of the last page requested. */
+	private int requested;
+
+	/** Size of the largest page so far. */
+	private int pageSize = 0;
+
+	/** True once the last page has been handed back. */
+	private boolean ended = false;
+
+	/**
+	 * Instantiates a new OSF page prefetcher that doesn't record failures. The first page retrieved follows 
+	 * the page in the API parameters, or is page 1 if there is none.
+	 *
+	 * @param loadPage function that retrieves a page of IDs using the API parameters provided
+	 * @param params the API parameters
+	 * @param depth number of pages to request ahead of the current page, 0 to request each page when it is needed
+	 */
+	public OsfPagePrefetcher(Function<Map<String, String>, List<T>> loadPage, Map<String, String> params, int depth) {
+		this(loadPage, params, depth, new DeadLetterFile());
+	}
+
+	/**
+	 * Instantiates a new OSF page prefetcher. The first page retrieved follows the page in the API parameters,
+	 * or is page 1 if there is none.
+	 *
+	 * @param loadPage function that retrieves a page of IDs using the API parameters provided
+	 * @param params the API parameters
+	 * @param depth number of pages to request ahead of the current page, 0 to request each page when it is needed
+	 * @param deadLetters records the pages that could not be retrieved
+	 */
+	public OsfPagePrefetcher(Function<Map<String, String>, List<T>> loadPage, Map<String, String> params, int depth, 
+			DeadLetterFile deadLetters) {
+		if (loadPage==null){
+			throw new IllegalArgumentException("loadPage cannot be null");
+		}
+		if (deadLetters==null){
+			throw new IllegalArgumentException("deadLetters cannot be null");
+		}
+		if (depth<0){
+			throw new IllegalArgumentException("depth cannot be negative");
+		}
+		this.loadPage = loadPage;
+		this.deadLetters = deadLetters;
+		this.params = new HashMap<String, String>(params);
+		this.depth = depth;
+		String pageval = this.params.remove("page");
+		this.page = (pageval!=null && !pageval.isEmpty()) ? Integer.parseInt(pageval) : 0;
+		this.requested = this.page;
+		if (depth>0){
+			this.executor = OsfRecordFetcher.newExecutor(depth);
+		}
+	}
+
+	/**
+	 * Gets the next page of IDs, waiting for it if it is still being retrieved, and starts requesting the 
+	 * pages after it.
+	 *
+	 * @return the IDs on the page, or an empty list if there are no more pages
+	 */
+	public synchronized List<T> next() {
+		if (ended){
+			return Collections.emptyList();
+		}
+		page = page + 1;
+		List<T> ids = null;
+		if (pending.isEmpty()){
+			requested = page;
+			ids = request(page);
+		} else {
+			ids = waitFor(pending.poll());
+		}
+		if (ids==null || ids.size()==0 || ids.size()<pageSize){
+			//last page, so the threads for page requests are no longer needed
+			close();
+			if (ids==null){
+				ids = Collections.emptyList();
+			}
+		}
+		pageSize = Math.max(pageSize, ids.size());
+		if (!ended){
+			while (pending.size()<depth){
+				final int nextPage = requested + 1;
+				requested = nextPage;
+				pending.add(executor.submit(() -> request(nextPage)));
+			}
+		}
+		return ids;
+	}
+
+	/**
+	 * Gets the number of the last page handed back.
+	 *
+	 * @return the page number
+	 */
+	public synchronized int getPage() {
+		return page;
+	}
+
+	/**
+	 * Stops any page requests still in progress.
+	 */
+	public synchronized void close() {
+		ended = true;
+		cancelPending();
+		if (executor!=null){
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Requests a page of IDs.
+	 *
+	 * @param pageNumber the page number
+	 * @return the IDs on the page
+	 */
+	private List<T> request(int pageNumber) {
+		Map<String, String> pageParams = new HashMap<String, String>(params);
+		pageParams.put("page", Integer.toString(pageNumber));
+		log.info("Loading page " + pageNumber);
+		try {
+			return loadPage.apply(pageParams);
+		} catch (RuntimeException e) {
+			if (pageNumber>1 && isNotFound(e)){
+				log.info("Page " + pageNumber + " not found, no more pages");
+				return Collections.emptyList();
+			}
+			if (!Thread.currentThread().isInterrupted()){ //not cancelled
+				deadLetters.add(null, new RuntimeException("Could not retrieve page " + pageNumber + " of IDs", e));
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * Checks whether a page request failed because the API has no such page.
+	 *
+	 * @param e the exception
+	 * @return true if the response was 404 Not Found
+	 */
+	protected static boolean isNotFound(Throwable e) {
+		for (Throwable cause = e; cause!=null; cause = cause.getCause()){
+			if (cause instanceof ApiResponseException){
+				return ((ApiResponseException) cause).getStatusCode()==404;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Waits for a page requested in the background.
+	 *
+	 * @param request the page request
+	 * @return the IDs on the page
+	 */
+	private List<T> waitFor(Future<List<T>> request) {
+		try {
+			return request.get();
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException){
+				throw (RuntimeException) cause;
+			}
+			throw new RuntimeException("Could not retrieve page " + page, cause);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while retrieving page " + page, e);
+		}
+	}
+
+	/**
+	 * Cancels the requests for pages after the last page.
+	 */
+	private void cancelPending() {
+		for (Future<List<T>> request : pending){
+			request.cancel(true);
+		}
+		pending.clear();
+	}
+
+}
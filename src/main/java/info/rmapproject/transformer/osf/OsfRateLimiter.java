@@ -0,0 +1,311 @@
+/*******************************************************************************
+ * Copyright 2017 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This software was produced as part of the RMap Project (http://rmap-project.info),
+ * The RMap Project was funded by the Alfred P. Sloan Foundation and is a
+ * collaboration between Data Conservancy, Portico, and IEEE.
+ *******************************************************************************/
+package info.rmapproject.transformer.osf;
+
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.squareup.okhttp.HttpUrl;
+
+/**
+ * Limits the rate and concurrency of OSF API requests so that the transform stays close to the highest 
+ * throughput the API will sustain. Requests take a permit from a token bucket refilled at the current rate, 
+ * and a slot from the current concurrency limit. Both adapt to the responses: each successful response 
+ * increases them gradually, a response much slower than the fastest seen for the same kind of request
+ * reduces the concurrency limit, and a 429 or 503 response halves both. Requests are grouped by their path
+ * with the IDs taken out, as a page of IDs, a record with its embeds and a small related list normally take 
+ * very different times. While a Retry-After period is in effect no requests are started.
+ * One instance is used by all the OSF requests of a run, through OsfHttpClient.
+ * 
+ * <p>Each call to acquire() must be followed by a call to release(), e.g. in a finally block.</p>
+ */
+public class OsfRateLimiter {
+
+    /** The log. */
+    private static final Logger log = LoggerFactory.getLogger(OsfRateLimiter.class);
+
+	/** The default maximum number of requests per second. */
+	public static final double DEFAULT_MAX_RATE = 50;
+
+	/** The default maximum number of concurrent requests. */
+	public static final int DEFAULT_MAX_CONCURRENCY = 32;
+
+	/** Requests per second to start with. */
+	private static final double INITIAL_RATE = 5;
+
+	/** Concurrent requests to start with. */
+	private static final double INITIAL_CONCURRENCY = 4;
+
+	/** Lowest rate the limiter will drop to, in requests per second. */
+	private static final double MIN_RATE = 0.5;
+
+	/** Responses slower than this multiple of the fastest response reduce the concurrency limit. */
+	private static final double LATENCY_TOLERANCE = 2.0;
+
+	/** Most kinds of request whose response times are tracked. */
+	private static final int MAX_REQUEST_CLASSES = 100;
+
+	/** Time to pause when a 429 or 503 response has no Retry-After header, in milliseconds. */
+	private static final long DEFAULT_THROTTLE_PAUSE = 1000;
+
+	/** Maximum number of requests per second. */
+	private double maxRate = DEFAULT_MAX_RATE;
+
+	/** Maximum number of concurrent requests. */
+	private int maxConcurrency = DEFAULT_MAX_CONCURRENCY;
+
+	/** Current number of requests per second. */
+	private double rate = INITIAL_RATE;
+
+	/** Current concurrency limit, kept as a fraction so it can increase gradually. */
+	private double concurrency = INITIAL_CONCURRENCY;
+
+	/** Permits available in the token bucket. */
+	private double tokens = 1;
+
+	/** Time the token bucket was last refilled, in nanoseconds. */
+	private long lastRefill = System.nanoTime();
+
+	/** Number of requests in progress. */
+	private int inFlight = 0;
+
+	/** Time before which no requests are started, in milliseconds since the epoch. */
+	private long pausedUntil = 0;
+
+	/** Fastest recent response time in milliseconds for each kind of request. */
+	private final Map<String, Double> baseLatencies = new HashMap<String, Double>();
+
+	/** Number of requests started. */
+	private long requestCount = 0;
+
+	/** Number of 429 and 503 responses. */
+	private long throttledCount = 0;
+
+	/**
+	 * Waits until a request can be started, then takes a permit and a concurrency slot for it.
+	 */
+	public synchronized void acquire() {
+		try {
+			while (true) {
+				long pause = pausedUntil - System.currentTimeMillis();
+				if (pause>0){
+					wait(pause);
+					continue;
+				}
+				refill();
+				if (inFlight>=(int) concurrency){
+					wait(); //until a request is released
+				} else if (tokens<1){
+					long waitNanos = (long) ((1 - tokens) / rate * TimeUnit.SECONDS.toNanos(1));
+					TimeUnit.NANOSECONDS.timedWait(this, Math.max(waitNanos, 1));
+				} else {
+					tokens = tokens - 1;
+					inFlight = inFlight + 1;
+					requestCount = requestCount + 1;
+					return;
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while waiting to send OSF request", e);
+		}
+	}
+
+	/**
+	 * Releases the concurrency slot for a completed request and adapts the rate and concurrency limit 
+	 * to the response. The response time is compared with the fastest recent response for the same 
+	 * kind of request.
+	 *
+	 * @param requestClass the kind of request, see getRequestClass()
+	 * @param code the response code, or -1 if there was no response
+	 * @param latencyNanos time taken by the request, in nanoseconds
+	 * @param retryAfter the Retry-After header, or null if there was none
+	 * @return true if the API asked for fewer requests (429 or 503)
+	 */
+	public synchronized boolean release(String requestClass, int code, long latencyNanos, String retryAfter) {
+		inFlight = inFlight - 1;
+		notifyAll();
+		if (code==429 || code==503){
+			throttledCount = throttledCount + 1;
+			rate = Math.max(MIN_RATE, rate / 2);
+			concurrency = Math.max(1, concurrency / 2);
+			tokens = Math.min(tokens, 0);
+			long pause = parseRetryAfter(retryAfter);
+			pausedUntil = Math.max(pausedUntil, System.currentTimeMillis() + pause);
+			log.warn("OSF API responded " + code + ", pausing for " + pause + "ms and reducing to " 
+						+ String.format("%.1f", rate) + " requests per second, " + (int) concurrency + " concurrent");
+			return true;
+		}
+		if (code<0){
+			return false;
+		}
+		double latency = latencyNanos / 1000000.0;
+		Double baseLatency = baseLatencies.get(requestClass);
+		if (baseLatency==null || latency<baseLatency){
+			baseLatency = latency;
+		} else {
+			//let the fastest response time drift up slowly, so one unusually fast response isn't kept forever
+			baseLatency = baseLatency + (latency - baseLatency) * 0.01;
+		}
+		if (baseLatencies.containsKey(requestClass) || baseLatencies.size()<MAX_REQUEST_CLASSES){
+			baseLatencies.put(requestClass, baseLatency);
+		}
+		if (latency > baseLatency * LATENCY_TOLERANCE){
+			concurrency = Math.max(1, concurrency - 1 / concurrency);
+		} else {
+			rate = Math.min(maxRate, rate + 1 / rate);
+			if (inFlight+1>=(int) concurrency){
+				concurrency = Math.min(maxConcurrency, concurrency + 1 / concurrency);
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Adds the permits accumulated since the last refill, up to one second's worth.
+	 */
+	private void refill() {
+		long now = System.nanoTime();
+		double elapsed = (now - lastRefill) / (double) TimeUnit.SECONDS.toNanos(1);
+		tokens = Math.min(Math.max(1, rate), tokens + elapsed * rate);
+		lastRefill = now;
+	}
+
+	/**
+	 * Gets the kind of an OSF API request, used to compare its response time with similar requests: the path 
+	 * with the IDs replaced and the names of the query parameters other than the page number, 
+	 * e.g. /v2/nodes/{id}/?embed.
+	 *
+	 * @param url the request URL
+	 * @return the kind of request
+	 */
+	public static String getRequestClass(HttpUrl url) {
+		StringBuilder requestClass = new StringBuilder();
+		List<String> segments = url.pathSegments();
+		for (int i=0; i<segments.size(); i++){
+			//after the version, OSF API paths alternate between a name and an ID, e.g. /v2/nodes/abc12/children/
+			boolean id = i>=2 && i%2==0 && segments.get(i).length()>0;
+			requestClass.append('/').append(id ? "{id}" : segments.get(i));
+		}
+		Set<String> params = new TreeSet<String>(url.queryParameterNames());
+		params.remove("page");
+		if (!params.isEmpty()){
+			requestClass.append('?').append(String.join("&", params));
+		}
+		return requestClass.toString();
+	}
+
+	/**
+	 * Converts a Retry-After header, either a number of seconds or an HTTP date, to the time to pause.
+	 *
+	 * @param retryAfter the Retry-After header, or null
+	 * @return the time to pause, in milliseconds
+	 */
+	protected static long parseRetryAfter(String retryAfter) {
+		if (retryAfter==null || retryAfter.trim().length()==0){
+			return DEFAULT_THROTTLE_PAUSE;
+		}
+		try {
+			return Math.max(0, TimeUnit.SECONDS.toMillis(Long.parseLong(retryAfter.trim())));
+		} catch (NumberFormatException e) {
+			//not a number of seconds, should be a date
+		}
+		try {
+			ZonedDateTime date = ZonedDateTime.parse(retryAfter.trim(), DateTimeFormatter.RFC_1123_DATE_TIME);
+			return Math.max(0, Duration.between(ZonedDateTime.now(date.getZone()), date).toMillis());
+		} catch (Exception e) {
+			log.debug("Could not read Retry-After header: " + retryAfter);
+			return DEFAULT_THROTTLE_PAUSE;
+		}
+	}
+
+	/**
+	 * Gets the current permit rate.
+	 *
+	 * @return the number of requests per second
+	 */
+	public synchronized double getRate() {
+		return rate;
+	}
+
+	/**
+	 * Gets the current concurrency limit.
+	 *
+	 * @return the number of concurrent requests
+	 */
+	public synchronized int getConcurrency() {
+		return (int) concurrency;
+	}
+
+	/**
+	 * Gets the number of requests started.
+	 *
+	 * @return the number of requests
+	 */
+	public synchronized long getRequestCount() {
+		return requestCount;
+	}
+
+	/**
+	 * Gets the number of 429 and 503 responses received.
+	 *
+	 * @return the number of throttled responses
+	 */
+	public synchronized long getThrottledCount() {
+		return throttledCount;
+	}
+
+	/**
+	 * Sets the maximum number of requests per second. The rate starts lower and increases up to this.
+	 *
+	 * @param maxRate the maximum rate
+	 */
+	public synchronized void setMaxRate(double maxRate) {
+		if (maxRate<MIN_RATE){
+			throw new IllegalArgumentException("maxRate must be at least " + MIN_RATE);
+		}
+		this.maxRate = maxRate;
+		this.rate = Math.min(rate, maxRate);
+	}
+
+	/**
+	 * Sets the maximum number of concurrent requests. The limit starts lower and increases up to this.
+	 *
+	 * @param maxConcurrency the maximum concurrency
+	 */
+	public synchronized void setMaxConcurrency(int maxConcurrency) {
+		if (maxConcurrency<1){
+			throw new IllegalArgumentException("maxConcurrency must be at least 1");
+		}
+		this.maxConcurrency = maxConcurrency;
+		this.concurrency = Math.min(concurrency, maxConcurrency);
+	}
+
+}
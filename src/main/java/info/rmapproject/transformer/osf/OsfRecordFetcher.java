@@ -0,0 +1,232 @@
+/*******************************************************************************
+ * Copyright 2017 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This software was produced as part of the RMap Project (http://rmap-project.info),
+ * The RMap Project was funded by the Alfred P. Sloan Foundation and is a
+ * collaboration between Data Conservancy, Portico, and IEEE.
+ *******************************************************************************/
+package info.rmapproject.transformer.osf;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import info.rmapproject.transformer.DeadLetterFile;
+
+/**
+ * Retrieves the OSF records for a page of IDs. When created with more than one fetch thread,
+ * the records on a page are requested as soon as the page is loaded, with no more than that number 
+ * of requests in progress at once, and then handed back in page order. Otherwise each record is 
+ * requested when it is needed. Records that could not be retrieved are added to the dead letter file.
+ * The fetcher should be closed once the iterator using it has no more records.
+ *
+ * @param <T> the record type
+ */
+public class OsfRecordFetcher<T> {
+
+    /** The log. */
+    private static final Logger log = LoggerFactory.getLogger(OsfRecordFetcher.class);
+
+    /** Counter used to name fetch threads. */
+    private static final AtomicInteger threadCount = new AtomicInteger(0);
+
+	/** Retrieves a single record by ID. */
+	private Function<String, T> fetch;
+
+	/** Number of concurrent requests, 1 when records are requested one at a time. */
+	private int fetchThreads;
+
+	/** Limits the requests in progress to the number of fetch threads, null when records are requested one at a time. */
+	private Semaphore permits = null;
+
+	/** Executor for concurrent requests, created with the first page and shut down when the fetcher is closed. */
+	private ExecutorService executor = null;
+
+	/** Records the IDs of records that could not be retrieved. */
+	private DeadLetterFile deadLetters;
+
+	/** Requests for the current page of IDs, in page order. */
+	private List<Future<T>> pending = null;
+
+	/**
+	 * Instantiates a new OSF record fetcher that doesn't record failures.
+	 *
+	 * @param fetch function that retrieves a single record by ID
+	 * @param fetchThreads number of concurrent requests, 1 to request records one at a time
+	 */
+	public OsfRecordFetcher(Function<String, T> fetch, int fetchThreads) {
+		this(fetch, fetchThreads, new DeadLetterFile());
+	}
+
+	/**
+	 * Instantiates a new OSF record fetcher.
+	 *
+	 * @param fetch function that retrieves a single record by ID
+	 * @param fetchThreads number of concurrent requests, 1 to request records one at a time
+	 * @param deadLetters records the IDs of records that could not be retrieved
+	 */
+	public OsfRecordFetcher(Function<String, T> fetch, int fetchThreads, DeadLetterFile deadLetters) {
+		if (fetch==null){
+			throw new IllegalArgumentException("fetch cannot be null");
+		}
+		if (deadLetters==null){
+			throw new IllegalArgumentException("deadLetters cannot be null");
+		}
+		if (fetchThreads<1){
+			throw new IllegalArgumentException("fetchThreads must be at least 1");
+		}
+		this.fetch = fetch;
+		this.fetchThreads = fetchThreads;
+		this.deadLetters = deadLetters;
+		if (fetchThreads>1){
+			this.permits = new Semaphore(fetchThreads);
+		}
+	}
+
+	/**
+	 * Starts retrieving the records for a new page of IDs. Does nothing when records are requested one at a time.
+	 *
+	 * @param ids the IDs on the page, in page order
+	 */
+	public synchronized void loadPage(List<String> ids) {
+		if (permits==null){
+			return;
+		}
+		if (executor==null){
+			executor = newExecutor(fetchThreads);
+		}
+		List<Future<T>> requests = new ArrayList<Future<T>>(ids.size());
+		for (String id : ids){
+			requests.add(executor.submit(() -> fetchWithPermit(id)));
+		}
+		this.pending = requests;
+	}
+
+	/**
+	 * Stops the threads used for concurrent requests once any requests in progress are complete. 
+	 * If another page is loaded after the fetcher is closed, new threads are started for it.
+	 */
+	public synchronized void close() {
+		pending = null;
+		if (executor!=null){
+			executor.shutdown();
+			executor = null;
+		}
+	}
+
+	/**
+	 * Gets the record at a position on the current page, waiting for it if it is still being retrieved.
+	 *
+	 * @param position the position on the current page
+	 * @param id the record ID
+	 * @return the record
+	 */
+	public T get(int position, String id) {
+		try {
+			return retrieve(position, id);
+		} catch (RuntimeException e) {
+			deadLetters.add(id, e);
+			throw e;
+		}
+	}
+
+	/**
+	 * Retrieves the record at a position on the current page, or waits for the request already started.
+	 *
+	 * @param position the position on the current page
+	 * @param id the record ID
+	 * @return the record
+	 */
+	private T retrieve(int position, String id) {
+		Future<T> request = null;
+		synchronized (this) {
+			if (pending!=null){
+				request = pending.get(position);
+				pending.set(position, null); //don't hold on to records that have been handed back
+			}
+		}
+		if (request==null){
+			return fetch.apply(id);
+		}
+		try {
+			return request.get();
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException){
+				throw (RuntimeException) cause;
+			}
+			throw new RuntimeException("Could not retrieve record " + id, cause);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while retrieving record " + id, e);
+		}
+	}
+
+	/**
+	 * Retrieves a record once fewer than the number of fetch threads are in progress.
+	 *
+	 * @param id the record ID
+	 * @return the record
+	 */
+	private T fetchWithPermit(String id) {
+		try {
+			permits.acquire();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while retrieving record " + id, e);
+		}
+		try {
+			return fetch.apply(id);
+		} finally {
+			permits.release();
+		}
+	}
+
+	/**
+	 * Creates the executor used for concurrent requests. Uses a virtual thread per request where the JVM
+	 * supports it (Java 21+), otherwise a fixed pool of daemon threads. A virtual thread is started for every
+	 * task however many there are, so callers must limit the number of requests in progress themselves.
+	 *
+	 * @param fetchThreads the number of threads for the fixed pool
+	 * @return the executor
+	 */
+	protected static ExecutorService newExecutor(int fetchThreads) {
+		try {
+			Method virtual = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			log.debug("Using virtual threads to retrieve OSF records");
+			return (ExecutorService) virtual.invoke(null);
+		} catch (NoSuchMethodException e) {
+			//older JVM, use a bounded pool below
+		} catch (Exception e) {
+			log.warn("Could not create virtual thread executor, using a fixed thread pool", e);
+		}
+		return Executors.newFixedThreadPool(fetchThreads, runnable -> {
+			Thread thread = new Thread(runnable, "osf-fetch-" + threadCount.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+}
@@ -19,7 +19,10 @@
  *******************************************************************************/
 package info.rmapproject.transformer.osf;
 
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
 
 import info.rmapproject.cos.osf.client.model.LightRegistration;
 import info.rmapproject.cos.osf.client.model.NodeBase;
@@ -34,8 +37,14 @@ import info.rmapproject.transformer.model.RecordType;
  */
 public class OsfRegistrationApiIterator extends OsfNodeBaseApiIterator {
 	
-	/** The list of IDs to iterate over. */
-	protected List<LightRegistration> ids = null;
+	/** The list of IDs to iterate over. Not initialized here because the super constructor loads the first page. */
+	protected List<LightRegistration> ids;
+	
+	/** Retrieves the Registrations for the current page of IDs. */
+	protected OsfRecordFetcher<Registration> fetcher;
+	
+	/** Retrieves the pages of IDs, requesting pages ahead of the current one. Not initialized here because the super constructor loads the first page. */
+	protected OsfPagePrefetcher<LightRegistration> pages;
 	
     /**
      * Instantiates a new osf registration api iterator.
@@ -45,25 +54,77 @@ public class OsfRegistrationApiIterator extends OsfNodeBaseApiIterator {
     public OsfRegistrationApiIterator(String filters){
     	super(filters);
     }
+    
+    /**
+     * Instantiates a new OSF Registration API iterator that retrieves the Registrations on each page of IDs concurrently.
+     *
+     * @param filters the filters
+     * @param fetchThreads number of concurrent requests, 1 to retrieve Registrations one at a time
+     */
+    public OsfRegistrationApiIterator(String filters, int fetchThreads){
+    	super(filters, fetchThreads);
+    }
+    
+    /**
+     * Instantiates a new OSF Registration API iterator that retrieves the Registrations on each page of IDs concurrently, 
+     * and requests pages of IDs ahead of the current page.
+     *
+     * @param filters the filters
+     * @param fetchThreads number of concurrent requests, 1 to retrieve Registrations one at a time
+     * @param prefetchDepth number of pages of IDs to request ahead of the current page, 0 to request each page when it is needed
+     */
+    public OsfRegistrationApiIterator(String filters, int fetchThreads, int prefetchDepth){
+    	super(filters, fetchThreads, prefetchDepth);
+    }
+    
+    /**
+     * Instantiates a new OSF Registration API iterator that retrieves the Registrations on each page of IDs 
+     * concurrently, requests pages of IDs ahead of the current page, and uses the OSF client provided.
+     *
+     * @param filters the filters
+     * @param fetchThreads number of concurrent requests, 1 to retrieve Registrations one at a time
+     * @param prefetchDepth number of pages of IDs to request ahead of the current page, 0 to request each page when it is needed
+     * @param osfClient the OSF client
+     */
+    public OsfRegistrationApiIterator(String filters, int fetchThreads, int prefetchDepth, OsfClientService osfClient){
+    	super(filters, fetchThreads, prefetchDepth, osfClient);
+    }
+    
+    /**
+     * Instantiates a new OSF Registration API iterator that retrieves the Registrations on each page of IDs 
+     * concurrently, requests pages of IDs ahead of the current page, uses the OSF client provided, and keeps 
+     * parent access results in the cache provided.
+     *
+     * @param filters the filters
+     * @param fetchThreads number of concurrent requests, 1 to retrieve Registrations one at a time
+     * @param prefetchDepth number of pages of IDs to request ahead of the current page, 0 to request each page when it is needed
+     * @param osfClient the OSF client
+     * @param parentAccessCache the cache of parent access results
+     */
+    public OsfRegistrationApiIterator(String filters, int fetchThreads, int prefetchDepth, OsfClientService osfClient, 
+    		ParentAccessCache parentAccessCache){
+    	super(filters, fetchThreads, prefetchDepth, osfClient, parentAccessCache);
+    }
     	
 	/**
 	 * Load batch of OSF data from API using parameters defined.
 	 */
     @Override
 	protected void loadBatch() {
+		//clear the current page first, so that if the next page fails the IDs already handed back are not repeated
 		position = -1;
 		nextId = null;
+		ids = null;
 		try {
-			Integer page = 0;
-			String pageval = params.get("page");
-			if (pageval!=null && !pageval.isEmpty()){
-				page = Integer.parseInt(pageval);
+			if (pages==null){
+				pages = new OsfPagePrefetcher<LightRegistration>(osfClient::getRegistrationIds, params, prefetchDepth, 
+						osfClient.getDeadLetterFile());
 			}
-			page=page+1;
-			params.put("page", page.toString());
-			log.info("Loading page " + page);
-    		ids = osfClient.getRegistrationIds(params);
-			nextId = ids.get(0).getId();
+			ids = pages.next();
+			if (fetcher==null){
+				fetcher = new OsfRecordFetcher<Registration>(this::fetchRegistration, fetchThreads, osfClient.getDeadLetterFile());
+			}
+			fetcher.loadPage(ids.stream().map(LightRegistration::getId).collect(Collectors.toList()));
 		} catch(Exception e){
 			log.error("Could not load list of records to iterate over.");
 			throw new RuntimeException("Could not load list of records to iterate over.", e);
@@ -79,6 +140,30 @@ public class OsfRegistrationApiIterator extends OsfNodeBaseApiIterator {
 		return (position==(ids.size()-1));
 	}
 
+    /* (non-Javadoc)
+     * @see info.rmapproject.transformer.osf.OsfNodeBaseApiIterator#getPage()
+     */
+    @Override
+	protected int getPage() {
+		return (pages==null) ? 0 : pages.getPage();
+	}
+
+    /* (non-Javadoc)
+     * @see info.rmapproject.transformer.osf.OsfNodeBaseApiIterator#restartAt(int)
+     */
+    @Override
+	protected void restartAt(int page) {
+		if (pages!=null){
+			pages.close();
+		}
+		Map<String, String> restart = new HashMap<String, String>(params);
+		restart.put("page", String.valueOf(page-1)); //the prefetcher starts at the page after this
+		pages = new OsfPagePrefetcher<LightRegistration>(osfClient::getRegistrationIds, restart, prefetchDepth, 
+				osfClient.getDeadLetterFile());
+		ids = null;
+		loadNextId();
+	}
+
     /* (non-Javadoc)
      * @see info.rmapproject.transformer.osf.OsfNodeBaseApiIterator#loadNextId()
      */
@@ -86,6 +171,10 @@ public class OsfRegistrationApiIterator extends OsfNodeBaseApiIterator {
 	protected void loadNextId(){
 		if (ids==null || isLastRow()){
 			loadBatch();
+			if (ids.isEmpty()){
+				fetcher.close();
+				return; //no more records
+			}
 		}
 		position = position+1;
 		nextId = ids.get(position).getId();
@@ -102,15 +191,16 @@ public class OsfRegistrationApiIterator extends OsfNodeBaseApiIterator {
 		try {			
 			while(registration==null && hasNext()) {
 				//load next
-				registration = osfClient.getRegistration(nextId);
-				if (hasAccessibleParent(registration)){
-					registration = null;
-				}
+				registration = fetcher.get(position, nextId);
 				loadNextId();
 			} 
 		} catch (Exception e){
 			//load failed... though there may be another record... so let's load it for the next iteration
 			loadNextId();
+			if (registration!=null){
+				//the record was retrieved but the page after it was not, the page is noted in the dead letter file
+				return new RecordDTO(registration, registration.getId(), RecordType.OSF_REGISTRATION);
+			}
 			throw new RuntimeException("Iterator failed to load Record for import",e);
 		}
 
@@ -122,6 +212,20 @@ public class OsfRegistrationApiIterator extends OsfNodeBaseApiIterator {
 		return registrationDTO;
 	}
 	
+	/**
+	 * Retrieves a Registration, skipping it if it has an accessible parent.
+	 *
+	 * @param id the Registration ID
+	 * @return the Registration, or null if it should be skipped
+	 */
+	protected Registration fetchRegistration(String id) {
+		Registration registration = osfClient.getRegistration(id);
+		if (hasAccessibleParent(registration)){
+			registration = null;
+		}
+		return registration;
+	}
+	
     
     /**
      * Checks for any criteria that would exclude this record
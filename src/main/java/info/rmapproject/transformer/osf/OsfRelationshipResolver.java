@@ -0,0 +1,463 @@
+/*******************************************************************************
+ * Copyright 2017 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This software was produced as part of the RMap Project (http://rmap-project.info),
+ * The RMap Project was funded by the Alfred P. Sloan Foundation and is a
+ * collaboration between Data Conservancy, Portico, and IEEE.
+ *******************************************************************************/
+package info.rmapproject.transformer.osf;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.squareup.okhttp.Headers;
+import com.squareup.okhttp.Interceptor;
+import com.squareup.okhttp.MediaType;
+import com.squareup.okhttp.OkHttpClient;
+import com.squareup.okhttp.Protocol;
+import com.squareup.okhttp.Request;
+import com.squareup.okhttp.Response;
+import com.squareup.okhttp.ResponseBody;
+
+/**
+ * Resolves the related resources of OSF records so that each one is only requested once per run. Successful
+ * responses for the relationships of a record, such as /v2/nodes/{id}/contributors/, are kept in memory in a 
+ * least recently used cache keyed by URL, bounded by the total size of the responses held, and a request for 
+ * a URL that is already being requested waits for that response rather than sending its own. Records themselves
+ * and pages of record IDs are passed through, as are responses too large to cache, which are not read into 
+ * memory. Optionally, when a Node, Registration or User is retrieved the related links of its relationships 
+ * are requested concurrently in the background, so that by the time the JSON API converter resolves each 
+ * relationship in turn the response is cached or on its way; this is off by default, see setPrefetch().
+ */
+public class OsfRelationshipResolver implements Interceptor {
+
+    /** The log. */
+    private static final Logger log = LoggerFactory.getLogger(OsfRelationshipResolver.class);
+
+	/** The default maximum total size of the responses cached, in bytes. */
+	public static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+
+	/** The default number of threads requesting related resources in the background. */
+	public static final int DEFAULT_THREADS = 8;
+
+	/** The relationships requested in the background when this is turned on, those read when building DiSCOs. */
+	public static final List<String> DEFAULT_PREFETCH = Arrays.asList("contributors", "children", "identifiers", 
+																		"files", "affiliated_institutions");
+
+	/** Largest response cached; larger responses are passed on without being kept. */
+	private static final int MAX_RESPONSE_BYTES = 1024 * 1024;
+
+	/** Path of a request for a single Node, Registration or User. */
+	private static final Pattern RECORD_PATH = Pattern.compile(".*/(nodes|registrations|users)/[^/]+/?");
+
+	/** Path of a request for the related resources of a Node, Registration or User. */
+	private static final Pattern RELATIONSHIP_PATH = Pattern.compile(".*/(nodes|registrations|users)/[^/]+/[^/]+/?");
+
+	/** Mapper used to read related links from records. */
+	private static final ObjectMapper mapper = new ObjectMapper();
+
+	/** Cached responses by URL, in access order. */
+	private final LinkedHashMap<String, CachedResponse> cache = new LinkedHashMap<String, CachedResponse>(16, 0.75f, true);
+
+	/** Requests in progress by URL, completed with null if the response is not successful. */
+	private final Map<String, CompletableFuture<CachedResponse>> inFlight = new ConcurrentHashMap<String, CompletableFuture<CachedResponse>>();
+
+	/** Total size of the cached responses in bytes. */
+	private long cachedBytes = 0;
+
+	/** Maximum total size of the cached responses in bytes. */
+	private long maxBytes = DEFAULT_MAX_BYTES;
+
+	/** The relationships requested in the background, none unless set. */
+	private volatile List<String> prefetch = Collections.emptyList();
+
+	/** The client background requests are sent with, set by OsfHttpClient when it adds the resolver to a client. */
+	private volatile OkHttpClient client = null;
+
+	/** Executor for background requests, created on first use. */
+	private ExecutorService executor = null;
+
+	/** Limits the background requests in progress to DEFAULT_THREADS. */
+	private final Semaphore permits = new Semaphore(DEFAULT_THREADS);
+
+	/** Number of requests answered from the cache. */
+	private final AtomicLong hits = new AtomicLong();
+
+	/** Number of requests answered by the same request already in progress. */
+	private final AtomicLong joined = new AtomicLong();
+
+	/** Number of requests sent on to the API. */
+	private final AtomicLong misses = new AtomicLong();
+
+	/* (non-Javadoc)
+	 * @see com.squareup.okhttp.Interceptor#intercept(com.squareup.okhttp.Interceptor.Chain)
+	 */
+	@Override
+	public Response intercept(Chain chain) throws IOException {
+		Request request = chain.request();
+		if (!request.method().equals("GET")){
+			return chain.proceed(request);
+		}
+		if (!RELATIONSHIP_PATH.matcher(request.httpUrl().encodedPath()).matches()){
+			Response response = chain.proceed(request);
+			if (!prefetch.isEmpty() && RECORD_PATH.matcher(request.httpUrl().encodedPath()).matches() 
+					&& response.isSuccessful() && fitsInMemory(response.body())){
+				MediaType contentType = response.body().contentType();
+				byte[] body = response.body().bytes();
+				prefetchRelationships(body);
+				response = response.newBuilder().body(ResponseBody.create(contentType, body)).build();
+			}
+			return response;
+		}
+		String url = request.urlString();
+		CachedResponse cached = getCached(url);
+		if (cached!=null){
+			hits.incrementAndGet();
+			return cached.toResponse(request);
+		}
+
+		CompletableFuture<CachedResponse> pending = new CompletableFuture<CachedResponse>();
+		CompletableFuture<CachedResponse> existing = inFlight.putIfAbsent(url, pending);
+		if (existing!=null){
+			cached = await(existing, url);
+			if (cached!=null){
+				joined.incrementAndGet();
+				return cached.toResponse(request);
+			}
+			//the other request was not successful, send this one for its own response
+			misses.incrementAndGet();
+			return chain.proceed(request);
+		}
+
+		misses.incrementAndGet();
+		try {
+			Response response = chain.proceed(request);
+			if (!response.isSuccessful() || !fitsInMemory(response.body())){
+				pending.complete(null);
+				return response;
+			}
+			cached = new CachedResponse(response, response.body().bytes());
+			putCached(url, cached);
+			pending.complete(cached);
+			return response.newBuilder().body(ResponseBody.create(cached.contentType, cached.body)).build();
+		} catch (IOException | RuntimeException e) {
+			pending.complete(null);
+			throw e;
+		} finally {
+			inFlight.remove(url, pending);
+		}
+	}
+
+	/**
+	 * Checks whether a response body is small enough to be read into memory, using its Content-Length 
+	 * where there is one. Otherwise up to the limit is buffered to find out; the body can still be read
+	 * in full afterwards.
+	 *
+	 * @param body the response body
+	 * @return true if the body is no larger than MAX_RESPONSE_BYTES
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	private static boolean fitsInMemory(ResponseBody body) throws IOException {
+		long length = body.contentLength();
+		if (length>=0){
+			return length<=MAX_RESPONSE_BYTES;
+		}
+		return !body.source().request(MAX_RESPONSE_BYTES + 1);
+	}
+
+	/**
+	 * Waits for a request already in progress.
+	 *
+	 * @param request the request in progress
+	 * @param url the URL requested
+	 * @return the response, or null if it was not successful
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	private CachedResponse await(CompletableFuture<CachedResponse> request, String url) throws IOException {
+		try {
+			return request.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for " + url, e);
+		} catch (ExecutionException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Requests the related links of a record's relationships, and those of the resources included with it,
+	 * in the background. Links already cached or requested are skipped.
+	 *
+	 * @param document the JSON API document for the record
+	 */
+	private void prefetchRelationships(byte[] document) {
+		List<String> urls = new ArrayList<String>();
+		try {
+			JsonNode root = mapper.readTree(document);
+			addRelatedLinks(root.path("data"), urls);
+			for (JsonNode resource : root.path("included")){
+				addRelatedLinks(resource, urls);
+			}
+		} catch (IOException e) {
+			//leave it to the converter to report
+			log.debug("Could not read relationships to request in the background", e);
+			return;
+		}
+		if (client==null){
+			return;
+		}
+		for (String url : urls){
+			if (getCached(url)==null && !inFlight.containsKey(url)){
+				getExecutor().execute(() -> request(url));
+			}
+		}
+	}
+
+	/**
+	 * Adds the related links for a resource's relationships, if they are among those prefetched.
+	 *
+	 * @param resource the resource
+	 * @param urls the list of links to add to
+	 */
+	private void addRelatedLinks(JsonNode resource, List<String> urls) {
+		Iterator<Map.Entry<String, JsonNode>> relationships = resource.path("relationships").fields();
+		while (relationships.hasNext()){
+			Map.Entry<String, JsonNode> relationship = relationships.next();
+			if (!prefetch.contains(relationship.getKey())){
+				continue;
+			}
+			//a link can be a URL or an object with an href
+			JsonNode related = relationship.getValue().path("links").path("related");
+			String url = related.isTextual() ? related.asText() : related.path("href").asText(null);
+			if (url!=null && url.length()>0 && !urls.contains(url)){
+				urls.add(url);
+			}
+		}
+	}
+
+	/**
+	 * Requests a URL through the client the resolver was added to, so that the response is cached.
+	 *
+	 * @param url the URL
+	 */
+	private void request(String url) {
+		try {
+			permits.acquire();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return;
+		}
+		try {
+			client.newCall(new Request.Builder().url(url).build()).execute().body().close();
+		} catch (Exception e) {
+			//it will be requested again when the relationship is resolved
+			log.debug("Could not request " + url + " in the background", e);
+		} finally {
+			permits.release();
+		}
+	}
+
+	/**
+	 * Gets the executor for background requests, creating it on first use.
+	 *
+	 * @return the executor
+	 */
+	private synchronized ExecutorService getExecutor() {
+		if (executor==null){
+			executor = OsfRecordFetcher.newExecutor(DEFAULT_THREADS);
+		}
+		return executor;
+	}
+
+	/**
+	 * Gets a cached response.
+	 *
+	 * @param url the URL
+	 * @return the response, or null if not cached
+	 */
+	private synchronized CachedResponse getCached(String url) {
+		return cache.get(url);
+	}
+
+	/**
+	 * Caches a response, removing the least recently used responses until the cache is within its maximum size.
+	 *
+	 * @param url the URL
+	 * @param response the response
+	 */
+	private synchronized void putCached(String url, CachedResponse response) {
+		CachedResponse replaced = cache.put(url, response);
+		cachedBytes = cachedBytes + response.body.length - ((replaced==null) ? 0 : replaced.body.length);
+		Iterator<CachedResponse> eldest = cache.values().iterator();
+		while (cachedBytes>maxBytes && eldest.hasNext()){
+			cachedBytes = cachedBytes - eldest.next().body.length;
+			eldest.remove();
+		}
+	}
+
+	/**
+	 * Sets the client that background requests are sent with, which should be the client the resolver is added to.
+	 *
+	 * @param client the HTTP client
+	 */
+	void setClient(OkHttpClient client) {
+		this.client = client;
+	}
+
+	/**
+	 * Removes all cached responses.
+	 */
+	public synchronized void clear() {
+		cache.clear();
+		cachedBytes = 0;
+	}
+
+	/**
+	 * Gets the number of responses cached.
+	 *
+	 * @return the number of responses
+	 */
+	public synchronized int size() {
+		return cache.size();
+	}
+
+	/**
+	 * Sets the maximum total size of the responses cached, in bytes.
+	 *
+	 * @param maxBytes the maximum number of bytes
+	 */
+	public synchronized void setMaxBytes(long maxBytes) {
+		if (maxBytes<0){
+			throw new IllegalArgumentException("maxBytes cannot be negative");
+		}
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * Sets the names of the relationships whose related links are requested in the background when a record 
+	 * is retrieved, e.g. DEFAULT_PREFETCH. An empty list, the default, turns off background requests.
+	 *
+	 * @param prefetch the relationship names
+	 */
+	public void setPrefetch(List<String> prefetch) {
+		if (prefetch==null){
+			throw new IllegalArgumentException("prefetch cannot be null");
+		}
+		this.prefetch = prefetch;
+	}
+
+	/**
+	 * Gets the number of requests answered from the cache.
+	 *
+	 * @return the hit count
+	 */
+	public long getHitCount() {
+		return hits.get();
+	}
+
+	/**
+	 * Gets the number of requests that waited for the same request already in progress.
+	 *
+	 * @return the joined count
+	 */
+	public long getJoinedCount() {
+		return joined.get();
+	}
+
+	/**
+	 * Gets the number of requests sent on to the API, or to the response cache on disk if there is one.
+	 *
+	 * @return the miss count
+	 */
+	public long getMissCount() {
+		return misses.get();
+	}
+
+
+	/**
+	 * A response held in memory.
+	 */
+	private static class CachedResponse {
+
+		/** The protocol. */
+		private final Protocol protocol;
+
+		/** The response code. */
+		private final int code;
+
+		/** The response message. */
+		private final String message;
+
+		/** The response headers. */
+		private final Headers headers;
+
+		/** The body content type. */
+		private final MediaType contentType;
+
+		/** The body. */
+		private final byte[] body;
+
+		/**
+		 * Instantiates a new cached response.
+		 *
+		 * @param response the response
+		 * @param body the response body, already read
+		 */
+		private CachedResponse(Response response, byte[] body) {
+			this.protocol = response.protocol();
+			this.code = response.code();
+			this.message = response.message();
+			this.headers = response.headers();
+			this.contentType = response.body().contentType();
+			this.body = body;
+		}
+
+		/**
+		 * Creates a response to a request from the cached response.
+		 *
+		 * @param request the request
+		 * @return the response
+		 */
+		private Response toResponse(Request request) {
+			return new Response.Builder()
+					.request(request)
+					.protocol(protocol)
+					.code(code)
+					.message(message)
+					.headers(headers)
+					.body(ResponseBody.create(contentType, body))
+					.build();
+		}
+	}
+
+}
@@ -21,15 +21,16 @@ package info.rmapproject.transformer.osf;
 
 import java.net.URISyntaxException;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.stream.Collectors;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import info.rmapproject.cos.osf.client.model.LightUser;
 import info.rmapproject.cos.osf.client.model.User;
+import info.rmapproject.transformer.ResumableIterator;
 import info.rmapproject.transformer.TransformUtils;
 import info.rmapproject.transformer.model.RecordDTO;
 import info.rmapproject.transformer.model.RecordType;
@@ -37,7 +38,7 @@ import info.rmapproject.transformer.model.RecordType;
 /**
  * OSF User Iterator class
  */
-public class OsfUserApiIterator implements Iterator<RecordDTO>{
+public class OsfUserApiIterator implements ResumableIterator {
 
     /** The log. */
     private static final Logger log = LoggerFactory.getLogger(OsfUserApiIterator.class);  
@@ -56,6 +57,15 @@ public class OsfUserApiIterator implements Iterator<RecordDTO>{
     
     /** The OSF client. */
     private OsfClientService osfClient = null;
+    
+    /** Retrieves the Users for the current page of IDs. */
+    private OsfRecordFetcher<User> fetcher = null;
+    
+    /** Retrieves the pages of User IDs, requesting pages ahead of the current one. */
+    private OsfPagePrefetcher<LightUser> pages = null;
+    
+    /** Number of pages of IDs to request ahead of the current page. */
+    private int prefetchDepth = OsfPagePrefetcher.DEFAULT_DEPTH;
 		
 	/**
 	 * Instantiates a new OSF User API iterator.
@@ -68,6 +78,44 @@ public class OsfUserApiIterator implements Iterator<RecordDTO>{
 	 * @param filters the API filters
 	 */
 	public OsfUserApiIterator(String filters) {
+		this(filters, 1);
+	}
+
+	/**
+	 * Instantiates a new OSF User API iterator that retrieves the Users on each page of IDs concurrently.
+	 *
+	 * @param filters the API filters
+	 * @param fetchThreads number of concurrent requests, 1 to retrieve Users one at a time
+	 */
+	public OsfUserApiIterator(String filters, int fetchThreads) {
+		this(filters, fetchThreads, OsfPagePrefetcher.DEFAULT_DEPTH);
+	}
+
+	/**
+	 * Instantiates a new OSF User API iterator that retrieves the Users on each page of IDs concurrently,
+	 * and requests pages of IDs ahead of the current page.
+	 *
+	 * @param filters the API filters
+	 * @param fetchThreads number of concurrent requests, 1 to retrieve Users one at a time
+	 * @param prefetchDepth number of pages of IDs to request ahead of the current page, 0 to request each page when it is needed
+	 */
+	public OsfUserApiIterator(String filters, int fetchThreads, int prefetchDepth) {
+		this(filters, fetchThreads, prefetchDepth, new OsfClientService());
+	}
+
+	/**
+	 * Instantiates a new OSF User API iterator that retrieves the Users on each page of IDs concurrently,
+	 * requests pages of IDs ahead of the current page, and uses the OSF client provided.
+	 *
+	 * @param filters the API filters
+	 * @param fetchThreads number of concurrent requests, 1 to retrieve Users one at a time
+	 * @param prefetchDepth number of pages of IDs to request ahead of the current page, 0 to request each page when it is needed
+	 * @param osfClient the OSF client
+	 */
+	public OsfUserApiIterator(String filters, int fetchThreads, int prefetchDepth, OsfClientService osfClient) {
+		if (osfClient==null){
+			throw new IllegalArgumentException("osfClient cannot be null");
+		}
 		HashMap<String,String> params=null;
 		try{
 			params = TransformUtils.readParamsIntoMap(filters, "UTF-8");
@@ -77,7 +125,11 @@ public class OsfUserApiIterator implements Iterator<RecordDTO>{
 			throw new RuntimeException("could not initiate OSF Api Iterator", e);    		
 		}
 		this.params = params;
-		this.osfClient = new OsfClientService();
+		this.osfClient = osfClient;
+		this.fetcher = new OsfRecordFetcher<User>(osfClient::getUser, fetchThreads, osfClient.getDeadLetterFile());
+		this.prefetchDepth = prefetchDepth;
+		this.pages = new OsfPagePrefetcher<LightUser>(osfClient::getUserIds, params, prefetchDepth, 
+				osfClient.getDeadLetterFile());
 		// this loads next record to be retrieved, each next() retrieves currReg and loads next one.
 		loadNextId(); 
 	}
@@ -102,12 +154,16 @@ public class OsfUserApiIterator implements Iterator<RecordDTO>{
 		try {			
 			while(user==null && hasNext()) {
 				//load next
-				user = osfClient.getUser(nextId);
+				user = fetcher.get(position, nextId);
 				loadNextId();
 			} 
 		} catch (Exception e){
 			//load failed... though there may be another record... so let's load it for the next iteration
 			loadNextId();
+			if (user!=null){
+				//the record was retrieved but the page after it was not, the page is noted in the dead letter file
+				return new RecordDTO(user, user.getId(), RecordType.OSF_USER);
+			}
 			throw new RuntimeException("Iterator failed to load Record for import:" + nextId,e);
 		}
 
@@ -119,24 +175,60 @@ public class OsfUserApiIterator implements Iterator<RecordDTO>{
 		return userDTO;
 	}
 
+	/**
+	 * Gets the position of the next ID as page:index, where index is the position on the page. 
+	 * 
+	 * @see info.rmapproject.transformer.ResumableIterator#getPosition()
+	 */
+	@Override
+	public String getPosition() {
+		if (nextId==null){
+			return END;
+		}
+		return pages.getPage() + ":" + position;
+	}
+
+	/**
+	 * Moves to the position given. If this is not on the current page, the current page of IDs is discarded 
+	 * and the page in the position is requested.
+	 * 
+	 * @see info.rmapproject.transformer.ResumableIterator#resume(java.lang.String)
+	 */
+	@Override
+	public void resume(String position) {
+		if (position==null){
+			throw new IllegalArgumentException("position cannot be null");
+		}
+		if (position.equals(END)){
+			nextId = null;
+			return;
+		}
+		int[] pageIndex = OsfNodeBaseApiIterator.parsePosition(position);
+		if (pageIndex[0]!=pages.getPage()){
+			pages.close();
+			Map<String, String> restart = new HashMap<String, String>(params);
+			restart.put("page", String.valueOf(pageIndex[0]-1)); //the prefetcher starts at the page after this
+			pages = new OsfPagePrefetcher<LightUser>(osfClient::getUserIds, restart, prefetchDepth, 
+					osfClient.getDeadLetterFile());
+			ids = null;
+			loadNextId();
+		}
+		while (nextId!=null && pages.getPage()==pageIndex[0] && this.position<pageIndex[1]){
+			loadNextId();
+		}
+	}
 	
 	/**
 	 * Load batch of OSF data from API using parameters defined.
 	 */
 	protected void loadBatch() {
+		//clear the current page first, so that if the next page fails the IDs already handed back are not repeated
 		position = -1;
 		nextId = null;
+		ids = null;
 		try {
-			Integer page = 0;
-			String pageval = params.get("page");
-			if (pageval!=null && !pageval.isEmpty()){
-				page = Integer.parseInt(pageval);
-			}
-			page=page+1;
-			params.put("page", page.toString());
-			log.info("Loading page " + page);
-    		ids = osfClient.getUserIds(params);
-			nextId = ids.get(0).getId();
+			ids = pages.next();
+			fetcher.loadPage(ids.stream().map(LightUser::getId).collect(Collectors.toList()));
 		} catch(Exception e){
 			log.error("Could not load list of records to iterate over.");
 			throw new RuntimeException(e);
@@ -149,6 +241,10 @@ public class OsfUserApiIterator implements Iterator<RecordDTO>{
 	protected void loadNextId(){
 		if (ids==null || isLastRow()){
 			loadBatch();
+			if (ids.isEmpty()){
+				fetcher.close();
+				return; //no more records
+			}
 		}
 		position = position+1;
 		nextId = ids.get(position).getId();
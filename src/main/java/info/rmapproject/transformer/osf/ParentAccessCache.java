@@ -0,0 +1,267 @@
+/*******************************************************************************
+ * Copyright 2017 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This software was produced as part of the RMap Project (http://rmap-project.info),
+ * The RMap Project was funded by the Alfred P. Sloan Foundation and is a
+ * collaboration between Data Conservancy, Portico, and IEEE.
+ *******************************************************************************/
+package info.rmapproject.transformer.osf;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Bounded cache of whether OSF parent nodes are accessible through the API, keyed by parent ID.
+ * Children of the same parent can then be checked without requesting the parent again. Entries expire
+ * after a time to live, and the least recently used entry is removed when the cache is full.
+ * The cache can be saved to a file and loaded again so that a later run can skip the requests,
+ * with entries keeping the time they were checked so they expire as they would have in memory.
+ * One instance is passed to the OSF Node or Registration iterator of a run.
+ */
+public class ParentAccessCache {
+
+    /** The log. */
+    private static final Logger log = LoggerFactory.getLogger(ParentAccessCache.class);
+
+	/** The default maximum number of parents held. */
+	public static final int DEFAULT_MAX_ENTRIES = 10000;
+
+	/** The default time an entry is kept, in milliseconds. */
+	public static final long DEFAULT_TTL = TimeUnit.HOURS.toMillis(24);
+
+	/** Parent ID to access result, in least to most recently used order. */
+	private final LinkedHashMap<String, AccessResult> entries;
+
+	/** Maximum number of parents held. */
+	private int maxEntries = DEFAULT_MAX_ENTRIES;
+
+	/** Time an entry is kept, in milliseconds. */
+	private long ttl = DEFAULT_TTL;
+
+	/** Number of lookups that found an unexpired entry. */
+	private final AtomicLong hits = new AtomicLong(0);
+
+	/** Number of lookups that found no entry or an expired one. */
+	private final AtomicLong misses = new AtomicLong(0);
+
+	/**
+	 * Instantiates a new, empty parent access cache.
+	 */
+	public ParentAccessCache() {
+		this.entries = new LinkedHashMap<String, AccessResult>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, AccessResult> eldest) {
+				return size() > maxEntries;
+			}
+		};
+	}
+
+	/**
+	 * Gets whether a parent was found to be accessible, counting a hit or a miss.
+	 *
+	 * @param parentId the parent ID
+	 * @return true if accessible, false if not, or null if the parent is not cached or its entry has expired
+	 */
+	public synchronized Boolean get(String parentId) {
+		AccessResult entry = entries.get(parentId);
+		if (entry!=null && isExpired(entry)){
+			entries.remove(parentId);
+			entry = null;
+		}
+		if (entry==null){
+			misses.incrementAndGet();
+			return null;
+		}
+		hits.incrementAndGet();
+		return entry.accessible;
+	}
+
+	/**
+	 * Records whether a parent is accessible.
+	 *
+	 * @param parentId the parent ID
+	 * @param accessible true if the parent is accessible
+	 */
+	public synchronized void put(String parentId, boolean accessible) {
+		if (parentId==null){
+			throw new IllegalArgumentException("parentId cannot be null");
+		}
+		entries.put(parentId, new AccessResult(accessible, System.currentTimeMillis()));
+	}
+
+	/**
+	 * Loads entries saved by a previous run, ignoring any that have expired. Does nothing if the file does not exist.
+	 *
+	 * @param file the cache file
+	 */
+	public synchronized void load(File file) {
+		if (!file.exists()){
+			return;
+		}
+		int loaded = 0;
+		try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+			String line;
+			while ((line = reader.readLine())!=null){
+				String[] fields = line.split("\t");
+				if (fields.length!=3){
+					log.warn("Skipping invalid line in parent access cache " + file + ": " + line);
+					continue;
+				}
+				AccessResult entry = new AccessResult(Boolean.parseBoolean(fields[1]), Long.parseLong(fields[2]));
+				if (!isExpired(entry)){
+					entries.put(fields[0], entry);
+					loaded = loaded + 1;
+				}
+			}
+		} catch (IOException | NumberFormatException e) {
+			throw new RuntimeException("Could not load parent access cache from " + file, e);
+		}
+		log.info("Loaded " + loaded + " parents from parent access cache " + file);
+	}
+
+	/**
+	 * Saves the unexpired entries so that a later run can load them. The file is replaced once the new
+	 * entries are completely written.
+	 *
+	 * @param file the cache file
+	 */
+	public synchronized void save(File file) {
+		File parentFolder = file.getAbsoluteFile().getParentFile();
+		if (parentFolder!=null && !parentFolder.exists()){
+			parentFolder.mkdirs();
+		}
+		File tmp = new File(file.getPath() + ".tmp");
+		try {
+			try (BufferedWriter writer = Files.newBufferedWriter(tmp.toPath(), StandardCharsets.UTF_8)) {
+				for (Map.Entry<String, AccessResult> entry : entries.entrySet()){
+					if (!isExpired(entry.getValue())){
+						writer.write(entry.getKey() + "\t" + entry.getValue().accessible + "\t" + entry.getValue().checked + "\n");
+					}
+				}
+			}
+			Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		} catch (IOException e) {
+			throw new RuntimeException("Could not save parent access cache to " + file, e);
+		}
+	}
+
+	/**
+	 * Removes all entries and resets the hit and miss counts.
+	 */
+	public synchronized void clear() {
+		entries.clear();
+		hits.set(0);
+		misses.set(0);
+	}
+
+	/**
+	 * Checks whether an entry has outlived the time to live.
+	 *
+	 * @param entry the entry
+	 * @return true if expired
+	 */
+	private boolean isExpired(AccessResult entry) {
+		return System.currentTimeMillis() - entry.checked > ttl;
+	}
+
+	/**
+	 * Gets the number of lookups that found an unexpired entry.
+	 *
+	 * @return the hit count
+	 */
+	public long getHitCount() {
+		return hits.get();
+	}
+
+	/**
+	 * Gets the number of lookups that found no entry or an expired one.
+	 *
+	 * @return the miss count
+	 */
+	public long getMissCount() {
+		return misses.get();
+	}
+
+	/**
+	 * Gets the number of parents held, including any expired entries not yet removed.
+	 *
+	 * @return the number of entries
+	 */
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	/**
+	 * Sets the maximum number of parents held. The least recently used entries are removed beyond this.
+	 *
+	 * @param maxEntries the maximum number of entries
+	 */
+	public synchronized void setMaxEntries(int maxEntries) {
+		if (maxEntries<1){
+			throw new IllegalArgumentException("maxEntries must be at least 1");
+		}
+		this.maxEntries = maxEntries;
+	}
+
+	/**
+	 * Sets how long an entry is kept before the parent must be checked again.
+	 *
+	 * @param ttl the time to live in milliseconds
+	 */
+	public synchronized void setTtl(long ttl) {
+		if (ttl<1){
+			throw new IllegalArgumentException("ttl must be at least 1");
+		}
+		this.ttl = ttl;
+	}
+
+
+	/**
+	 * Access result for a parent and the time it was checked.
+	 */
+	private static class AccessResult {
+
+		/** True if the parent is accessible. */
+		private final boolean accessible;
+
+		/** Time the parent was checked, in milliseconds since the epoch. */
+		private final long checked;
+
+		/**
+		 * Instantiates a new entry.
+		 *
+		 * @param accessible true if the parent is accessible
+		 * @param checked time the parent was checked
+		 */
+		private AccessResult(boolean accessible, long checked) {
+			this.accessible = accessible;
+			this.checked = checked;
+		}
+	}
+
+}
@@ -0,0 +1,225 @@
+/*******************************************************************************
+ * Copyright 2017 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This software was produced as part of the RMap Project (http://rmap-project.info),
+ * The RMap Project was funded by the Alfred P. Sloan Foundation and is a
+ * collaboration between Data Conservancy, Portico, and IEEE.
+ *******************************************************************************/
+package info.rmapproject.transformer.output;
+
+import info.rmapproject.transformer.DiscoSource;
+import info.rmapproject.transformer.TransformUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.openrdf.model.Model;
+import org.openrdf.rio.RDFFormat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Writes DiSCOs as entries in tar or zip bundles, one entry per DiSCO named using the DiSCO
+ * filename. Entries are Turtle unless another RDF format is set. For tar bundles, the offset and length in the index are the position of the entry's data
+ * in the tar, before any gzip compression. For zip bundles, they are the position of the entry,
+ * including its local header, in the zip file.
+ */
+public class ArchiveBundleOutput extends BundleOutput {
+
+    /** The log. */
+    private static final Logger log = LoggerFactory.getLogger(ArchiveBundleOutput.class);
+
+	/** Size of a tar header or data block. */
+	private static final int TAR_BLOCK_SIZE = 512;
+
+	/** Maximum length of a name that fits in a tar header. */
+	private static final int TAR_NAME_LENGTH = 100;
+
+	/**
+	 * Archive formats supported for bundles.
+	 */
+	public enum ArchiveFormat {
+
+		/** Tar archive, which can be gzip compressed as a whole. */
+		TAR,
+
+		/** Zip archive, each entry compressed separately. */
+		ZIP
+	}
+
+	/** The archive format. */
+	private ArchiveFormat format;
+
+	/** RDF format for the entries. */
+	private RDFFormat rdfFormat = RDFFormat.TURTLE;
+
+	/** Tar stream for the current bundle. */
+	private TarArchiveOutputStream tar = null;
+
+	/** Zip stream for the current bundle. */
+	private ZipOutputStream zip = null;
+
+	/** Position in the current tar bundle, tracked by block since the tar stream buffers its output. */
+	private long tarPosition = 0;
+
+	/** Entry names used in the current bundle. */
+	private Set<String> entryNames = new HashSet<String>();
+
+	/**
+	 * Instantiates a new archive bundle output.
+	 *
+	 * @param outputPath the output path
+	 * @param format the archive format
+	 */
+	public ArchiveBundleOutput(String outputPath, ArchiveFormat format) {
+		super(outputPath);
+		if (format==null){
+			throw new IllegalArgumentException("format cannot be null");
+		}
+		this.format = format;
+	}
+
+	/* (non-Javadoc)
+	 * @see info.rmapproject.transformer.output.DiscoOutput#serialize(java.lang.String, org.openrdf.model.Model)
+	 */
+	@Override
+	public ByteArrayOutputStream serialize(String id, Model model) {
+		return TransformUtils.generateRdf(model, rdfFormat);
+	}
+
+	/* (non-Javadoc)
+	 * @see info.rmapproject.transformer.output.DiscoOutput#write(java.lang.String, java.lang.String, info.rmapproject.transformer.DiscoSource)
+	 */
+	@Override
+	public void write(String id, String filename, DiscoSource source) {
+		write(id, filename, TransformUtils.generateRdf(source, rdfFormat));
+	}
+
+	/**
+	 * Sets the RDF format for the entries.
+	 *
+	 * @param rdfFormat the RDF format
+	 */
+	public void setRdfFormat(RDFFormat rdfFormat) {
+		if (rdfFormat==null){
+			throw new IllegalArgumentException("rdfFormat cannot be null");
+		}
+		this.rdfFormat = rdfFormat;
+	}
+
+	/* (non-Javadoc)
+	 * @see info.rmapproject.transformer.output.BundleOutput#setGzip(boolean)
+	 */
+	@Override
+	public void setGzip(boolean gzip) {
+		if (gzip && format==ArchiveFormat.ZIP){
+			throw new IllegalArgumentException("Zip bundles are already compressed and cannot be gzipped");
+		}
+		super.setGzip(gzip);
+	}
+
+	/* (non-Javadoc)
+	 * @see info.rmapproject.transformer.output.BundleOutput#startBundle(java.io.OutputStream)
+	 */
+	@Override
+	protected void startBundle(OutputStream out) throws IOException {
+		entryNames.clear();
+		if (format==ArchiveFormat.TAR){
+			tar = new TarArchiveOutputStream(out);
+			tar.setLongFileMode(TarArchiveOutputStream.LONGFILE_GNU);
+			tarPosition = 0;
+		} else {
+			zip = new ZipOutputStream(out, StandardCharsets.UTF_8);
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see info.rmapproject.transformer.output.BundleOutput#writeEntry(java.lang.String, java.io.ByteArrayOutputStream)
+	 */
+	@Override
+	protected long[] writeEntry(String filename, ByteArrayOutputStream rdf) throws IOException {
+		String name = filename;
+		if (!entryNames.add(name)){ // as with DiscoFile, we will accept one duplicate
+			log.error("Entry " + filename + " already exists in bundle. Adding entry with '_duplicate' appended.  "
+					+ "Please review to confirm whether to include this");
+			name = filename + "_duplicate";
+			entryNames.add(name);
+		}
+
+		if (format==ArchiveFormat.TAR){
+			int nameLength = name.getBytes(StandardCharsets.UTF_8).length;
+			if (nameLength>=TAR_NAME_LENGTH){
+				//long names are written as an extra GNU entry ahead of the real one
+				tarPosition = tarPosition + TAR_BLOCK_SIZE + padToBlock(nameLength + 1);
+			}
+			long offset = tarPosition + TAR_BLOCK_SIZE;
+			TarArchiveEntry entry = new TarArchiveEntry(name);
+			entry.setSize(rdf.size());
+			tar.putArchiveEntry(entry);
+			rdf.writeTo(tar);
+			tar.closeArchiveEntry();
+			tarPosition = offset + padToBlock(rdf.size());
+			return new long[] {offset, rdf.size()};
+		} else {
+			long offset = getBundlePosition();
+			zip.putNextEntry(new ZipEntry(name));
+			rdf.writeTo(zip);
+			zip.closeEntry();
+			return new long[] {offset, getBundlePosition() - offset};
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see info.rmapproject.transformer.output.BundleOutput#finishBundle()
+	 */
+	@Override
+	protected void finishBundle() throws IOException {
+		if (tar!=null){
+			tar.finish();
+			tar = null;
+		}
+		if (zip!=null){
+			zip.finish();
+			zip = null;
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see info.rmapproject.transformer.output.BundleOutput#getExtension()
+	 */
+	@Override
+	protected String getExtension() {
+		return (format==ArchiveFormat.TAR) ? "tar" : "zip";
+	}
+
+	/**
+	 * Rounds a length up to a whole number of tar blocks.
+	 *
+	 * @param length the length
+	 * @return the padded length
+	 */
+	private static long padToBlock(long length) {
+		return ((length + TAR_BLOCK_SIZE - 1) / TAR_BLOCK_SIZE) * TAR_BLOCK_SIZE;
+	}
+
+}
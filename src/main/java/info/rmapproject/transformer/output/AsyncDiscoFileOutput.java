@@ -0,0 +1,473 @@
+/*******************************************************************************
+ * Copyright 2017 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This software was produced as part of the RMap Project (http://rmap-project.info),
+ * The RMap Project was funded by the Alfred P. Sloan Foundation and is a
+ * collaboration between Data Conservancy, Portico, and IEEE.
+ *******************************************************************************/
+package info.rmapproject.transformer.output;
+
+import info.rmapproject.transformer.DiscoSource;
+import info.rmapproject.transformer.TransformUtils;
+import info.rmapproject.transformer.model.DiscoFile;
+import info.rmapproject.transformer.model.DiscoFile.Durability;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.openrdf.model.Model;
+import org.openrdf.rio.RDFFormat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Writes each DiSCO to its own file in the output path, as DiscoFileOutput does, but from a single background 
+ * thread. DiSCOs are serialized on the calling thread and passed to the writer through a bounded queue, so 
+ * callers only wait for the disk when the queue is full. The writer creates the output folder once, then takes 
+ * the DiSCOs waiting in the queue in batches and writes each batch together. As in DiscoFile, each DiSCO is 
+ * written to a temporary file that is moved into place once complete, and the Durability sets whether files 
+ * are synced before they are moved into place and whether their folders are synced once the batch is in place. 
+ * Folders are synced once per batch rather than once per file.
+ * A DiSCO is only accepted while the output is open: close() waits for DiSCOs being added to reach the queue
+ * before marking the end of it, so every write() that returns is written before close() returns.
+ * A DiSCO that cannot be written is logged and counted and the writer continues with the next one; close() then
+ * throws, so that the run is not reported as complete.
+ * If a ShardedLayout is set, files are written to subfolders named from the record id and listed in the 
+ * layout's manifest, which is flushed after each batch.
+ */
+public class AsyncDiscoFileOutput implements DiscoOutput {
+
+    /** The log. */
+    private static final Logger log = LoggerFactory.getLogger(AsyncDiscoFileOutput.class);
+
+	/** The default number of DiSCOs the queue can hold. */
+	public static final int DEFAULT_QUEUE_CAPACITY = 1000;
+
+	/** The default maximum number of DiSCOs written in a batch. */
+	public static final int DEFAULT_BATCH_SIZE = 100;
+
+	/** Queue entry that tells the writer no more DiSCOs will be added. */
+	private static final PendingDisco END = new PendingDisco(null, null, null);
+
+	/** Output path for new DiSCOs. */
+	private final File outputFolder;
+
+	/** RDF format for new DiSCOs. */
+	private final RDFFormat format;
+
+	/** Number of DiSCOs the queue can hold. */
+	private int queueCapacity = DEFAULT_QUEUE_CAPACITY;
+
+	/** Maximum number of DiSCOs written in a batch. */
+	private volatile int batchSize = DEFAULT_BATCH_SIZE;
+
+	/** How far files are synced to disk. */
+	private volatile Durability durability = Durability.NONE;
+
+	/** Layout of subfolders for DiSCOs, null to write them all to the output path. */
+	private ShardedLayout layout = null;
+
+	/** DiSCOs waiting to be written, null until the first DiSCO is added. */
+	private BlockingQueue<PendingDisco> queue = null;
+
+	/** The writer thread, null until the first DiSCO is added. */
+	private Thread writer = null;
+
+	/** True once the output is closed. */
+	private boolean closed = false;
+
+	/** Held shared while a DiSCO is added to the queue and exclusively by close(), so no DiSCO is added after the end. */
+	private final ReadWriteLock closeLock = new ReentrantReadWriteLock();
+
+	/** Set if the writer stopped because the output folder is unusable. */
+	private volatile Exception writerFailure = null;
+
+	/** Folders written to in the current batch, to be synced for FSYNC_DIRECTORY. Only used by the writer thread. */
+	private final Set<Path> batchFolders = new LinkedHashSet<Path>();
+
+	/** Number of DiSCOs written. Only updated by the writer thread. */
+	private volatile int written = 0;
+
+	/** Number of DiSCOs that could not be written. Only updated by the writer thread. */
+	private volatile int failed = 0;
+
+	/** Number of batches written. Only updated by the writer thread. */
+	private volatile int batches = 0;
+
+	/**
+	 * Instantiates a new asynchronous DiSCO file output that writes Turtle.
+	 *
+	 * @param outputPath the output path
+	 */
+	public AsyncDiscoFileOutput(String outputPath) {
+		this(outputPath, RDFFormat.TURTLE);
+	}
+
+	/**
+	 * Instantiates a new asynchronous DiSCO file output that writes the RDF format provided.
+	 *
+	 * @param outputPath the output path
+	 * @param format the RDF format
+	 */
+	public AsyncDiscoFileOutput(String outputPath, RDFFormat format) {
+		if (outputPath==null){
+			throw new IllegalArgumentException("outputPath cannot be null");
+		}
+		if (format==null){
+			throw new IllegalArgumentException("format cannot be null");
+		}
+		this.outputFolder = new File(outputPath.equals(".") ? "" : outputPath).getAbsoluteFile();
+		this.format = format;
+	}
+
+	/* (non-Javadoc)
+	 * @see info.rmapproject.transformer.output.DiscoOutput#serialize(java.lang.String, org.openrdf.model.Model)
+	 */
+	@Override
+	public ByteArrayOutputStream serialize(String id, Model model) {
+		return TransformUtils.generateRdf(model, format);
+	}
+
+	/* (non-Javadoc)
+	 * @see info.rmapproject.transformer.output.DiscoOutput#write(java.lang.String, java.lang.String, info.rmapproject.transformer.DiscoSource)
+	 */
+	@Override
+	public void write(String id, String filename, DiscoSource source) {
+		write(id, filename, TransformUtils.generateRdf(source, format));
+	}
+
+	/* (non-Javadoc)
+	 * @see info.rmapproject.transformer.output.DiscoOutput#write(java.lang.String, java.lang.String, java.io.ByteArrayOutputStream)
+	 */
+	@Override
+	public void write(String id, String filename, ByteArrayOutputStream rdf) {
+		PendingDisco disco = new PendingDisco(id, filename, rdf);
+		closeLock.readLock().lock();
+		try {
+			BlockingQueue<PendingDisco> queue = startWriter();
+			//check periodically that the writer is still taking DiSCOs from the queue
+			while (!queue.offer(disco, 1, TimeUnit.SECONDS)){
+				if (writerFailure!=null){
+					throw new RuntimeException("DiSCO writer stopped, could not write record " + id, writerFailure);
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while queuing DiSCO for record " + id, e);
+		} finally {
+			closeLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Starts the writer thread if it is not running yet.
+	 *
+	 * @return the queue to add DiSCOs to
+	 */
+	private synchronized BlockingQueue<PendingDisco> startWriter() {
+		if (closed){
+			throw new IllegalStateException("DiSCO output is closed");
+		}
+		if (writerFailure!=null){
+			throw new RuntimeException("DiSCO writer stopped", writerFailure);
+		}
+		if (writer==null){
+			queue = new ArrayBlockingQueue<PendingDisco>(queueCapacity);
+			writer = new Thread(this::writeQueued, "disco-writer");
+			writer.start();
+		}
+		return queue;
+	}
+
+	/**
+	 * Writes DiSCOs from the queue in batches until the end of the queue is reached. Runs on the writer thread.
+	 */
+	private void writeQueued() {
+		try {
+			if (!outputFolder.isDirectory() && !outputFolder.mkdirs() && !outputFolder.isDirectory()){
+				throw new IOException("Could not create output folder " + outputFolder);
+			}
+			List<PendingDisco> batch = new ArrayList<PendingDisco>(batchSize);
+			boolean end = false;
+			while (!end){
+				batch.add(queue.take());
+				queue.drainTo(batch, batchSize - 1);
+				if (batch.get(batch.size()-1)==END){
+					batch.remove(batch.size()-1);
+					end = true;
+				}
+				writeBatch(batch);
+				batch.clear();
+			}
+		} catch (Exception e) {
+			log.error("DiSCO writer stopped: " + e.getMessage(), e);
+			writerFailure = e;
+		}
+	}
+
+	/**
+	 * Writes a batch of DiSCOs. Each is written to a temporary file, and once the whole batch is written 
+	 * (and synced, depending on the durability) the files are moved into place.
+	 *
+	 * @param batch the DiSCOs to write
+	 */
+	private void writeBatch(List<PendingDisco> batch) {
+		if (batch.isEmpty()){
+			return;
+		}
+		for (PendingDisco disco : batch){
+			writeTempFile(disco);
+		}
+		for (PendingDisco disco : batch){
+			if (disco.tempFile!=null){
+				moveIntoPlace(disco);
+			}
+		}
+		if (layout!=null){
+			layout.flush();
+		}
+		if (durability==Durability.FSYNC_DIRECTORY){
+			if (layout!=null){
+				batchFolders.add(outputFolder.toPath());
+			}
+			for (Path folder : batchFolders){
+				DiscoFile.syncFolder(folder);
+			}
+		}
+		batchFolders.clear();
+		batches = batches + 1;
+		log.debug("Wrote batch of " + batch.size() + " DiSCOs");
+	}
+
+	/**
+	 * Writes a DiSCO to a new temporary file in the folder it belongs in, syncing it to disk unless the 
+	 * durability is NONE. If it cannot be written, the failure is logged and the temporary file is removed.
+	 *
+	 * @param disco the DiSCO
+	 */
+	private void writeTempFile(PendingDisco disco) {
+		Path tempFile = null;
+		try {
+			File folder = (layout==null) ? outputFolder : layout.getFolder(disco.id);
+			tempFile = DiscoFile.createTempFile(folder.toPath(), disco.filename);
+			try (FileChannel channel = FileChannel.open(tempFile, StandardOpenOption.WRITE)) {
+				disco.rdf.writeTo(Channels.newOutputStream(channel));
+				if (durability!=Durability.NONE){
+					channel.force(true);
+				}
+			}
+			disco.tempFile = tempFile;
+		} catch (IOException | RuntimeException e) {
+			failed(disco, tempFile, e);
+		}
+	}
+
+	/**
+	 * Moves a DiSCO's temporary file to its final name. As in DiscoFile, an existing file is never replaced: 
+	 * if the name is taken the DiSCO is given the name with _duplicate added.
+	 *
+	 * @param disco the DiSCO
+	 */
+	private void moveIntoPlace(PendingDisco disco) {
+		try {
+			Path path = DiscoFile.moveIntoPlace(disco.tempFile, disco.tempFile.resolveSibling(disco.filename));
+			disco.tempFile = null;
+			written = written + 1;
+			batchFolders.add(path.getParent());
+			if (layout!=null){
+				layout.record(disco.id, path.getFileName().toString());
+			}
+			log.info("File written: id " + disco.id + " -> " + path.getFileName());
+		} catch (IOException | RuntimeException e) {
+			failed(disco, disco.tempFile, e);
+		}
+	}
+
+	/**
+	 * Logs and counts a DiSCO that could not be written, removing the temporary file created for it.
+	 *
+	 * @param disco the DiSCO
+	 * @param tempFile the temporary file created for this DiSCO, null if not created
+	 * @param e the exception
+	 */
+	private void failed(PendingDisco disco, Path tempFile, Exception e) {
+		failed = failed + 1;
+		disco.tempFile = null;
+		log.error("Could not write DiSCO file " + disco.filename + " for record " + disco.id, e);
+		if (tempFile==null){
+			return;
+		}
+		try {
+			Files.deleteIfExists(tempFile);
+		} catch (IOException de) {
+			log.warn("Could not remove temporary file " + tempFile, de);
+		}
+	}
+
+	/**
+	 * Waits for the queued DiSCOs to be written and stops the writer. DiSCOs still being added 
+	 * are queued before the end of the queue is marked.
+	 * 
+	 * @throws RuntimeException if the writer stopped early or any DiSCO could not be written
+	 * @see info.rmapproject.transformer.output.DiscoOutput#close()
+	 */
+	@Override
+	public void close() {
+		closeLock.writeLock().lock();
+		try {
+			stopWriter();
+		} finally {
+			closeLock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Marks the end of the queue, waits for the writer to finish and reports the result.
+	 * Called by close() once no DiSCOs are being added.
+	 */
+	private synchronized void stopWriter() {
+		if (closed){
+			return;
+		}
+		closed = true;
+		if (writer==null){
+			return;
+		}
+		try {
+			if (writerFailure==null){
+				queue.put(END);
+			}
+			writer.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while waiting for DiSCOs to be written", e);
+		}
+		if (layout!=null){
+			layout.close();
+		}
+		log.info("DiSCO writer wrote " + written + " files in " + batches + " batches" 
+					+ ((failed>0) ? ", " + failed + " files could not be written" : ""));
+		if (writerFailure!=null){
+			throw new RuntimeException("DiSCO writer stopped before all DiSCOs were written", writerFailure);
+		}
+		if (failed>0){
+			throw new RuntimeException(failed + " DiSCO files could not be written, see the log for the records affected");
+		}
+	}
+
+	/**
+	 * Sets the number of DiSCOs that can wait to be written before callers are made to wait.
+	 * Must be set before the first DiSCO is written.
+	 *
+	 * @param queueCapacity the queue capacity
+	 */
+	public synchronized void setQueueCapacity(int queueCapacity) {
+		if (queueCapacity<1){
+			throw new IllegalArgumentException("queueCapacity must be at least 1");
+		}
+		this.queueCapacity = queueCapacity;
+	}
+
+	/**
+	 * Sets the maximum number of DiSCOs written in a batch.
+	 *
+	 * @param batchSize the batch size
+	 */
+	public synchronized void setBatchSize(int batchSize) {
+		if (batchSize<1){
+			throw new IllegalArgumentException("batchSize must be at least 1");
+		}
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * Sets how far DiSCO files are synced to disk. By default it is left to the operating system.
+	 *
+	 * @param durability the durability
+	 */
+	public synchronized void setDurability(Durability durability) {
+		if (durability==null){
+			throw new IllegalArgumentException("durability cannot be null");
+		}
+		this.durability = durability;
+	}
+
+	/**
+	 * Sets the layout of subfolders DiSCOs are written to. By default all DiSCOs are written to the output path.
+	 * Must be set before the first DiSCO is written.
+	 *
+	 * @param layout the layout, null to write all DiSCOs to the output path
+	 */
+	public synchronized void setLayout(ShardedLayout layout) {
+		this.layout = layout;
+	}
+
+	/**
+	 * Gets the number of DiSCOs that could not be written.
+	 *
+	 * @return the number of failed DiSCOs
+	 */
+	public int getFailureCount() {
+		return failed;
+	}
+
+
+	/**
+	 * A serialized DiSCO waiting to be written.
+	 */
+	private static class PendingDisco {
+
+		/** The record id. */
+		private final String id;
+
+		/** The filename generated for the DiSCO. */
+		private final String filename;
+
+		/** The serialized DiSCO. */
+		private final ByteArrayOutputStream rdf;
+
+		/** The temporary file the DiSCO has been written to, null if not written. Only used by the writer thread. */
+		private Path tempFile = null;
+
+		/**
+		 * Instantiates a new pending DiSCO.
+		 *
+		 * @param id the record id
+		 * @param filename the filename
+		 * @param rdf the serialized DiSCO
+		 */
+		private PendingDisco(String id, String filename, ByteArrayOutputStream rdf) {
+			this.id = id;
+			this.filename = filename;
+			this.rdf = rdf;
+		}
+	}
+
+}
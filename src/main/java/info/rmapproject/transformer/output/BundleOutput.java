@@ -0,0 +1,351 @@
+/*******************************************************************************
+ * Copyright 2017 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This software was produced as part of the RMap Project (http://rmap-project.info),
+ * The RMap Project was funded by the Alfred P. Sloan Foundation and is a
+ * collaboration between Data Conservancy, Portico, and IEEE.
+ *******************************************************************************/
+package info.rmapproject.transformer.output;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.GZIPOutputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Appends DiSCOs to rolling bundle files rather than writing one file per DiSCO. A new bundle is started
+ * when the current one reaches the maximum number of records or bytes. Bundles are named
+ * [bundlePrefix]_00001.[extension] and so on, and each DiSCO written is added to an index file,
+ * [bundlePrefix]_index.tsv, as a line of: record id, bundle filename, offset, length.
+ * Subclasses define the bundle format and what the offset and length refer to.
+ */
+public abstract class BundleOutput implements DiscoOutput {
+
+    /** The log. */
+    private static final Logger log = LoggerFactory.getLogger(BundleOutput.class);
+
+	/** The default maximum number of DiSCOs in a bundle. */
+	public static final int DEFAULT_MAX_RECORDS = 10000;
+
+	/** The default maximum size of a bundle in bytes, measured before gzip compression. */
+	public static final long DEFAULT_MAX_BYTES = 512L * 1024 * 1024;
+
+	/** The default prefix for bundle filenames. */
+	public static final String DEFAULT_BUNDLE_PREFIX = "DiSCOs";
+
+	/** Suffix added to the bundle prefix to name the index file. */
+	private static final String INDEX_SUFFIX = "_index.tsv";
+
+	/** Output path for bundles. */
+	private String outputPath;
+
+	/** Prefix for bundle filenames. */
+	private String bundlePrefix = DEFAULT_BUNDLE_PREFIX;
+
+	/** Maximum number of DiSCOs in a bundle. */
+	private int maxRecords = DEFAULT_MAX_RECORDS;
+
+	/** Maximum size of a bundle in bytes, measured before gzip compression. */
+	private long maxBytes = DEFAULT_MAX_BYTES;
+
+	/** True if bundles should be gzip compressed. */
+	private boolean gzip = false;
+
+	/** Number of the current bundle, used to name the bundle file. */
+	private int bundleNumber = 0;
+
+	/** Filename of the current bundle. */
+	private String bundleFilename = null;
+
+	/** Stream for the current bundle, null when no bundle is open. */
+	private CountingOutputStream bundleStream = null;
+
+	/** Number of DiSCOs in the current bundle. */
+	private int bundleRecords = 0;
+
+	/** Writer for the index file, opened with the first bundle. */
+	private Writer index = null;
+
+	/**
+	 * Instantiates a new bundle output.
+	 *
+	 * @param outputPath the output path
+	 */
+	protected BundleOutput(String outputPath) {
+		if (outputPath==null){
+			throw new IllegalArgumentException("outputPath cannot be null");
+		}
+		if (outputPath.equals(".")){
+			outputPath = "";
+		}
+		if (outputPath.length()>0 && (!outputPath.endsWith("\\") && !outputPath.endsWith("/"))){
+			outputPath = outputPath + "/";
+		}
+		this.outputPath = outputPath;
+	}
+
+	/* (non-Javadoc)
+	 * @see info.rmapproject.transformer.output.DiscoOutput#write(java.lang.String, java.lang.String, java.io.ByteArrayOutputStream)
+	 */
+	@Override
+	public synchronized void write(String id, String filename, ByteArrayOutputStream rdf) {
+		try {
+			if (bundleStream!=null
+					&& (bundleRecords>=maxRecords || bundleStream.getCount()>=maxBytes)){
+				closeBundle();
+			}
+			if (bundleStream==null){
+				openBundle();
+			}
+			long[] location = writeEntry(filename, rdf);
+			bundleRecords = bundleRecords + 1;
+			index.write(id + "\t" + bundleFilename + "\t" + location[0] + "\t" + location[1] + "\n");
+			log.info("DiSCO written: id " + id + " -> " + bundleFilename);
+		} catch (IOException e) {
+			throw new RuntimeException("Could not write DiSCO for record " + id + " to bundle " + bundleFilename, e);
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see info.rmapproject.transformer.output.DiscoOutput#close()
+	 */
+	@Override
+	public synchronized void close() {
+		try {
+			if (bundleStream!=null){
+				closeBundle();
+			}
+			if (index!=null){
+				index.close();
+				index = null;
+			}
+		} catch (IOException e) {
+			throw new RuntimeException("Could not complete bundle " + bundleFilename, e);
+		}
+	}
+
+	/**
+	 * Opens the stream for a new bundle. The stream passed in counts bytes before compression and
+	 * should be wrapped by any archive format the bundle uses.
+	 *
+	 * @param out the stream for the bundle file
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	protected abstract void startBundle(OutputStream out) throws IOException;
+
+	/**
+	 * Writes a serialized DiSCO to the current bundle.
+	 *
+	 * @param filename the filename generated for the DiSCO
+	 * @param rdf the serialized DiSCO
+	 * @return the offset and length of the DiSCO in the bundle, as recorded in the index
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	protected abstract long[] writeEntry(String filename, ByteArrayOutputStream rdf) throws IOException;
+
+	/**
+	 * Completes the current bundle, writing any trailing archive data. The underlying
+	 * stream is closed afterwards by BundleOutput.
+	 *
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	protected abstract void finishBundle() throws IOException;
+
+	/**
+	 * Gets the file extension for bundles, not including any .gz added for compression.
+	 *
+	 * @return the extension
+	 */
+	protected abstract String getExtension();
+
+	/**
+	 * Gets the number of bytes written to the current bundle, before gzip compression.
+	 *
+	 * @return the number of bytes
+	 */
+	protected long getBundlePosition() {
+		return bundleStream.getCount();
+	}
+
+	/**
+	 * Opens the next bundle file, skipping any bundle filenames already used in the output path.
+	 *
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	private void openBundle() throws IOException {
+		File outputFolder = new File(outputPath);
+		if (outputPath.length()>0 && (!outputFolder.exists() || !outputFolder.isDirectory())) {
+			outputFolder.mkdirs();
+		}
+		if (index==null){
+			index = new BufferedWriter(new OutputStreamWriter(Files.newOutputStream(
+					new File(outputPath + bundlePrefix + INDEX_SUFFIX).toPath(),
+					StandardOpenOption.CREATE, StandardOpenOption.APPEND), StandardCharsets.UTF_8));
+		}
+
+		OutputStream fileStream = null;
+		while (fileStream==null) {
+			bundleNumber = bundleNumber + 1;
+			bundleFilename = String.format("%s_%05d.%s", bundlePrefix, bundleNumber, getExtension())
+								+ (gzip ? ".gz" : "");
+			try {
+				fileStream = Files.newOutputStream(new File(outputPath + bundleFilename).toPath(),
+								StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+			} catch (FileAlreadyExistsException e) {
+				log.debug("Bundle " + bundleFilename + " already exists, trying next bundle number");
+			}
+		}
+
+		OutputStream out = new BufferedOutputStream(fileStream);
+		if (gzip){
+			out = new GZIPOutputStream(out, 8192);
+		}
+		bundleStream = new CountingOutputStream(out);
+		bundleRecords = 0;
+		startBundle(bundleStream);
+		log.info("Started bundle " + bundleFilename);
+	}
+
+	/**
+	 * Completes the current bundle and closes the file.
+	 *
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	private void closeBundle() throws IOException {
+		try {
+			finishBundle();
+		} finally {
+			bundleStream.close();
+			bundleStream = null;
+			index.flush();
+		}
+		log.info("Completed bundle " + bundleFilename + " containing " + bundleRecords + " DiSCOs");
+	}
+
+	/**
+	 * Sets the prefix for bundle filenames.
+	 *
+	 * @param bundlePrefix the bundle prefix
+	 */
+	public void setBundlePrefix(String bundlePrefix) {
+		if (bundlePrefix==null || bundlePrefix.length()==0){
+			throw new IllegalArgumentException("bundlePrefix cannot be empty");
+		}
+		this.bundlePrefix = bundlePrefix;
+	}
+
+	/**
+	 * Sets the maximum number of DiSCOs in a bundle.
+	 *
+	 * @param maxRecords the maximum number of DiSCOs
+	 */
+	public void setMaxRecords(int maxRecords) {
+		if (maxRecords<1){
+			throw new IllegalArgumentException("maxRecords must be at least 1");
+		}
+		this.maxRecords = maxRecords;
+	}
+
+	/**
+	 * Sets the maximum size of a bundle in bytes, measured before gzip compression. A bundle
+	 * is closed once it reaches this size, so may exceed it by up to one DiSCO.
+	 *
+	 * @param maxBytes the maximum number of bytes
+	 */
+	public void setMaxBytes(long maxBytes) {
+		if (maxBytes<1){
+			throw new IllegalArgumentException("maxBytes must be at least 1");
+		}
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * Sets whether bundles should be gzip compressed.
+	 *
+	 * @param gzip true to compress bundles
+	 */
+	public void setGzip(boolean gzip) {
+		this.gzip = gzip;
+	}
+
+	/**
+	 * Checks whether bundles are gzip compressed.
+	 *
+	 * @return true if bundles are compressed
+	 */
+	public boolean isGzip() {
+		return this.gzip;
+	}
+
+
+	/**
+	 * Output stream that counts the bytes written through it.
+	 */
+	private static class CountingOutputStream extends FilterOutputStream {
+
+		/** Bytes written. */
+		private long count = 0;
+
+		/**
+		 * Instantiates a new counting output stream.
+		 *
+		 * @param out the underlying stream
+		 */
+		private CountingOutputStream(OutputStream out) {
+			super(out);
+		}
+
+		/* (non-Javadoc)
+		 * @see java.io.FilterOutputStream#write(int)
+		 */
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			count = count + 1;
+		}
+
+		/* (non-Javadoc)
+		 * @see java.io.FilterOutputStream#write(byte[], int, int)
+		 */
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			count = count + len;
+		}
+
+		/**
+		 * Gets the number of bytes written.
+		 *
+		 * @return the count
+		 */
+		private long getCount() {
+			return count;
+		}
+	}
+
+}
@@ -0,0 +1,189 @@
+/*******************************************************************************
+ * Copyright 2017 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This software was produced as part of the RMap Project (http://rmap-project.info),
+ * The RMap Project was funded by the Alfred P. Sloan Foundation and is a
+ * collaboration between Data Conservancy, Portico, and IEEE.
+ *******************************************************************************/
+package info.rmapproject.transformer.output;
+
+import info.rmapproject.transformer.DiscoSource;
+import info.rmapproject.transformer.TransformUtils;
+import info.rmapproject.transformer.model.DiscoFile;
+import info.rmapproject.transformer.model.DiscoFile.Durability;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+
+import org.openrdf.model.Model;
+import org.openrdf.rio.RDFFormat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Writes each DiSCO to its own file in the output path. This is the default output, using Turtle
+ * unless another RDF format is provided. If a ShardedLayout is set, files are written to subfolders
+ * of the output path named from the record id, and listed in the layout's manifest under the name actually written.
+ */
+public class DiscoFileOutput implements DiscoOutput {
+
+    /** The log. */
+    private static final Logger log = LoggerFactory.getLogger(DiscoFileOutput.class);
+
+	/** Output path for new DiSCOs. */
+	private String outputPath;
+
+	/** RDF format for new DiSCOs. */
+	private RDFFormat format;
+
+	/** Layout of subfolders for DiSCOs, null to write them all to the output path. */
+	private ShardedLayout layout = null;
+
+	/** How far DiSCO files are synced to disk. */
+	private Durability durability = Durability.NONE;
+
+	/**
+	 * Instantiates a new DiSCO file output that writes Turtle.
+	 *
+	 * @param outputPath the output path
+	 */
+	public DiscoFileOutput(String outputPath) {
+		this(outputPath, RDFFormat.TURTLE);
+	}
+
+	/**
+	 * Instantiates a new DiSCO file output that writes the RDF format provided.
+	 *
+	 * @param outputPath the output path
+	 * @param format the RDF format
+	 */
+	public DiscoFileOutput(String outputPath, RDFFormat format) {
+		if (outputPath==null){
+			throw new IllegalArgumentException("outputPath cannot be null");
+		}
+		if (format==null){
+			throw new IllegalArgumentException("format cannot be null");
+		}
+		this.outputPath = outputPath;
+		this.format = format;
+	}
+
+	/* (non-Javadoc)
+	 * @see info.rmapproject.transformer.output.DiscoOutput#serialize(java.lang.String, org.openrdf.model.Model)
+	 */
+	@Override
+	public ByteArrayOutputStream serialize(String id, Model model) {
+		return TransformUtils.generateRdf(model, format);
+	}
+
+	/* (non-Javadoc)
+	 * @see info.rmapproject.transformer.output.DiscoOutput#write(java.lang.String, java.lang.String, java.io.ByteArrayOutputStream)
+	 */
+	@Override
+	public void write(String id, String filename, ByteArrayOutputStream rdf) {
+		DiscoFile disco = new DiscoFile(rdf, getFolder(id), filename);
+		disco.setDurability(durability);
+		written(id, disco.writeFile());
+	}
+
+	/* (non-Javadoc)
+	 * @see info.rmapproject.transformer.output.DiscoOutput#write(java.lang.String, java.lang.String, org.openrdf.model.Model)
+	 */
+	@Override
+	public void write(String id, String filename, Model model) {
+		DiscoFile disco = new DiscoFile(model, getFolder(id), filename, format);
+		disco.setDurability(durability);
+		written(id, disco.writeFile());
+	}
+
+	/* (non-Javadoc)
+	 * @see info.rmapproject.transformer.output.DiscoOutput#write(java.lang.String, java.lang.String, info.rmapproject.transformer.DiscoSource)
+	 */
+	@Override
+	public void write(String id, String filename, DiscoSource source) {
+		DiscoFile disco = new DiscoFile(source, getFolder(id), filename, format);
+		disco.setDurability(durability);
+		written(id, disco.writeFile());
+	}
+
+	/**
+	 * Gets the folder to write a record's DiSCO to.
+	 *
+	 * @param id the record id
+	 * @return the folder path
+	 */
+	private String getFolder(String id) {
+		if (layout==null){
+			return this.outputPath;
+		}
+		return layout.getFolder(id).getPath();
+	}
+
+	/**
+	 * Logs a DiSCO written, and adds it to the manifest if there is a layout.
+	 *
+	 * @param id the record id
+	 * @param file the file written, which has _duplicate appended to the name if the name was taken
+	 */
+	private void written(String id, File file) {
+		if (layout!=null){
+			layout.record(id, file.getName());
+		}
+		log.info("File written: id " + id + " -> " + file.getName());
+	}
+
+	/* (non-Javadoc)
+	 * @see info.rmapproject.transformer.output.DiscoOutput#flush()
+	 */
+	@Override
+	public void flush() {
+		if (layout!=null){
+			layout.flush();
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see info.rmapproject.transformer.output.DiscoOutput#close()
+	 */
+	@Override
+	public void close() {
+		//each file is closed as it is written
+		if (layout!=null){
+			layout.close();
+		}
+	}
+
+	/**
+	 * Sets the layout of subfolders DiSCOs are written to. By default all DiSCOs are written to the output path.
+	 *
+	 * @param layout the layout, null to write all DiSCOs to the output path
+	 */
+	public void setLayout(ShardedLayout layout) {
+		this.layout = layout;
+	}
+
+	/**
+	 * Sets how far DiSCO files are synced to disk. By default it is left to the operating system.
+	 *
+	 * @param durability the durability
+	 */
+	public void setDurability(Durability durability) {
+		if (durability==null){
+			throw new IllegalArgumentException("durability cannot be null");
+		}
+		this.durability = durability;
+	}
+
+}
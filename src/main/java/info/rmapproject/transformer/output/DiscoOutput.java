@@ -0,0 +1,97 @@
+/*******************************************************************************
+ * Copyright 2017 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This software was produced as part of the RMap Project (http://rmap-project.info),
+ * The RMap Project was funded by the Alfred P. Sloan Foundation and is a
+ * collaboration between Data Conservancy, Portico, and IEEE.
+ *******************************************************************************/
+package info.rmapproject.transformer.output;
+
+import info.rmapproject.transformer.DiscoSource;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.Flushable;
+
+import org.openrdf.model.Model;
+import org.openrdf.model.impl.LinkedHashModel;
+import org.openrdf.rio.helpers.StatementCollector;
+
+/**
+ * Destination for transformed DiSCOs. Implementations decide how each DiSCO is serialized and where it
+ * is written, e.g. one file per DiSCO or many DiSCOs appended to a bundle file. Implementations must
+ * be safe to call from several transform threads at once.
+ */
+public interface DiscoOutput extends Closeable, Flushable {
+
+	/**
+	 * Serializes a DiSCO model in the form this output writes it. Used where serialization is done
+	 * separately from writing, as in TransformPipeline.
+	 *
+	 * @param id the record id
+	 * @param model the DiSCO model
+	 * @return the serialized DiSCO
+	 */
+	public ByteArrayOutputStream serialize(String id, Model model);
+
+	/**
+	 * Writes a DiSCO that has already been serialized by this output's serialize() method.
+	 *
+	 * @param id the record id
+	 * @param filename the filename generated for the DiSCO
+	 * @param rdf the serialized DiSCO
+	 */
+	public void write(String id, String filename, ByteArrayOutputStream rdf);
+
+	/**
+	 * Serializes and writes a DiSCO model.
+	 *
+	 * @param id the record id
+	 * @param filename the filename generated for the DiSCO
+	 * @param model the DiSCO model
+	 */
+	public default void write(String id, String filename, Model model) {
+		write(id, filename, serialize(id, model));
+	}
+
+	/**
+	 * Writes a DiSCO from a source of statements. Outputs that can write statements as they are
+	 * generated should override this; by default the statements are collected into a Model first.
+	 *
+	 * @param id the record id
+	 * @param filename the filename generated for the DiSCO
+	 * @param source the source of the DiSCO statements
+	 */
+	public default void write(String id, String filename, DiscoSource source) {
+		Model model = new LinkedHashModel();
+		source.writeTo(new StatementCollector(model));
+		write(id, filename, model);
+	}
+
+	/**
+	 * Writes any record of the DiSCOs written so far that is held in memory, such as a manifest or index, 
+	 * so that it is on disk before a checkpoint is saved. By default there is nothing to write.
+	 */
+	@Override
+	public default void flush() {
+	}
+
+	/**
+	 * Completes any partly written output. Nothing may be written after the output is closed.
+	 */
+	@Override
+	public void close();
+
+}
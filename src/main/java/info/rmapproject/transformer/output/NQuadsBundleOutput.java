@@ -0,0 +1,196 @@
+/*******************************************************************************
+ * Copyright 2017 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This software was produced as part of the RMap Project (http://rmap-project.info),
+ * The RMap Project was funded by the Alfred P. Sloan Foundation and is a
+ * collaboration between Data Conservancy, Portico, and IEEE.
+ *******************************************************************************/
+package info.rmapproject.transformer.output;
+
+import info.rmapproject.transformer.DiscoSource;
+import info.rmapproject.transformer.vocabulary.Terms;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.openrdf.model.Model;
+import org.openrdf.model.Resource;
+import org.openrdf.model.Statement;
+import org.openrdf.model.ValueFactory;
+import org.openrdf.model.impl.SimpleValueFactory;
+import org.openrdf.model.vocabulary.RDF;
+import org.openrdf.rio.RDFFormat;
+import org.openrdf.rio.RDFHandler;
+import org.openrdf.rio.RDFHandlerException;
+import org.openrdf.rio.Rio;
+import org.openrdf.rio.helpers.RDFHandlerWrapper;
+
+/**
+ * Appends DiSCOs to N-Quads bundles, with each DiSCO in its own named graph. The graph name is
+ * the DiSCO node, so a DiSCO can be recovered by selecting the quads in that graph. Statements from a
+ * DiscoSource are converted to quads as they are generated. The offset and
+ * length in the index are the position of the DiSCO's quads in the bundle, before any gzip compression.
+ */
+public class NQuadsBundleOutput extends BundleOutput {
+
+	/** The value factory for generating quads. */
+	private static ValueFactory factory = SimpleValueFactory.getInstance();
+
+	/** The current bundle stream. */
+	private OutputStream out;
+
+	/**
+	 * Instantiates a new N-Quads bundle output.
+	 *
+	 * @param outputPath the output path
+	 */
+	public NQuadsBundleOutput(String outputPath) {
+		super(outputPath);
+	}
+
+	/* (non-Javadoc)
+	 * @see info.rmapproject.transformer.output.DiscoOutput#serialize(java.lang.String, org.openrdf.model.Model)
+	 */
+	@Override
+	public ByteArrayOutputStream serialize(String id, Model model) {
+		return serialize(handler -> Rio.write(model, handler));
+	}
+
+	/* (non-Javadoc)
+	 * @see info.rmapproject.transformer.output.DiscoOutput#write(java.lang.String, java.lang.String, info.rmapproject.transformer.DiscoSource)
+	 */
+	@Override
+	public void write(String id, String filename, DiscoSource source) {
+		write(id, filename, serialize(source));
+	}
+
+	/**
+	 * Serializes the DiSCO statements as N-Quads in the DiSCO's named graph.
+	 *
+	 * @param source the source of the DiSCO statements
+	 * @return the N-Quads
+	 */
+	private ByteArrayOutputStream serialize(DiscoSource source) {
+		ByteArrayOutputStream rdf = new ByteArrayOutputStream();
+		try {
+			source.writeTo(new DiscoGraphHandler(Rio.createWriter(RDFFormat.NQUADS, rdf)));
+		} catch (Exception e) {
+			throw new RuntimeException("Exception thrown creating N-Quads from statement list", e);
+		}
+		return rdf;
+	}
+
+	/* (non-Javadoc)
+	 * @see info.rmapproject.transformer.output.BundleOutput#startBundle(java.io.OutputStream)
+	 */
+	@Override
+	protected void startBundle(OutputStream out) throws IOException {
+		this.out = out;
+	}
+
+	/* (non-Javadoc)
+	 * @see info.rmapproject.transformer.output.BundleOutput#writeEntry(java.lang.String, java.io.ByteArrayOutputStream)
+	 */
+	@Override
+	protected long[] writeEntry(String filename, ByteArrayOutputStream rdf) throws IOException {
+		long offset = getBundlePosition();
+		rdf.writeTo(out);
+		return new long[] {offset, rdf.size()};
+	}
+
+	/* (non-Javadoc)
+	 * @see info.rmapproject.transformer.output.BundleOutput#finishBundle()
+	 */
+	@Override
+	protected void finishBundle() throws IOException {
+		this.out = null;
+	}
+
+	/* (non-Javadoc)
+	 * @see info.rmapproject.transformer.output.BundleOutput#getExtension()
+	 */
+	@Override
+	protected String getExtension() {
+		return "nq";
+	}
+
+
+	/**
+	 * Places each statement in the DiSCO's named graph. The graph is the subject of the rdf:type rmap:DiSCO 
+	 * statement, which builders add first; any statements before it are held until it is found. If there
+	 * is no DiSCO statement, a new blank node is used as the graph.
+	 */
+	private static class DiscoGraphHandler extends RDFHandlerWrapper {
+
+		/** The DiSCO graph, null until the DiSCO statement is found. */
+		private Resource graph = null;
+
+		/** Statements received before the DiSCO statement. */
+		private List<Statement> pending = new ArrayList<Statement>();
+
+		/**
+		 * Instantiates a new DiSCO graph handler.
+		 *
+		 * @param writer the writer the quads are passed to
+		 */
+		private DiscoGraphHandler(RDFHandler writer) {
+			super(writer);
+		}
+
+		/* (non-Javadoc)
+		 * @see org.openrdf.rio.helpers.RDFHandlerWrapper#handleStatement(org.openrdf.model.Statement)
+		 */
+		@Override
+		public void handleStatement(Statement stmt) throws RDFHandlerException {
+			if (graph==null){
+				if (!RDF.TYPE.equals(stmt.getPredicate()) || !Terms.RMAP_DISCO.equals(stmt.getObject())){
+					pending.add(stmt);
+					return;
+				}
+				setGraph(stmt.getSubject());
+			}
+			super.handleStatement(factory.createStatement(stmt.getSubject(), stmt.getPredicate(), stmt.getObject(), graph));
+		}
+
+		/* (non-Javadoc)
+		 * @see org.openrdf.rio.helpers.RDFHandlerWrapper#endRDF()
+		 */
+		@Override
+		public void endRDF() throws RDFHandlerException {
+			if (graph==null){
+				setGraph(factory.createBNode());
+			}
+			super.endRDF();
+		}
+
+		/**
+		 * Sets the graph and writes any statements held until it was known.
+		 *
+		 * @param graph the DiSCO graph
+		 * @throws RDFHandlerException the RDF handler exception
+		 */
+		private void setGraph(Resource graph) throws RDFHandlerException {
+			this.graph = graph;
+			for (Statement stmt : pending){
+				handleStatement(stmt);
+			}
+			pending = null;
+		}
+	}
+
+}
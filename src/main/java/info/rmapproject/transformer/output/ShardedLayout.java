@@ -0,0 +1,226 @@
+/*******************************************************************************
+ * Copyright 2017 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This software was produced as part of the RMap Project (http://rmap-project.info),
+ * The RMap Project was funded by the Alfred P. Sloan Foundation and is a
+ * collaboration between Data Conservancy, Portico, and IEEE.
+ *******************************************************************************/
+package info.rmapproject.transformer.output;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Places DiSCO files in nested subfolders of the output path named from a hash of the record id, so that 
+ * no folder holds more than a manageable number of entries in a very large harvest. Each level of subfolders 
+ * is named with [width] hex characters of the MD5 hash of the id, giving 16^width subfolders per level, 
+ * e.g. with a depth of 2 and width of 2 a DiSCO is written to 3f/a2/DiSCO_abc12.rdf. Each subfolder is 
+ * created the first time it is needed. Each DiSCO written is added to a manifest file, manifest.tsv in 
+ * the output path, as a line of: record id, path relative to the output path. Manifest lines are written to 
+ * the file every FLUSH_RECORDS DiSCOs and whenever the layout is flushed, so a run that stops part way leaves
+ * at most that many DiSCOs out of the manifest. The folder for an id can also be worked out from its hash 
+ * without the manifest.
+ */
+public class ShardedLayout implements Closeable, Flushable {
+
+	/** The default number of levels of subfolders. */
+	public static final int DEFAULT_DEPTH = 2;
+
+	/** The default number of hex characters in each subfolder name. */
+	public static final int DEFAULT_WIDTH = 2;
+
+	/** Name of the manifest file in the output path. */
+	public static final String MANIFEST_FILENAME = "manifest.tsv";
+
+	/** Number of DiSCOs recorded between writes of the manifest lines to the file. */
+	public static final int FLUSH_RECORDS = 100;
+
+	/** Hex digits used for subfolder names. */
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	/** The output path. */
+	private final File outputFolder;
+
+	/** Number of levels of subfolders. */
+	private final int depth;
+
+	/** Number of hex characters in each subfolder name. */
+	private final int width;
+
+	/** Subfolders already created or found. */
+	private final Set<String> folders = ConcurrentHashMap.newKeySet();
+
+	/** Writer for the manifest, opened with the first DiSCO recorded. */
+	private Writer manifest = null;
+
+	/** Number of DiSCOs recorded since the manifest lines were last written to the file. */
+	private int unflushed = 0;
+
+	/**
+	 * Instantiates a new sharded layout with the default depth and width.
+	 *
+	 * @param outputPath the output path
+	 */
+	public ShardedLayout(String outputPath) {
+		this(outputPath, DEFAULT_DEPTH, DEFAULT_WIDTH);
+	}
+
+	/**
+	 * Instantiates a new sharded layout.
+	 *
+	 * @param outputPath the output path
+	 * @param depth the number of levels of subfolders
+	 * @param width the number of hex characters in each subfolder name
+	 */
+	public ShardedLayout(String outputPath, int depth, int width) {
+		if (outputPath==null){
+			throw new IllegalArgumentException("outputPath cannot be null");
+		}
+		if (depth<1){
+			throw new IllegalArgumentException("depth must be at least 1");
+		}
+		if (width<1 || depth*width>32){
+			throw new IllegalArgumentException("width must be at least 1, and depth x width no more than 32");
+		}
+		this.outputFolder = new File(outputPath.equals(".") ? "" : outputPath).getAbsoluteFile();
+		this.depth = depth;
+		this.width = width;
+	}
+
+	/**
+	 * Gets the subfolder path for a record id, relative to the output path, e.g. 3f/a2/
+	 *
+	 * @param id the record id
+	 * @return the subfolder path, ending with /
+	 */
+	public String getShardPath(String id) {
+		if (id==null){
+			throw new IllegalArgumentException("id cannot be null");
+		}
+		byte[] hash = md5(id);
+		StringBuilder path = new StringBuilder(depth * (width + 1));
+		int digit = 0;
+		for (int level=0; level<depth; level++){
+			for (int i=0; i<width; i++){
+				int b = hash[digit / 2];
+				path.append(HEX[(digit % 2 == 0) ? (b >> 4) & 0xf : b & 0xf]);
+				digit = digit + 1;
+			}
+			path.append('/');
+		}
+		return path.toString();
+	}
+
+	/**
+	 * Gets the folder a record's DiSCO is written to, creating it if this is the first DiSCO in it.
+	 *
+	 * @param id the record id
+	 * @return the folder
+	 */
+	public File getFolder(String id) {
+		String shardPath = getShardPath(id);
+		File folder = new File(outputFolder, shardPath);
+		if (folders.add(shardPath) && !folder.isDirectory() && !folder.mkdirs() && !folder.isDirectory()){
+			folders.remove(shardPath);
+			throw new RuntimeException("Could not create output folder " + folder);
+		}
+		return folder;
+	}
+
+	/**
+	 * Adds a DiSCO to the manifest.
+	 *
+	 * @param id the record id
+	 * @param filename the filename the DiSCO was written to in the record's folder
+	 */
+	public synchronized void record(String id, String filename) {
+		try {
+			if (manifest==null){
+				manifest = new BufferedWriter(new OutputStreamWriter(Files.newOutputStream(
+						new File(outputFolder, MANIFEST_FILENAME).toPath(),
+						StandardOpenOption.CREATE, StandardOpenOption.APPEND), StandardCharsets.UTF_8));
+			}
+			manifest.write(id + "\t" + getShardPath(id) + filename + "\n");
+			unflushed = unflushed + 1;
+			if (unflushed>=FLUSH_RECORDS){
+				flush();
+			}
+		} catch (IOException e) {
+			throw new RuntimeException("Could not add record " + id + " to manifest", e);
+		}
+	}
+
+	/**
+	 * Writes any manifest lines held in memory to the manifest file.
+	 * 
+	 * @see java.io.Flushable#flush()
+	 */
+	@Override
+	public synchronized void flush() {
+		if (manifest==null){
+			return;
+		}
+		try {
+			manifest.flush();
+			unflushed = 0;
+		} catch (IOException e) {
+			throw new RuntimeException("Could not write manifest", e);
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see java.io.Closeable#close()
+	 */
+	@Override
+	public synchronized void close() {
+		if (manifest==null){
+			return;
+		}
+		try {
+			manifest.close();
+			manifest = null;
+		} catch (IOException e) {
+			throw new RuntimeException("Could not complete manifest", e);
+		}
+	}
+
+	/**
+	 * Calculates the MD5 hash of a record id.
+	 *
+	 * @param id the record id
+	 * @return the hash
+	 */
+	private static byte[] md5(String id) {
+		try {
+			return MessageDigest.getInstance("MD5").digest(id.getBytes(StandardCharsets.UTF_8));
+		} catch (NoSuchAlgorithmException e) {
+			//every JVM is required to support MD5
+			throw new RuntimeException("MD5 is not available", e);
+		}
+	}
+
+}
@@ -21,24 +21,45 @@ package info.rmapproject.transformer.share;
 
 import info.rmapproject.cos.share.client.model.Record;
 import info.rmapproject.cos.share.client.service.ShareApiIterator;
+import info.rmapproject.transformer.DeadLetterFile;
+import info.rmapproject.transformer.ResumableIterator;
+import info.rmapproject.transformer.RetryPolicy;
 import info.rmapproject.transformer.TransformUtils;
 import info.rmapproject.transformer.model.RecordDTO;
 import info.rmapproject.transformer.model.RecordType;
 
 import java.net.URISyntaxException;
 import java.util.HashMap;
-import java.util.Iterator;
 
 /**
  * Iterates over SHARE API data - can next() over records.
  * Retrieve JSON records from API using path and params provided.
+ * Requests that fail with a temporary error are retried using the retry policy provided. This
+ * relies on the SHARE API iterator staying at the same record when a request fails.
+ * The position of the iterator is the offset of the next record in the search results, which is
+ * passed to the API as the "from" parameter when the iteration is resumed.
  * @author khanson
  *
  */
-public class ShareApiTransformIterator implements Iterator<RecordDTO>{
+public class ShareApiTransformIterator implements ResumableIterator {
         		
+    /** API parameter for the offset of the first record requested. */
+    private static final String FROM = "from";
+    
     /** The SHARE API iterator. */
     private ShareApiIterator shareApiIterator = null;
+    
+    /** The retry policy for SHARE API requests. */
+    private RetryPolicy retryPolicy = null;
+    
+    /** Records the SHARE records that could not be retrieved. */
+    private DeadLetterFile deadLetters = null;
+    
+    /** The API parameters. */
+    private HashMap<String,String> params = null;
+    
+    /** Offset of the next record in the search results. */
+    private long offset = 0;
 
     /**
      * Initiate iterator using filters provided.
@@ -46,11 +67,34 @@ public class ShareApiTransformIterator implements Iterator<RecordDTO>{
      * @param filters the filters
      */
 	public ShareApiTransformIterator(String filters){
-		HashMap<String,String> params=null;
+		this(filters, new RetryPolicy(), new DeadLetterFile());
+	}
+	
+    /**
+     * Initiate iterator using filters provided, retrying requests with the retry policy provided and noting 
+     * records that could not be retrieved in the dead letter file.
+     *
+     * @param filters the filters
+     * @param retryPolicy the retry policy for SHARE API requests
+     * @param deadLetters records the SHARE records that could not be retrieved
+     */
+	public ShareApiTransformIterator(String filters, RetryPolicy retryPolicy, DeadLetterFile deadLetters){
+		if (retryPolicy==null){
+			throw new IllegalArgumentException("retryPolicy cannot be null");
+		}
+		if (deadLetters==null){
+			throw new IllegalArgumentException("deadLetters cannot be null");
+		}
+		this.retryPolicy = retryPolicy;
+		this.deadLetters = deadLetters;
 		try{
 			params = TransformUtils.readParamsIntoMap(filters, "UTF-8");
+			String from = params.get(FROM);
+			if (from!=null && from.length()>0){
+				offset = Long.parseLong(from);
+			}
     		shareApiIterator = new ShareApiIterator(params);
-		} catch(URISyntaxException e){
+		} catch(URISyntaxException | NumberFormatException e){
 			throw new IllegalArgumentException("URL invalid, parameters could not be parsed");
 		} catch (Exception e){
 			throw new RuntimeException("could not initiate SHARE Api Iterator", e);    		
@@ -62,9 +106,16 @@ public class ShareApiTransformIterator implements Iterator<RecordDTO>{
 	 */
 	@Override
 	public RecordDTO next() {
+		Record sharerec = null;
+		try {
+			sharerec = retryPolicy.call("next SHARE record", shareApiIterator::next);
+			offset = offset + 1;
+		} catch (Exception ex) {
+			deadLetters.add(null, ex);
+			throw new RuntimeException("Could not retrieve SHARE record", ex);
+		}
 		RecordDTO shareDTO = null;
 		try {
-			Record sharerec = shareApiIterator.next();
 			String id = sharerec.getShareProperties().getDocID();
 			String source = sharerec.getShareProperties().getSource();
 			if (source!=null && source.length()>0){
@@ -82,7 +133,40 @@ public class ShareApiTransformIterator implements Iterator<RecordDTO>{
 	 */
 	@Override
 	public boolean hasNext() {
-		return shareApiIterator.hasNext();
+		return retryPolicy.call("SHARE record list", shareApiIterator::hasNext);
+	}
+
+	/**
+	 * Gets the offset of the next record in the search results.
+	 * 
+	 * @see info.rmapproject.transformer.ResumableIterator#getPosition()
+	 */
+	@Override
+	public String getPosition() {
+		return String.valueOf(offset);
+	}
+
+	/**
+	 * Starts a new SHARE API iterator from the offset given, using the same parameters.
+	 * 
+	 * @see info.rmapproject.transformer.ResumableIterator#resume(java.lang.String)
+	 */
+	@Override
+	public void resume(String position) {
+		if (position==null){
+			throw new IllegalArgumentException("position cannot be null");
+		}
+		try {
+			offset = Long.parseLong(position);
+		} catch (NumberFormatException e){
+			throw new IllegalArgumentException("Invalid SHARE API position: " + position);
+		}
+		params.put(FROM, position);
+		try {
+    		shareApiIterator = new ShareApiIterator(params);
+		} catch (Exception e){
+			throw new RuntimeException("could not initiate SHARE Api Iterator", e);    		
+		}
 	}
 			 
 }
@@ -299,7 +299,7 @@ public class ShareDiscoBuilder extends DiscoBuilder  {
 	 */
 	private void addAgent(Agent agent, Resource subjectIri, IRI predicateIri){
 		Resource primaryiri = null;
-		Integer stmtsInModelBeforeAgent = model.size();
+		Integer stmtsInModelBeforeAgent = stmtCount;
 		if (agent!=null){
 			
 			List<URI> agentUris = agent.getSameAs();
@@ -341,14 +341,14 @@ public class ShareDiscoBuilder extends DiscoBuilder  {
 			//if the model has grown, that means there is new data! Link the Agent to the rest of the graph
 			//if it has stayed the same but an actual IRI was provided, rather than just a blank node
 			//this should be in the graph too
-			if(model.size()>stmtsInModelBeforeAgent || primaryiri instanceof IRI){ 
+			if(stmtCount>stmtsInModelBeforeAgent || primaryiri instanceof IRI){ 
 				//add stmt to connect agent back to graph
 				addStmt(subjectIri, predicateIri, primaryiri);
 			}
 			
 			//Type stmt is always added regardless... but before this is done we want to make sure new data was generated
 			//otherwise this will be a typed blank node and nothing else.
-			if (model.size()>stmtsInModelBeforeAgent) {
+			if (stmtCount>stmtsInModelBeforeAgent) {
 				//add agent type
 				AgentType agentType = agent.getType();
 				if (agentType!=null){
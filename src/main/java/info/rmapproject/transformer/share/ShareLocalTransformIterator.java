@@ -20,22 +20,20 @@
 package info.rmapproject.transformer.share;
 
 import info.rmapproject.cos.share.client.model.Record;
+import info.rmapproject.transformer.ResumableIterator;
 import info.rmapproject.transformer.fileiterator.JsonFileRecordIterator;
 import info.rmapproject.transformer.model.RecordDTO;
 import info.rmapproject.transformer.model.RecordType;
 
-import java.util.Iterator;
-
-import com.fasterxml.jackson.databind.ObjectMapper;
-
 /**
  * Manages the iteration over SHARE data contained in local file path. 
  * Will loop through all valid JSON files on the input path provided, splitting files 
  * that contain multiple records and handing them back each time "next()" is called.
+ * The position of the iterator is the index of the file in name order and of the record in that file.
  * @author khanson
  *
  */
-public class ShareLocalTransformIterator implements Iterator<RecordDTO> {
+public class ShareLocalTransformIterator implements ResumableIterator {
 
 	/**  Root element for JSON record - will split on this field where there are multiple records *. */
     protected static final String ROOT_ELEMENT = "results";
@@ -46,8 +44,8 @@ public class ShareLocalTransformIterator implements Iterator<RecordDTO> {
 	/** File extension of files containing JSON. */
 	private String inputFileExt;
 	
-	/** Iterates over file. */
-	private Iterator<String> fileIterator;
+	/** Iterates over the SHARE records in each file. */
+	private JsonFileRecordIterator<Record> fileIterator;
 		
 	/**
 	 * Instantiates a new share local transform iterator.
@@ -68,7 +66,8 @@ public class ShareLocalTransformIterator implements Iterator<RecordDTO> {
 		
 		//initiate importer for iteration through files
 		this.fileIterator = 
-				new JsonFileRecordIterator<String>(this.inputpath, this.inputFileExt, ROOT_ELEMENT);	
+				new JsonFileRecordIterator<Record>(this.inputpath, this.inputFileExt, ROOT_ELEMENT, 
+													ShareRecordReader.getReader());	
 	}	
 	
 
@@ -79,11 +78,8 @@ public class ShareLocalTransformIterator implements Iterator<RecordDTO> {
 	public RecordDTO next() {
 		RecordDTO recordDTO = null;
 		try {
-			String record = fileIterator.next();
-			if (record!=null){
-				// Convert JSON string to Object
-				ObjectMapper mapper = new ObjectMapper();
-				Record sharerec = (Record) mapper.readValue(record, Record.class);
+			Record sharerec = fileIterator.next();
+			if (sharerec!=null){
 				String id = sharerec.getShareProperties().getDocID();
 				String source = sharerec.getShareProperties().getSource();
 				if (source!=null && source.length()>0){
@@ -104,6 +100,46 @@ public class ShareLocalTransformIterator implements Iterator<RecordDTO> {
 	public boolean hasNext() {
 		return fileIterator.hasNext();
 	}
+
+	/**
+	 * Gets the position of the next record as fileIndex:recordIndex.
+	 * 
+	 * @see info.rmapproject.transformer.ResumableIterator#getPosition()
+	 */
+	@Override
+	public String getPosition() {
+		if (!hasNext()){
+			return END;
+		}
+		int fileIndex = Math.max(fileIterator.getFileIndex(), 0);
+		return fileIndex + ":" + (fileIterator.getRecordIndex()+1);
+	}
+
+	/**
+	 * Moves to the position given. Records before it in the file are skipped without being read.
+	 * 
+	 * @see info.rmapproject.transformer.ResumableIterator#resume(java.lang.String)
+	 */
+	@Override
+	public void resume(String position) {
+		if (position==null){
+			throw new IllegalArgumentException("position cannot be null");
+		}
+		if (position.equals(END)){
+			fileIterator.moveTo(fileIterator.getFileCount(), 0);
+			return;
+		}
+		String[] parts = position.split(":");
+		try {
+			if (parts.length==2){
+				fileIterator.moveTo(Integer.parseInt(parts[0]), Integer.parseInt(parts[1]));
+				return;
+			}
+		} catch (NumberFormatException e){
+			//reported below
+		}
+		throw new IllegalArgumentException("Invalid SHARE file position: " + position);
+	}
 	
 		
 }
@@ -0,0 +1,52 @@
+/*******************************************************************************
+ * Copyright 2017 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This software was produced as part of the RMap Project (http://rmap-project.info),
+ * The RMap Project was funded by the Alfred P. Sloan Foundation and is a 
+ * collaboration between Data Conservancy, Portico, and IEEE.
+ *******************************************************************************/
+package info.rmapproject.transformer.share;
+
+import info.rmapproject.cos.share.client.model.Record;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+
+/**
+ * Holds a single ObjectReader for binding SHARE JSON to Record objects. ObjectReader is immutable 
+ * and thread-safe, so the same instance can be used by every iterator and worker thread. Sharing it 
+ * means the Record deserializers are built once and then reused from Jackson's caches, rather than 
+ * being rebuilt for each new ObjectMapper.
+ */
+public final class ShareRecordReader {
+
+	/** Reader for SHARE Records, with the root deserializer resolved up front. */
+	private static final ObjectReader RECORD_READER = new ObjectMapper().readerFor(Record.class);
+	
+	/**
+	 * Not instantiated.
+	 */
+	private ShareRecordReader() {}
+	
+	/**
+	 * Gets the shared reader for SHARE Records.
+	 *
+	 * @return the record reader
+	 */
+	public static ObjectReader getReader() {
+		return RECORD_READER;
+	}
+	
+}
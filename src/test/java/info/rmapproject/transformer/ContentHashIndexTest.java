@@ -0,0 +1,162 @@
+/*******************************************************************************
+ * Copyright 2017 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This software was produced as part of the RMap Project (http://rmap-project.info),
+ * The RMap Project was funded by the Alfred P. Sloan Foundation and is a
+ * collaboration between Data Conservancy, Portico, and IEEE.
+ *******************************************************************************/
+package info.rmapproject.transformer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.openrdf.model.IRI;
+import org.openrdf.model.Model;
+import org.openrdf.model.ValueFactory;
+import org.openrdf.model.impl.LinkedHashModel;
+import org.openrdf.model.impl.SimpleValueFactory;
+
+/**
+ * Tests for ContentHashIndex
+ */
+public class ContentHashIndexTest {
+
+	/** The value factory. */
+	private static final ValueFactory vf = SimpleValueFactory.getInstance();
+
+	/** The temporary folder. */
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	/**
+	 * Test that hashes saved to the index are found again when it is loaded, and counted as new or changed.
+	 */
+	@Test
+	public void testSaveAndLoad() {
+		File file = new File(folder.getRoot(), "hashes.idx");
+		ContentHashIndex index = new ContentHashIndex(file);
+		index.put("a", 1);
+		index.put("b", 2);
+		index.put("b", 3);
+		assertEquals(2, index.getNewCount());
+		assertEquals(1, index.getChangedCount());
+		index.close();
+		assertFalse(new File(file.getPath() + ".journal").exists());
+
+		ContentHashIndex loaded = new ContentHashIndex(file);
+		assertEquals(2, loaded.size());
+		assertTrue(loaded.isUnchanged("a", 1));
+		assertTrue(loaded.isUnchanged("b", 3));
+		assertFalse(loaded.isUnchanged("b", 2));
+		assertFalse(loaded.isUnchanged("c", 1));
+		assertEquals(2, loaded.getUnchangedCount());
+	}
+
+	/**
+	 * Test that the journal left by a run that stopped before saving is replayed, ignoring a change 
+	 * that was only partly written.
+	 *
+	 * @throws Exception the exception
+	 */
+	@Test
+	public void testJournalReplayAfterTruncatedWrite() throws Exception {
+		File file = new File(folder.getRoot(), "hashes.idx");
+		ContentHashIndex index = new ContentHashIndex(file);
+		index.put("a", 1);
+		index.put("b", 2);
+		//the run stops part way through writing the next change, without saving
+		File journal = new File(file.getPath() + ".journal");
+		try (OutputStream out = Files.newOutputStream(journal.toPath(), StandardOpenOption.APPEND)) {
+			out.write(new byte[] {1, 2, 3, 4, 5});
+		}
+
+		ContentHashIndex loaded = new ContentHashIndex(file);
+		assertEquals(2, loaded.size());
+		assertTrue(loaded.isUnchanged("a", 1));
+		assertTrue(loaded.isUnchanged("b", 2));
+	}
+
+	/**
+	 * Test that the content hash ignores statement order and blank node labels, but not content.
+	 */
+	@Test
+	public void testHash() {
+		IRI disco = vf.createIRI("rmap:disco1");
+		IRI agg = vf.createIRI("http://www.openarchives.org/ore/terms/aggregates");
+		IRI title = vf.createIRI("http://purl.org/dc/terms/title");
+
+		Model first = new LinkedHashModel();
+		first.add(disco, agg, vf.createBNode("x1"));
+		first.add(vf.createBNode("x1"), title, vf.createLiteral("A title"));
+		Model second = new LinkedHashModel();
+		second.add(vf.createBNode("y7"), title, vf.createLiteral("A title"));
+		second.add(disco, agg, vf.createBNode("y7"));
+		Model changed = new LinkedHashModel();
+		changed.add(disco, agg, vf.createBNode("x1"));
+		changed.add(vf.createBNode("x1"), title, vf.createLiteral("Another title"));
+
+		assertEquals(ContentHashIndex.hash(first), ContentHashIndex.hash(second));
+		assertNotEquals(ContentHashIndex.hash(first), ContentHashIndex.hash(changed));
+	}
+
+	/**
+	 * Test that the content hash changes when two blank node agents swap roles, and not when only their labels change.
+	 */
+	@Test
+	public void testHashSwappedAgents() {
+		IRI work = vf.createIRI("http://example.org/work1");
+		IRI creator = vf.createIRI("http://purl.org/dc/terms/creator");
+		IRI contributor = vf.createIRI("http://purl.org/dc/terms/contributor");
+		IRI name = vf.createIRI("http://xmlns.com/foaf/0.1/name");
+
+		Model first = agents(work, creator, contributor, name, "a1", "a2");
+		Model relabeled = agents(work, creator, contributor, name, "b9", "b3");
+		Model swapped = agents(work, contributor, creator, name, "a1", "a2");
+
+		assertEquals(ContentHashIndex.hash(first), ContentHashIndex.hash(relabeled));
+		assertNotEquals(ContentHashIndex.hash(first), ContentHashIndex.hash(swapped));
+	}
+
+	/**
+	 * Creates a model in which Alice is linked to the work by the first role and Bob by the second.
+	 *
+	 * @param work the work
+	 * @param aliceRole the predicate linking the work to Alice
+	 * @param bobRole the predicate linking the work to Bob
+	 * @param name the name predicate
+	 * @param alice the blank node label for Alice
+	 * @param bob the blank node label for Bob
+	 * @return the model
+	 */
+	private static Model agents(IRI work, IRI aliceRole, IRI bobRole, IRI name, String alice, String bob) {
+		Model model = new LinkedHashModel();
+		model.add(work, aliceRole, vf.createBNode(alice));
+		model.add(vf.createBNode(alice), name, vf.createLiteral("Alice"));
+		model.add(work, bobRole, vf.createBNode(bob));
+		model.add(vf.createBNode(bob), name, vf.createLiteral("Bob"));
+		return model;
+	}
+
+}
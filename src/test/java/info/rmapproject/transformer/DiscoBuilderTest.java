@@ -0,0 +1,104 @@
+/*******************************************************************************
+ * Copyright 2017 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This software was produced as part of the RMap Project (http://rmap-project.info),
+ * The RMap Project was funded by the Alfred P. Sloan Foundation and is a
+ * collaboration between Data Conservancy, Portico, and IEEE.
+ *******************************************************************************/
+package info.rmapproject.transformer;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+import org.openrdf.model.IRI;
+import org.openrdf.model.Model;
+import org.openrdf.model.Statement;
+import org.openrdf.model.impl.LinkedHashModel;
+import org.openrdf.rio.helpers.StatementCollector;
+
+/**
+ * Tests for DiscoBuilder
+ */
+public class DiscoBuilderTest {
+
+	/**
+	 * Builder that repeats the first of many distinct statements at the end of the DiSCO.
+	 */
+	private static class RepeatingDiscoBuilder extends DiscoBuilder {
+
+		/* (non-Javadoc)
+		 * @see info.rmapproject.transformer.DiscoBuilder#getModel()
+		 */
+		@Override
+		public Model getModel() {
+			addDiscoHeader();
+			IRI predicate = factory.createIRI("http://example.org/part");
+			for (int i=0; i<10000; i++){
+				addIriStmt(discoId, predicate, "http://example.org/item/" + i);
+			}
+			addIriStmt(discoId, predicate, "http://example.org/item/0");
+			return model;
+		}
+
+		/* (non-Javadoc)
+		 * @see info.rmapproject.transformer.DiscoBuilder#setRecord(java.lang.Object)
+		 */
+		@Override
+		public void setRecord(Object record) {
+		}
+	}
+
+	/**
+	 * Test that a streamed DiSCO has the same statements as the Model, however far apart the duplicates are.
+	 */
+	@Test
+	public void testWriteToSkipsDistantDuplicates() {
+		Model expected = new RepeatingDiscoBuilder().getModel();
+
+		Model streamed = new LinkedHashModel();
+		StatementCounter counter = new StatementCounter(streamed);
+		new RepeatingDiscoBuilder().writeTo(counter);
+		assertEquals(expected.size(), counter.count);
+		assertEquals(expected.size(), streamed.size());
+	}
+
+	/**
+	 * Collects statements into a Model, counting every statement handled.
+	 */
+	private static class StatementCounter extends StatementCollector {
+
+		/** The number of statements handled. */
+		private int count = 0;
+
+		/**
+		 * Instantiates a new statement counter.
+		 *
+		 * @param model the model to collect statements into
+		 */
+		private StatementCounter(Model model) {
+			super(model);
+		}
+
+		/* (non-Javadoc)
+		 * @see org.openrdf.rio.helpers.StatementCollector#handleStatement(org.openrdf.model.Statement)
+		 */
+		@Override
+		public void handleStatement(Statement st) {
+			count = count + 1;
+			super.handleStatement(st);
+		}
+	}
+
+}
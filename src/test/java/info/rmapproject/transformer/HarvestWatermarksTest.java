@@ -0,0 +1,77 @@
+/*******************************************************************************
+ * Copyright 2017 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This software was produced as part of the RMap Project (http://rmap-project.info),
+ * The RMap Project was funded by the Alfred P. Sloan Foundation and is a
+ * collaboration between Data Conservancy, Portico, and IEEE.
+ *******************************************************************************/
+package info.rmapproject.transformer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.Instant;
+import java.util.Arrays;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import info.rmapproject.transformer.model.RecordType;
+
+/**
+ * Tests for HarvestWatermarks
+ */
+public class HarvestWatermarksTest {
+
+	/** The temporary folder. */
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	/**
+	 * Test that saved marks are loaded again, and record types without a mark have none.
+	 *
+	 * @throws Exception the exception
+	 */
+	@Test
+	public void testSaveAndLoad() throws Exception {
+		File file = new File(folder.getRoot(), "marks/watermarks.properties");
+		HarvestWatermarks marks = new HarvestWatermarks(file);
+		assertNull(marks.get(RecordType.OSF_NODE));
+		Instant mark = Instant.parse("2017-06-01T02:00:00Z");
+		marks.set(RecordType.OSF_NODE, mark);
+		marks.save();
+
+		HarvestWatermarks loaded = new HarvestWatermarks(file);
+		assertEquals(mark, loaded.get(RecordType.OSF_NODE));
+		assertNull(loaded.get(RecordType.OSF_USER));
+	}
+
+	/**
+	 * Test that a mark that is not a valid time is reported rather than ignored.
+	 *
+	 * @throws Exception the exception
+	 */
+	@Test(expected=IllegalArgumentException.class)
+	public void testInvalidMark() throws Exception {
+		File file = folder.newFile("watermarks.properties");
+		Files.write(file.toPath(), Arrays.asList("osf_node=yesterday"), StandardCharsets.UTF_8);
+		new HarvestWatermarks(file).get(RecordType.OSF_NODE);
+	}
+
+}
@@ -27,10 +27,12 @@ import org.apache.commons.io.FileUtils;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
+import org.junit.experimental.categories.Category;
 
 /**
  * Tests for OSF transformer
  */
+@Category(LiveApiTest.class)
 public class OSFTransformerTest {
 
 	/** The input path. */
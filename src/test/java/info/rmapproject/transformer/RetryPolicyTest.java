@@ -0,0 +1,138 @@
+/*******************************************************************************
+ * Copyright 2017 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This software was produced as part of the RMap Project (http://rmap-project.info),
+ * The RMap Project was funded by the Alfred P. Sloan Foundation and is a
+ * collaboration between Data Conservancy, Portico, and IEEE.
+ *******************************************************************************/
+package info.rmapproject.transformer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+
+/**
+ * Tests for RetryPolicy
+ */
+public class RetryPolicyTest {
+
+	/** The policy, without delays between attempts. */
+	private RetryPolicy policy;
+
+	/**
+	 * Creates a policy that retries immediately.
+	 */
+	@Before
+	public void setUp() {
+		policy = new RetryPolicy();
+		policy.setMaxAttempts(3);
+		policy.setInitialDelay(0);
+	}
+
+	/**
+	 * Test that a temporary failure is retried until the action succeeds.
+	 */
+	@Test
+	public void testRetriesUntilSuccess() {
+		AtomicInteger attempts = new AtomicInteger();
+		String result = policy.call("test", () -> {
+			if (attempts.incrementAndGet()<3){
+				throw new ApiResponseException(503, "unavailable");
+			}
+			return "ok";
+		});
+		assertEquals("ok", result);
+		assertEquals(3, attempts.get());
+	}
+
+	/**
+	 * Test that a failure that is not temporary is thrown without retrying.
+	 */
+	@Test
+	public void testDoesNotRetryClientError() {
+		AtomicInteger attempts = new AtomicInteger();
+		ApiResponseException notFound = new ApiResponseException(404, "not found");
+		try {
+			policy.call("test", () -> {
+				attempts.incrementAndGet();
+				throw notFound;
+			});
+			fail("Expected the failure to be thrown");
+		} catch (ApiResponseException e) {
+			assertSame(notFound, e);
+		}
+		assertEquals(1, attempts.get());
+	}
+
+	/**
+	 * Test that the last failure is thrown once all attempts are used.
+	 */
+	@Test
+	public void testGivesUpAfterMaxAttempts() {
+		AtomicInteger attempts = new AtomicInteger();
+		try {
+			policy.call("test", () -> {
+				throw new RuntimeException("attempt " + attempts.incrementAndGet(), new IOException("reset"));
+			});
+			fail("Expected the failure to be thrown");
+		} catch (RuntimeException e) {
+			assertEquals("attempt 3", e.getMessage());
+		}
+		assertEquals(3, attempts.get());
+	}
+
+	/**
+	 * Test classification of failures, looking through the causes.
+	 */
+	@Test
+	public void testIsRetryable() {
+		assertTrue(policy.isRetryable(new ApiResponseException(429, "throttled")));
+		assertTrue(policy.isRetryable(new RuntimeException(new ApiResponseException(502, "bad gateway"))));
+		assertTrue(policy.isRetryable(new RuntimeException(new IOException("timeout"))));
+		assertFalse(policy.isRetryable(new ApiResponseException(400, "bad request")));
+		assertFalse(policy.isRetryable(new RuntimeException(new JsonProcessingException("bad json"){
+			private static final long serialVersionUID = 1L;
+		})));
+		assertFalse(policy.isRetryable(new IllegalStateException("bug")));
+	}
+
+	/**
+	 * Test that the delay doubles with each attempt up to the maximum, less up to half for jitter.
+	 */
+	@Test
+	public void testDelay() {
+		policy.setInitialDelay(1000);
+		policy.setMaxDelay(3000);
+		for (int i=0; i<100; i++){
+			long first = policy.getDelay(1);
+			assertTrue(first>=500 && first<=1000);
+			long second = policy.getDelay(2);
+			assertTrue(second>=1000 && second<=2000);
+			long capped = policy.getDelay(10);
+			assertTrue(capped>=1500 && capped<=3000);
+		}
+	}
+
+}
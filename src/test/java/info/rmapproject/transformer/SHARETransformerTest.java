@@ -22,13 +22,16 @@ package info.rmapproject.transformer;
 import static org.junit.Assert.assertTrue;
 
 import java.io.File;
-import java.io.UnsupportedEncodingException;
-import java.net.URLDecoder;
+import java.nio.file.Files;
+import java.util.List;
 
 import org.apache.commons.io.FileUtils;
 import org.junit.After;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.junit.rules.TemporaryFolder;
 
 /**
  * Tests for SHARE Transformer
@@ -38,6 +41,10 @@ public class SHARETransformerTest {
 	/** The input path. */
 	String inputPath;
 	
+	/** Folder holding only the sample records, so that other JSON files in the resources are not read as input. */
+	@Rule
+	public TemporaryFolder inputFolder = new TemporaryFolder();
+	
 	/**
 	 * Pre-test setup
 	 *
@@ -46,15 +53,9 @@ public class SHARETransformerTest {
 	@Before
 	public void setUp() throws Exception {
 		ClassLoader classLoader = getClass().getClassLoader();
-		File file = new File(classLoader.getResource("sampledata.json").getFile());
-
-		inputPath = file.getParentFile().getAbsolutePath();
-
-		try {
-			inputPath = URLDecoder.decode(inputPath, "UTF-8");
-		} catch (UnsupportedEncodingException e) {
-			e.printStackTrace();
-		}		
+		File file = new File(classLoader.getResource("sampledata.json").toURI());
+		FileUtils.copyFileToDirectory(file, inputFolder.getRoot());
+		inputPath = inputFolder.getRoot().getAbsolutePath();
 	}
 	
 	/**
@@ -84,12 +85,147 @@ public class SHARETransformerTest {
 
 	}
 
+	/**
+	 * Test SHARE local file transform using several worker threads.
+	 */
+	@Test
+	public void testShareLocalParallelTransform() {
+		String[] args = {"-src","local","-i", inputPath, "-iex", "json", "-o", "testshare/", "-w", "4"};
+		RMapTransformerCLI.main(args);
+		//check output files
+		Integer numfiles = new File("testshare").list().length;
+		assertTrue(numfiles.equals(30));
+	}
+
+	/**
+	 * Test SHARE local file transform using the staged pipeline.
+	 */
+	@Test
+	public void testShareLocalPipelineTransform() {
+		String[] args = {"-src","local","-i", inputPath, "-iex", "json", "-o", "testshare/", 
+						"-p", "-bt", "3", "-st", "2", "-wt", "2", "-qs", "5"};
+		RMapTransformerCLI.main(args);
+		//check output files
+		Integer numfiles = new File("testshare").list().length;
+		assertTrue(numfiles.equals(30));
+	}
+
+	/**
+	 * Test SHARE local file transform with DiSCO files written in batches from a background thread.
+	 */
+	@Test
+	public void testShareLocalAsyncWriteTransform() {
+		String[] args = {"-src","local","-i", inputPath, "-iex", "json", "-o", "testshare/", "-aw", "-awq", "5", "-dur", "dir", "-w", "3"};
+		RMapTransformerCLI.main(args);
+		//check output files
+		Integer numfiles = new File("testshare").list().length;
+		assertTrue(numfiles.equals(30));
+	}
+
+	/**
+	 * Test SHARE local file transform with DiSCO files spread across hashed subfolders, checking the manifest.
+	 */
+	@Test
+	public void testShareLocalShardedTransform() throws Exception {
+		String[] args = {"-src","local","-i", inputPath, "-iex", "json", "-o", "testshare/", "-sd", "2", "-sw", "1"};
+		RMapTransformerCLI.main(args);
+		//check manifest lists 30 files, each where it says
+		List<String> manifest = Files.readAllLines(new File("testshare/manifest.tsv").toPath());
+		assertTrue(manifest.size()==30);
+		for (String line : manifest){
+			String path = line.split("\t")[1];
+			assertTrue(path.matches("[0-9a-f]/[0-9a-f]/.+"));
+			assertTrue(new File("testshare", path).isFile());
+		}
+	}
+
+	/**
+	 * Test SHARE local file transform stopped part way and resumed from the checkpoint, checking that
+	 * each record is written once.
+	 */
+	@Test
+	public void testShareLocalResumeTransform() {
+		String[] args = {"-src","local","-i", inputPath, "-iex", "json", "-o", "testshare/discos/", 
+							"-cp", "testshare/checkpoint.properties", "-n", "12", "-w", "3"};
+		RMapTransformerCLI.main(args);
+		assertTrue(new File("testshare/discos").list().length==12);
+		String[] resumeArgs = {"-src","local","-i", inputPath, "-iex", "json", "-o", "testshare/discos/", 
+							"-cp", "testshare/checkpoint.properties", "-resume", "-n", "100", "-p"};
+		RMapTransformerCLI.main(resumeArgs);
+		//check output files - all 30 with no duplicates
+		String[] files = new File("testshare/discos").list();
+		assertTrue(files.length==30);
+		for (String file : files){
+			assertTrue(!file.contains("_duplicate"));
+		}
+	}
+
+	/**
+	 * Test SHARE local file transform run twice with a content-hash index, checking the second run
+	 * writes nothing because no DiSCO has changed.
+	 */
+	@Test
+	public void testShareLocalSkipUnchangedTransform() {
+		String[] args = {"-src","local","-i", inputPath, "-iex", "json", "-o", "testshare/first/", 
+							"-su", "testshare/hashes.idx"};
+		RMapTransformerCLI.main(args);
+		assertTrue(new File("testshare/first").list().length==30);
+		String[] rerunArgs = {"-src","local","-i", inputPath, "-iex", "json", "-o", "testshare/second/", 
+							"-su", "testshare/hashes.idx", "-w", "3"};
+		RMapTransformerCLI.main(rerunArgs);
+		//check no files written on the second run
+		File second = new File("testshare/second");
+		assertTrue(!second.exists() || second.list().length==0);
+	}
+
+	/**
+	 * Test SHARE local file transform into N-Quads bundles.
+	 */
+	@Test
+	public void testShareLocalBundleTransform() {
+		String[] args = {"-src","local","-i", inputPath, "-iex", "json", "-o", "testshare/", "-b", "nquads", "-br", "12"};
+		RMapTransformerCLI.main(args);
+		//check output files - 3 bundles and an index
+		Integer numfiles = new File("testshare").list().length;
+		assertTrue(numfiles.equals(4));
+	}
+
+	/**
+	 * Test SHARE local file transform to N-Triples, checking the filenames use the N-Triples extension.
+	 */
+	@Test
+	public void testShareLocalNTriplesTransform() {
+		String[] args = {"-src","local","-i", inputPath, "-iex", "json", "-o", "testshare/", "-of", "ntriples"};
+		RMapTransformerCLI.main(args);
+		//check output files
+		String[] files = new File("testshare").list();
+		assertTrue(files.length==30);
+		for (String file : files){
+			assertTrue(file.endsWith(".nt"));
+		}
+	}
+
+	/**
+	 * Test SHARE local file transform streaming statements from the DiSCO builders to the output.
+	 */
+	@Test
+	public void testShareLocalStreamingTransform() {
+		String[] args = {"-src","local","-i", inputPath, "-iex", "json", "-o", "testshare/", "-sm"};
+		RMapTransformerCLI.main(args);
+		//check output files
+		Integer numfiles = new File("testshare").list().length;
+		assertTrue(numfiles.equals(30));
+	}
+
 	/**
 	 * Test SHARE character encoding transform.
+	 *
+	 * @throws Exception the exception
 	 */
 	@Test
-	public void testShareCharEncodeTransform() {
-		String[] args = {"-src","local","-i", inputPath+"/char-encode", "-iex", "json", "-o", "testshare/"};
+	public void testShareCharEncodeTransform() throws Exception {
+		String charEncodePath = new File(getClass().getClassLoader().getResource("char-encode").toURI()).getAbsolutePath();
+		String[] args = {"-src","local","-i", charEncodePath, "-iex", "json", "-o", "testshare/"};
 		RMapTransformerCLI.main(args);
 		//check output files
 		Integer numfiles = new File("testshare").list().length;
@@ -104,6 +240,7 @@ public class SHARETransformerTest {
 	 * @throws Exception the exception
 	 */
 	@Test 
+	@Category(LiveApiTest.class)
 	public void testShareApiTransform() throws Exception{
 		//String[] args = {"-src", "api","-f", "?q=boutot", "-n","32", "-o", "testshare/"};
 		String[] args = {"-src", "api","-f", "?q=pt2d7&sort=providerUpdatedDateTime", "-n","2", "-o", "prezz/"};
@@ -119,6 +256,7 @@ public class SHARETransformerTest {
 	 * @throws Exception the exception
 	 */
 	@Test 
+	@Category(LiveApiTest.class)
 	public void testShareWithExactPaginationNum() throws Exception{
 		String[] args = {"-src", "api","-f", "?q=heart", "-n","30", "-o", "testshare/"};
 		RMapTransformerCLI.main(args);
@@ -133,6 +271,7 @@ public class SHARETransformerTest {
 	 * @throws Exception the exception
 	 */
 	@Test 
+	@Category(LiveApiTest.class)
 	public void testShareQueryWithNoMatches() throws Exception{
 		String[] args = {"-src", "api","-f", "?q=asdfda", "-n","5", "-o", "testshare/"};
 		RMapTransformerCLI.main(args);
@@ -147,6 +286,7 @@ public class SHARETransformerTest {
 	 * @throws Exception the exception
 	 */
 	@Test 
+	@Category(LiveApiTest.class)
 	public void testShareQueryWithOneMatch() throws Exception{
 		String[] args = {"-src", "api","-f", "?q=asdfd", "-n","5", "-o", "testshare/"};
 		RMapTransformerCLI.main(args);
@@ -0,0 +1,96 @@
+/*******************************************************************************
+ * Copyright 2017 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This software was produced as part of the RMap Project (http://rmap-project.info),
+ * The RMap Project was funded by the Alfred P. Sloan Foundation and is a
+ * collaboration between Data Conservancy, Portico, and IEEE.
+ *******************************************************************************/
+package info.rmapproject.transformer.osf;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Tests for OsfEmbedInterceptor
+ */
+public class OsfEmbedInterceptorTest {
+
+	/** The mapper. */
+	private static final ObjectMapper mapper = new ObjectMapper();
+
+	/**
+	 * Test that complete embeds, including those nested in embedded resources, are moved to "included",
+	 * while paged and errored embeds are left to be resolved by their links.
+	 *
+	 * @throws Exception the exception
+	 */
+	@Test
+	public void testInlineEmbeds() throws Exception {
+		String document = "{\"data\":{\"type\":\"nodes\",\"id\":\"abc12\","
+				+ "\"relationships\":{"
+				+ "\"contributors\":{\"links\":{\"related\":{\"href\":\"https://api.osf.io/v2/nodes/abc12/contributors/\"}}},"
+				+ "\"children\":{\"links\":{\"related\":{\"href\":\"https://api.osf.io/v2/nodes/abc12/children/\"}}},"
+				+ "\"files\":{\"links\":{\"related\":{\"href\":\"https://api.osf.io/v2/nodes/abc12/files/\"}}}},"
+				+ "\"embeds\":{"
+				+ "\"contributors\":{\"data\":[{\"type\":\"contributors\",\"id\":\"abc12-u1\","
+				+ "\"embeds\":{\"users\":{\"data\":{\"type\":\"users\",\"id\":\"u1\"}}}}],"
+				+ "\"links\":{\"next\":null}},"
+				+ "\"children\":{\"data\":[{\"type\":\"nodes\",\"id\":\"def34\"}],"
+				+ "\"links\":{\"next\":\"https://api.osf.io/v2/nodes/abc12/children/?page=2\"}},"
+				+ "\"files\":{\"errors\":[{\"detail\":\"Not found.\"}]}}}}";
+
+		JsonNode root = mapper.readTree(OsfEmbedInterceptor.inlineEmbeds(document.getBytes(StandardCharsets.UTF_8)));
+		JsonNode data = root.path("data");
+		assertFalse(data.has("embeds"));
+		JsonNode relationships = data.path("relationships");
+		assertEquals("abc12-u1", relationships.path("contributors").path("data").path(0).path("id").asText());
+		assertEquals("contributors", relationships.path("contributors").path("data").path(0).path("type").asText());
+		assertTrue(relationships.path("children").path("links").has("related"));
+		assertFalse(relationships.path("children").has("data"));
+		assertTrue(relationships.path("files").path("links").has("related"));
+		assertFalse(relationships.path("files").has("data"));
+
+		JsonNode included = root.path("included");
+		assertEquals(2, included.size());
+		JsonNode contributor = included.path(0);
+		assertEquals("abc12-u1", contributor.path("id").asText());
+		assertFalse(contributor.has("embeds"));
+		assertEquals("u1", contributor.path("relationships").path("users").path("data").path("id").asText());
+		assertEquals("u1", included.path(1).path("id").asText());
+	}
+
+	/**
+	 * Test that a document with nothing embedded is returned as it is.
+	 *
+	 * @throws Exception the exception
+	 */
+	@Test
+	public void testNothingEmbedded() throws Exception {
+		byte[] document = "{\"data\":{\"type\":\"nodes\",\"id\":\"abc12\",\"relationships\":{}}}".getBytes(StandardCharsets.UTF_8);
+		assertSame(document, OsfEmbedInterceptor.inlineEmbeds(document));
+		byte[] list = "{\"data\":[{\"type\":\"nodes\",\"id\":\"abc12\"}]}".getBytes(StandardCharsets.UTF_8);
+		assertSame(list, OsfEmbedInterceptor.inlineEmbeds(list));
+	}
+
+}
@@ -0,0 +1,105 @@
+/*******************************************************************************
+ * Copyright 2017 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This software was produced as part of the RMap Project (http://rmap-project.info),
+ * The RMap Project was funded by the Alfred P. Sloan Foundation and is a
+ * collaboration between Data Conservancy, Portico, and IEEE.
+ *******************************************************************************/
+package info.rmapproject.transformer.osf;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import info.rmapproject.cos.osf.client.model.LightNode;
+import info.rmapproject.cos.osf.client.model.Node;
+
+/**
+ * Tests for OsfNodeApiIterator
+ */
+public class OsfNodeApiIteratorTest {
+
+	/**
+	 * Test that siblings checking the same parent at the same time share one request for it.
+	 */
+	@Test
+	public void testParentRequestedOncePerSiblings() throws Exception {
+		AtomicInteger parentRequests = new AtomicInteger();
+		OsfClientService osfClient = new OsfClientService(){
+			@Override
+			public List<LightNode> getNodeIds(Map<String,String> params){
+				return Collections.emptyList();
+			}
+			@Override
+			public int getResponseCode(String url){
+				parentRequests.incrementAndGet();
+				try {
+					Thread.sleep(200);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				return 401;
+			}
+		};
+		OsfNodeApiIterator iterator = new OsfNodeApiIterator("", 1, 0, osfClient, new ParentAccessCache());
+
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			List<Future<Boolean>> checks = new ArrayList<Future<Boolean>>();
+			for (int i=0; i<4; i++){
+				Node child = node("child" + i, "https://api.osf.io/v2/nodes/parent1/");
+				checks.add(executor.submit(() -> iterator.hasAccessibleParent(child)));
+			}
+			for (Future<Boolean> check : checks){
+				assertFalse(check.get());
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+		assertEquals(1, parentRequests.get());
+		assertEquals(Boolean.FALSE, iterator.getParentAccessCache().get("parent1"));
+	}
+
+	/**
+	 * Creates a Node.
+	 *
+	 * @param id the Node ID
+	 * @param parent the parent Node URL
+	 * @return the Node
+	 */
+	private static Node node(final String id, final String parent) {
+		return new Node(){
+			@Override
+			public String getId(){
+				return id;
+			}
+			@Override
+			public String getParent(){
+				return parent;
+			}
+		};
+	}
+
+}
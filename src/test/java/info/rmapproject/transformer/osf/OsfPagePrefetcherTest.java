@@ -0,0 +1,161 @@
+/*******************************************************************************
+ * Copyright 2017 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This software was produced as part of the RMap Project (http://rmap-project.info),
+ * The RMap Project was funded by the Alfred P. Sloan Foundation and is a
+ * collaboration between Data Conservancy, Portico, and IEEE.
+ *******************************************************************************/
+package info.rmapproject.transformer.osf;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+import org.junit.Test;
+
+import info.rmapproject.transformer.ApiResponseException;
+
+/**
+ * Tests for OsfPagePrefetcher
+ */
+public class OsfPagePrefetcherTest {
+
+	/**
+	 * Creates a function that serves the pages provided, and responds 404 after the last page.
+	 *
+	 * @param pages the pages of IDs
+	 * @return the page loader
+	 */
+	private static Function<Map<String, String>, List<String>> pages(List<List<String>> pages) {
+		return params -> {
+			int page = Integer.parseInt(params.get("page"));
+			if (page>pages.size()){
+				throw new RuntimeException("cannot retrieve page", new ApiResponseException(404, "Not found"));
+			}
+			return pages.get(page-1);
+		};
+	}
+
+	/**
+	 * Reads all of the IDs from a prefetcher.
+	 *
+	 * @param prefetcher the prefetcher
+	 * @return the IDs
+	 */
+	private static List<String> readAll(OsfPagePrefetcher<String> prefetcher) {
+		List<String> ids = new ArrayList<String>();
+		List<String> page = prefetcher.next();
+		while (!page.isEmpty()){
+			ids.addAll(page);
+			page = prefetcher.next();
+		}
+		prefetcher.close();
+		return ids;
+	}
+
+	/**
+	 * Test that the results end after a page shorter than those before it.
+	 */
+	@Test
+	public void testEndsAtShortPage() {
+		List<List<String>> pages = Arrays.asList(Arrays.asList("a", "b"), Arrays.asList("c", "d"), Arrays.asList("e"));
+		for (int depth=0; depth<=2; depth++){
+			OsfPagePrefetcher<String> prefetcher = new OsfPagePrefetcher<String>(pages(pages), new HashMap<String, String>(), depth);
+			assertEquals(Arrays.asList("a", "b", "c", "d", "e"), readAll(prefetcher));
+			assertEquals(3, prefetcher.getPage());
+		}
+	}
+
+	/**
+	 * Test that when the last page is exactly full, the 404 for the page after it ends the results.
+	 */
+	@Test
+	public void testEndsAtPageNotFound() {
+		List<List<String>> pages = Arrays.asList(Arrays.asList("a", "b"), Arrays.asList("c", "d"));
+		for (int depth=0; depth<=2; depth++){
+			OsfPagePrefetcher<String> prefetcher = new OsfPagePrefetcher<String>(pages(pages), new HashMap<String, String>(), depth);
+			assertEquals(Arrays.asList("a", "b", "c", "d"), readAll(prefetcher));
+		}
+	}
+
+	/**
+	 * Test that the threads used for page requests stop when the last page is reached, without the 
+	 * prefetcher being closed.
+	 */
+	@Test
+	public void testStopsThreadsAtLastPage() throws Exception {
+		List<List<String>> pages = Arrays.asList(Arrays.asList("a", "b"), Arrays.asList("c"));
+		List<Thread> threads = new ArrayList<Thread>();
+		Function<Map<String, String>, List<String>> loadPage = params -> {
+			synchronized (threads) {
+				threads.add(Thread.currentThread());
+			}
+			return pages(pages).apply(params);
+		};
+		OsfPagePrefetcher<String> prefetcher = new OsfPagePrefetcher<String>(loadPage, new HashMap<String, String>(), 1);
+		assertEquals(Arrays.asList("a", "b"), prefetcher.next());
+		assertEquals(Arrays.asList("c"), prefetcher.next());
+		Thread background = threads.get(1); //page 2 was requested ahead of time
+		background.join(5000);
+		assertFalse(background.isAlive());
+	}
+
+	/**
+	 * Test that retrieval starts after the page in the parameters.
+	 */
+	@Test
+	public void testStartsAfterPageParameter() {
+		List<List<String>> pages = Arrays.asList(Arrays.asList("a", "b"), Arrays.asList("c", "d"), Arrays.asList("e"));
+		Map<String, String> params = new HashMap<String, String>();
+		params.put("page", "1");
+		assertEquals(Arrays.asList("c", "d", "e"), readAll(new OsfPagePrefetcher<String>(pages(pages), params, 1)));
+	}
+
+	/**
+	 * Test that a first page that is not found is a failure rather than an empty result.
+	 */
+	@Test
+	public void testFirstPageNotFoundFails() {
+		OsfPagePrefetcher<String> prefetcher = 
+				new OsfPagePrefetcher<String>(pages(new ArrayList<List<String>>()), new HashMap<String, String>(), 1);
+		try {
+			prefetcher.next();
+			fail("Expected the failure to be thrown");
+		} catch (RuntimeException e) {
+			assertTrue(OsfPagePrefetcher.isNotFound(e));
+		} finally {
+			prefetcher.close();
+		}
+	}
+
+	/**
+	 * Test that only a 404 response counts as not found.
+	 */
+	@Test
+	public void testIsNotFound() {
+		assertTrue(OsfPagePrefetcher.isNotFound(new RuntimeException(new ApiResponseException(404, "Not found"))));
+		assertFalse(OsfPagePrefetcher.isNotFound(new RuntimeException(new ApiResponseException(500, "Server error"))));
+		assertFalse(OsfPagePrefetcher.isNotFound(new RuntimeException("timeout")));
+	}
+
+}
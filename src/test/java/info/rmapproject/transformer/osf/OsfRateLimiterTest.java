@@ -0,0 +1,150 @@
+/*******************************************************************************
+ * Copyright 2017 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This software was produced as part of the RMap Project (http://rmap-project.info),
+ * The RMap Project was funded by the Alfred P. Sloan Foundation and is a
+ * collaboration between Data Conservancy, Portico, and IEEE.
+ *******************************************************************************/
+package info.rmapproject.transformer.osf;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.squareup.okhttp.HttpUrl;
+
+/**
+ * Tests for OsfRateLimiter
+ */
+public class OsfRateLimiterTest {
+
+	private static final String NODE = "/v2/nodes/{id}/?embed";
+
+	private static final String NODE_IDS = "/v2/nodes/?filter[public]&format";
+
+	/**
+	 * Test reading a Retry-After header given in seconds.
+	 */
+	@Test
+	public void testParseRetryAfterSeconds() {
+		assertEquals(120000, OsfRateLimiter.parseRetryAfter("120"));
+		assertEquals(0, OsfRateLimiter.parseRetryAfter(" 0 "));
+		assertEquals(0, OsfRateLimiter.parseRetryAfter("-5"));
+	}
+
+	/**
+	 * Test reading a Retry-After header given as an HTTP date.
+	 */
+	@Test
+	public void testParseRetryAfterDate() {
+		String future = DateTimeFormatter.RFC_1123_DATE_TIME.format(ZonedDateTime.now(ZoneOffset.UTC).plusSeconds(30));
+		long pause = OsfRateLimiter.parseRetryAfter(future);
+		assertTrue("pause was " + pause, pause>28000 && pause<=30000);
+		String past = DateTimeFormatter.RFC_1123_DATE_TIME.format(ZonedDateTime.now(ZoneOffset.UTC).minusMinutes(5));
+		assertEquals(0, OsfRateLimiter.parseRetryAfter(past));
+	}
+
+	/**
+	 * Test that a missing or unreadable Retry-After header gives the default pause.
+	 */
+	@Test
+	public void testParseRetryAfterDefault() {
+		long defaultPause = OsfRateLimiter.parseRetryAfter(null);
+		assertTrue(defaultPause>0);
+		assertEquals(defaultPause, OsfRateLimiter.parseRetryAfter(""));
+		assertEquals(defaultPause, OsfRateLimiter.parseRetryAfter("soon"));
+	}
+
+	/**
+	 * Test that a throttled response halves the rate and concurrency, and successful responses 
+	 * increase them again gradually.
+	 */
+	@Test
+	public void testThrottledResponsesHalveLimits() {
+		OsfRateLimiter limiter = new OsfRateLimiter();
+		double rate = limiter.getRate();
+		int concurrency = limiter.getConcurrency();
+
+		limiter.acquire();
+		assertTrue(limiter.release(NODE, 429, TimeUnit.MILLISECONDS.toNanos(10), "0"));
+		assertEquals(rate / 2, limiter.getRate(), 0.001);
+		assertEquals(concurrency / 2, limiter.getConcurrency());
+		assertEquals(1, limiter.getThrottledCount());
+
+		double throttledRate = limiter.getRate();
+		limiter.acquire();
+		assertFalse(limiter.release(NODE, 200, TimeUnit.MILLISECONDS.toNanos(10), null));
+		assertTrue(limiter.getRate()>throttledRate);
+		assertTrue(limiter.getRate()<rate);
+		assertEquals(2, limiter.getRequestCount());
+	}
+
+	/**
+	 * Test that a response much slower than the fastest seen reduces the concurrency limit.
+	 */
+	@Test
+	public void testSlowResponseReducesConcurrency() {
+		OsfRateLimiter limiter = new OsfRateLimiter();
+		limiter.acquire();
+		limiter.release(NODE, 200, TimeUnit.MILLISECONDS.toNanos(10), null);
+		int concurrency = limiter.getConcurrency();
+		limiter.acquire();
+		limiter.release(NODE, 200, TimeUnit.MILLISECONDS.toNanos(100), null);
+		assertTrue(limiter.getConcurrency()<concurrency);
+	}
+
+	/**
+	 * Test that responses to different kinds of request are not compared with each other, so a mix of 
+	 * fast and slow requests that each respond at their usual speed does not reduce the concurrency limit.
+	 */
+	@Test
+	public void testMixedLatenciesKeepConcurrency() {
+		OsfRateLimiter limiter = new OsfRateLimiter();
+		int concurrency = limiter.getConcurrency();
+		for (int i=0; i<10; i++){
+			limiter.acquire();
+			limiter.release(NODE_IDS, 200, TimeUnit.MILLISECONDS.toNanos(10), null);
+			limiter.acquire();
+			limiter.release(NODE, 200, TimeUnit.MILLISECONDS.toNanos(200), null);
+		}
+		assertTrue(limiter.getConcurrency()>=concurrency);
+
+		int mixedConcurrency = limiter.getConcurrency();
+		limiter.acquire();
+		limiter.release(NODE, 200, TimeUnit.MILLISECONDS.toNanos(2000), null);
+		assertTrue(limiter.getConcurrency()<mixedConcurrency);
+	}
+
+	/**
+	 * Test that requests are grouped by their path without the IDs and their query parameters without the page.
+	 */
+	@Test
+	public void testGetRequestClass() {
+		assertEquals("/v2/nodes/{id}/?embed", 
+				OsfRateLimiter.getRequestClass(HttpUrl.parse("https://api.osf.io/v2/nodes/abc12/?embed=contributors&embed=identifiers")));
+		assertEquals("/v2/nodes/{id}/children/", 
+				OsfRateLimiter.getRequestClass(HttpUrl.parse("https://api.osf.io/v2/nodes/xyz89/children/?page=3")));
+		assertEquals(OsfRateLimiter.getRequestClass(HttpUrl.parse("https://api.osf.io/v2/users/?page=2&filter[id]=a")), 
+				OsfRateLimiter.getRequestClass(HttpUrl.parse("https://api.osf.io/v2/users/?filter[id]=b")));
+	}
+
+}
@@ -0,0 +1,146 @@
+/*******************************************************************************
+ * Copyright 2017 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This software was produced as part of the RMap Project (http://rmap-project.info),
+ * The RMap Project was funded by the Alfred P. Sloan Foundation and is a
+ * collaboration between Data Conservancy, Portico, and IEEE.
+ *******************************************************************************/
+package info.rmapproject.transformer.osf;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.squareup.okhttp.Connection;
+import com.squareup.okhttp.Interceptor;
+import com.squareup.okhttp.MediaType;
+import com.squareup.okhttp.Protocol;
+import com.squareup.okhttp.Request;
+import com.squareup.okhttp.Response;
+import com.squareup.okhttp.ResponseBody;
+
+import okio.BufferedSource;
+
+/**
+ * Tests for OsfRelationshipResolver
+ */
+public class OsfRelationshipResolverTest {
+
+	/** The JSON API media type. */
+	private static final MediaType JSON_API = MediaType.parse("application/vnd.api+json");
+
+	/**
+	 * An interceptor chain that answers every request with the body provided and counts the requests.
+	 */
+	private static class CountingChain implements Interceptor.Chain {
+
+		/** The request. */
+		private final Request request;
+
+		/** The response body. */
+		private final String body;
+
+		/** The length given for the body, or null to use its real length. */
+		private final String contentLength;
+
+		/** The number of requests sent on. */
+		private final AtomicInteger count;
+
+		/**
+		 * Instantiates a new counting chain.
+		 *
+		 * @param url the URL requested
+		 * @param body the response body
+		 * @param contentLength the length given for the body, or null to use its real length
+		 * @param count the number of requests sent on
+		 */
+		CountingChain(String url, String body, String contentLength, AtomicInteger count) {
+			this.request = new Request.Builder().url(url).build();
+			this.body = body;
+			this.contentLength = contentLength;
+			this.count = count;
+		}
+
+		@Override
+		public Request request() {
+			return request;
+		}
+
+		@Override
+		public Response proceed(Request request) throws IOException {
+			count.incrementAndGet();
+			ResponseBody responseBody = ResponseBody.create(JSON_API, body);
+			if (contentLength!=null){
+				//as a network response, the length comes from the header rather than the body
+				final BufferedSource source = responseBody.source();
+				responseBody = new ResponseBody(){
+					@Override
+					public MediaType contentType() {
+						return JSON_API;
+					}
+					@Override
+					public long contentLength() {
+						return Long.parseLong(contentLength);
+					}
+					@Override
+					public BufferedSource source() {
+						return source;
+					}
+				};
+			}
+			return new Response.Builder().request(request).protocol(Protocol.HTTP_1_1).code(200).body(responseBody).build();
+		}
+
+		@Override
+		public Connection connection() {
+			return null;
+		}
+	}
+
+	/**
+	 * Test that the related resources of a record are requested once, and records themselves are not cached.
+	 */
+	@Test
+	public void testCachesRelationshipsOnly() throws Exception {
+		OsfRelationshipResolver resolver = new OsfRelationshipResolver();
+		AtomicInteger count = new AtomicInteger();
+		String contributors = "https://api.osf.io/v2/nodes/abc12/contributors/";
+		String node = "https://api.osf.io/v2/nodes/abc12/";
+		for (int i=0; i<2; i++){
+			assertEquals("{\"data\":[]}", resolver.intercept(new CountingChain(contributors, "{\"data\":[]}", null, count)).body().string());
+			resolver.intercept(new CountingChain(node, "{\"data\":{}}", null, count)).body().close();
+		}
+		assertEquals(3, count.get());
+		assertEquals(1, resolver.size());
+		assertEquals(1, resolver.getHitCount());
+	}
+
+	/**
+	 * Test that a response whose Content-Length is over the limit is passed on without being cached.
+	 */
+	@Test
+	public void testLargeResponseNotCached() throws Exception {
+		OsfRelationshipResolver resolver = new OsfRelationshipResolver();
+		AtomicInteger count = new AtomicInteger();
+		String files = "https://api.osf.io/v2/nodes/abc12/files/";
+		Response response = resolver.intercept(new CountingChain(files, "{\"data\":[]}", "104857600", count));
+		assertEquals("{\"data\":[]}", response.body().source().readUtf8());
+		assertEquals(0, resolver.size());
+	}
+
+}
@@ -0,0 +1,102 @@
+/*******************************************************************************
+ * Copyright 2017 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This software was produced as part of the RMap Project (http://rmap-project.info),
+ * The RMap Project was funded by the Alfred P. Sloan Foundation and is a
+ * collaboration between Data Conservancy, Portico, and IEEE.
+ *******************************************************************************/
+package info.rmapproject.transformer.osf;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import info.rmapproject.cos.osf.client.model.LightUser;
+import info.rmapproject.cos.osf.client.model.User;
+
+/**
+ * Tests for OsfUserApiIterator
+ */
+public class OsfUserApiIteratorTest {
+
+	/**
+	 * Test that when a page of IDs cannot be retrieved the iterator moves on to the following page, 
+	 * without handing back the IDs on the page before it again.
+	 */
+	@Test
+	public void testFailedPageDoesNotRepeatIds() {
+		OsfClientService osfClient = new OsfClientService(){
+			@Override
+			public List<LightUser> getUserIds(Map<String,String> params){
+				switch (params.get("page")){
+					case "1": return Arrays.asList(lightUser("a1"), lightUser("a2"));
+					case "2": throw new RuntimeException("Page not available");
+					case "3": return Arrays.asList(lightUser("c1"));
+					default: return Collections.emptyList();
+				}
+			}
+			@Override
+			public User getUser(String id){
+				return user(id);
+			}
+		};
+
+		OsfUserApiIterator iterator = new OsfUserApiIterator("", 1, 0, osfClient);
+		List<String> ids = new ArrayList<String>();
+		while (iterator.hasNext()){
+			ids.add(iterator.next().getId());
+		}
+		assertEquals(Arrays.asList("a1", "a2", "c1"), ids);
+		assertFalse(iterator.hasNext());
+	}
+
+	/**
+	 * Creates a User ID record.
+	 *
+	 * @param id the User ID
+	 * @return the User ID record
+	 */
+	private static LightUser lightUser(final String id) {
+		return new LightUser(){
+			@Override
+			public String getId(){
+				return id;
+			}
+		};
+	}
+
+	/**
+	 * Creates a User.
+	 *
+	 * @param id the User ID
+	 * @return the User
+	 */
+	private static User user(final String id) {
+		return new User(){
+			@Override
+			public String getId(){
+				return id;
+			}
+		};
+	}
+
+}
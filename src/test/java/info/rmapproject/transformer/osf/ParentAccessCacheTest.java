@@ -0,0 +1,107 @@
+/*******************************************************************************
+ * Copyright 2017 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This software was produced as part of the RMap Project (http://rmap-project.info),
+ * The RMap Project was funded by the Alfred P. Sloan Foundation and is a
+ * collaboration between Data Conservancy, Portico, and IEEE.
+ *******************************************************************************/
+package info.rmapproject.transformer.osf;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests for ParentAccessCache
+ */
+public class ParentAccessCacheTest {
+
+	/** The temporary folder. */
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	/**
+	 * Test that results are returned and lookups are counted as hits or misses.
+	 */
+	@Test
+	public void testGetAndPut() {
+		ParentAccessCache cache = new ParentAccessCache();
+		assertNull(cache.get("p1"));
+		cache.put("p1", true);
+		cache.put("p2", false);
+		assertTrue(cache.get("p1"));
+		assertFalse(cache.get("p2"));
+		assertEquals(2, cache.getHitCount());
+		assertEquals(1, cache.getMissCount());
+	}
+
+	/**
+	 * Test that the least recently used parent is removed when the cache is full.
+	 */
+	@Test
+	public void testRemovesLeastRecentlyUsed() {
+		ParentAccessCache cache = new ParentAccessCache();
+		cache.setMaxEntries(2);
+		cache.put("p1", true);
+		cache.put("p2", true);
+		cache.get("p1");
+		cache.put("p3", true);
+		assertEquals(2, cache.size());
+		assertNull(cache.get("p2"));
+		assertTrue(cache.get("p1"));
+		assertTrue(cache.get("p3"));
+	}
+
+	/**
+	 * Test that entries expire after the time to live.
+	 *
+	 * @throws Exception the exception
+	 */
+	@Test
+	public void testExpiry() throws Exception {
+		ParentAccessCache cache = new ParentAccessCache();
+		cache.setTtl(1);
+		cache.put("p1", true);
+		Thread.sleep(10);
+		assertNull(cache.get("p1"));
+		assertEquals(0, cache.size());
+	}
+
+	/**
+	 * Test that saved entries are loaded again.
+	 */
+	@Test
+	public void testSaveAndLoad() {
+		File file = new File(folder.getRoot(), "parents.tsv");
+		ParentAccessCache cache = new ParentAccessCache();
+		cache.put("p1", true);
+		cache.put("p2", false);
+		cache.save(file);
+
+		ParentAccessCache loaded = new ParentAccessCache();
+		loaded.load(file);
+		assertEquals(2, loaded.size());
+		assertTrue(loaded.get("p1"));
+		assertFalse(loaded.get("p2"));
+	}
+
+}